@@ -1,9 +1,55 @@
 package com.zoomself.ai
 
 import android.app.Application
+import android.content.ComponentCallbacks2
 import androidx.camera.camera2.Camera2Config
 import androidx.camera.core.CameraXConfig
+import com.zoomself.ai.utils.StyleBottleneckCache
+import com.zoomself.ai.utils.TFModelManager
+import com.zoomself.ai.utils.TFModelTuner
 
 class App :Application() {
 
-}
\ No newline at end of file
+    companion object {
+        //所有共享模型的估计大小上限，超出时关闭最久没用的空闲模型
+        const val MODEL_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024
+        //没有使用者的模型保留一段时间，重复进入页面时直接复用
+        const val MODEL_IDLE_TIMEOUT_MILLIS = 60_000L
+    }
+
+    /**
+     * 风格瓶颈向量缓存，应用级别共享，fragment 重建后依然有效
+     */
+    val styleBottleneckCache: StyleBottleneckCache by lazy {
+        StyleBottleneckCache(this, 32)
+    }
+
+    /**
+     * 模型推理配置的自动调优，每个模型第一次加载时测量，结果持久化
+     */
+    val modelTuner: TFModelTuner by lazy {
+        TFModelTuner(this)
+    }
+
+    private val modelManagerDelegate = lazy {
+        TFModelManager(this, modelTuner, MODEL_MEMORY_BUDGET_BYTES, MODEL_IDLE_TIMEOUT_MILLIS)
+    }
+
+    /**
+     * 共享的模型实例，fragment、ViewModel 通过 handle 引用，fragment 重建后复用已经预热的模型
+     */
+    val modelManager: TFModelManager by modelManagerDelegate
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        //进入后台或者系统内存紧张时关闭所有空闲模型，正在使用的不受影响
+        if (modelManagerDelegate.isInitialized()
+            && (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+        ) {
+            modelManager.trimToSize(0)
+        }
+    }
+
+}
@@ -1,7 +1,16 @@
 package com.zoomself.ai.bean
 
+import com.zoomself.ai.utils.PipelineMetrics
 import com.zoomself.ai.utils.TFModel
 import java.io.Serializable
 
-data class AiBasicInfoBean(val device: TFModel.Device, val threadCount: Int, val duration: Long) :
-    Serializable
\ No newline at end of file
+/**
+ * @param duration 整个流水线的墙上时间（毫秒）
+ * @param stageNanos 各阶段耗时（纳秒），没有执行的阶段（比如缓存命中）不包含
+ */
+data class AiBasicInfoBean(
+    val device: TFModel.Device,
+    val threadCount: Int,
+    val duration: Long,
+    val stageNanos: Map<PipelineMetrics.Stage, Long> = emptyMap()
+) : Serializable
@@ -0,0 +1,12 @@
+package com.zoomself.ai.bean
+
+import java.io.Serializable
+
+/**
+ * 实时风格转换的统计
+ *
+ * @param latencyMillis 从收到相机帧到得到结果的耗时
+ * @param droppedFrames 推理跟不上被丢弃的帧数
+ */
+data class StreamStatsBean(val fps: Float, val latencyMillis: Float, val droppedFrames: Long) :
+    Serializable
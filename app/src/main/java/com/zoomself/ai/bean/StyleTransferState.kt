@@ -0,0 +1,15 @@
+package com.zoomself.ai.bean
+
+/**
+ * 拍照风格转换和风格混合的状态，只反映最新一次请求，旧请求被取消后不会再发出结果。
+ * [Failure] 是一次性的事件，不会保存在状态里，见 StyleTransferViewModel.styleTransferFailures
+ */
+sealed class StyleTransferState {
+    object Idle : StyleTransferState()
+
+    object Running : StyleTransferState()
+
+    data class Success(val result: StyleTransferResultBean) : StyleTransferState()
+
+    data class Failure(val error: Throwable) : StyleTransferState()
+}
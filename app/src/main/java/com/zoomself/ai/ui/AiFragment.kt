@@ -22,6 +22,11 @@ abstract class AiFragment : Fragment() {
     protected lateinit var styleTransferViewModel: StyleTransferViewModel
     protected lateinit var cameraExecutor: ExecutorService
 
+    /**
+     * 后台任务（缓存预热等），避免阻塞拍照后的推理
+     */
+    protected lateinit var backgroundExecutor: ExecutorService
+
     /**
      * 控制层布局
      */
@@ -41,9 +46,12 @@ abstract class AiFragment : Fragment() {
         super.onViewCreated(view, savedInstanceState)
         camera.bindToLifecycle(this)
         cameraExecutor = Executors.newSingleThreadExecutor()
-        styleTransferViewModel =
+        backgroundExecutor = Executors.newSingleThreadExecutor()
+        //跟随 activity，fragment 重建后继续使用同一个 ViewModel，activity 结束时 onCleared 释放模型图和缓存
+        styleTransferViewModel = ViewModelProvider(
+            requireActivity(),
             ViewModelProvider.AndroidViewModelFactory(requireActivity().application)
-                .create(StyleTransferViewModel::class.java)
+        ).get(StyleTransferViewModel::class.java)
 
     }
 
@@ -52,6 +60,9 @@ abstract class AiFragment : Fragment() {
         if (!cameraExecutor.isShutdown) {
             cameraExecutor.shutdown()
         }
+        if (!backgroundExecutor.isShutdown) {
+            backgroundExecutor.shutdown()
+        }
     }
 
 
@@ -4,13 +4,27 @@ import android.os.Bundle
 import android.util.Log
 
 import android.view.View
+import android.widget.SeekBar
+import android.widget.Toast
+import androidx.camera.core.CameraSelector
+import androidx.camera.core.ImageAnalysis
 import androidx.camera.core.ImageCapture
 import androidx.camera.core.ImageProxy
+import androidx.camera.lifecycle.ProcessCameraProvider
+import androidx.core.content.ContextCompat
 import androidx.lifecycle.Observer
+import androidx.lifecycle.lifecycleScope
+import com.zoomself.ai.App
 import com.zoomself.ai.R
+import com.zoomself.ai.bean.StyleTransferState
+import com.zoomself.ai.core.ModelCache
 import com.zoomself.ai.utils.TFModel
 import kotlinx.android.synthetic.main.fragment_ai.*
 import kotlinx.android.synthetic.main.fragment_style_transfer.*
+import kotlinx.coroutines.flow.collect
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 
 
 /**
@@ -19,27 +33,22 @@ import kotlinx.android.synthetic.main.fragment_style_transfer.*
 class StyleTransferFragment : AiFragment() {
 
     companion object {
+        const val TAG = "StyleTransferFragment"
         const val STYLE_MODEL_NAME = "style_predict_quantized_256.tflite"
-        const val CONTENT_MODEL_NAME = "style_transfer_quantized_384.tflite"
+        //单张模式的 content 模型按延迟预算从变体中选择
+        const val CONTENT_LATENCY_BUDGET_MILLIS = 300L
+        const val WARM_UP_RUNS = 2
+        //混合模式使用的风格和权重，强度由滑杆调节
+        private val BLEND_STYLE_WEIGHTS = mapOf("style0.jpg" to 0.5f, "style1.jpg" to 0.5f)
     }
 
-    private val styleModel: TFModel by lazy {
-        TFModel.Builder(
-            requireContext(),
-            STYLE_MODEL_NAME
-        )
-            .setNumThreads(2)
-            .build()
-    }
+    //模型由 App 的 modelManager 在 backgroundExecutor 上映射文件、加载并预热，相机同时启动，拍照时才等待模型就绪；
+    //fragment 重建后拿到的是同一个已经预热的实例
+    private lateinit var styleModel: Future<ModelCache.Handle<TFModel>>
 
-    private val contentModel: TFModel by lazy {
-        TFModel.Builder(
-            requireContext(),
-            CONTENT_MODEL_NAME
-        )
-            .setNumThreads(2)
-            .build()
-    }
+    //实时模式下额外绑定的 ImageAnalysis，和 CameraView 的预览、拍照共用同一个 lifecycle
+    private var cameraProvider: ProcessCameraProvider? = null
+    private var streamAnalysis: ImageAnalysis? = null
 
     override fun getControllerLayout(): Int {
         return R.layout.fragment_style_transfer
@@ -47,29 +56,223 @@ class StyleTransferFragment : AiFragment() {
 
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
-        styleTransferViewModel.styleTransferResultBeanLiveData.observe(viewLifecycleOwner, Observer {
-            iv.visibility = View.VISIBLE
-            iv.setImageBitmap(it.styledBitmap)
-            Log.i("zoomself", it.aiBasicInfoBean.toString())
+        //设备、线程数、XNNPACK 由调优结果决定，第一次运行时在 backgroundExecutor 上测量
+        val modelManager = (requireActivity().application as App).modelManager
+        styleModel = modelManager.acquireAsync(
+            STYLE_MODEL_NAME,
+            WARM_UP_RUNS,
+            backgroundExecutor,
+            object : TFModel.OnModelReadyListener {
+                override fun onReady(model: TFModel, warmUpDurationMillis: Long) {
+                    Log.i(TAG, "${model.path} ready, warmUp:${warmUpDurationMillis}ms")
+                    styleTransferViewModel.warmStyleBottlenecks(model, backgroundExecutor)
+                    //第一次运行时会测量每个 content 变体，之后直接读取记录
+                    styleTransferViewModel.selectContentVariant(
+                        model,
+                        CONTENT_LATENCY_BUDGET_MILLIS,
+                        backgroundExecutor
+                    )
+                }
+
+                override fun onError(e: Exception) {
+                    Log.e(TAG, "$STYLE_MODEL_NAME build failed", e)
+                }
+            })
+
+        styleTransferViewModel.contentVariantLiveData.observe(viewLifecycleOwner, Observer {
+            Log.i(TAG, "content variant: $it")
         })
 
+        //只会收到最新一次拍照的结果，连续拍照时旧的请求被取消
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            styleTransferViewModel.styleTransferState.collect {
+                when (it) {
+                    is StyleTransferState.Success -> {
+                        iv.visibility = View.VISIBLE
+                        iv.setImageBitmap(it.result.styledBitmap)
+                        Log.i("zoomself", it.result.aiBasicInfoBean.toString())
+                    }
+                    //混合滑杆调节时保留上一次的结果，直到新结果出来
+                    is StyleTransferState.Running -> Unit
+                    else -> iv.visibility = View.GONE
+                }
+            }
+        }
+        //错误只提示一次，view 重建后不会再弹出旧的错误
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            styleTransferViewModel.styleTransferFailures.collect {
+                Log.e(TAG, "style transfer failed", it.error)
+                Toast.makeText(requireContext(), "风格转换失败：${it.error.message}", Toast.LENGTH_SHORT)
+                    .show()
+            }
+        }
+
+        //实时模式：开始后绑定 ImageAnalysis，停止（包括出错自动停止）后解绑
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            styleTransferViewModel.streaming.collect {
+                tv_stream.text = if (it) "停止" else "实时"
+                if (it) {
+                    bindStreamAnalysis()
+                } else if (streamAnalysis != null) {
+                    unbindStreamAnalysis()
+                    iv.visibility = View.GONE
+                }
+            }
+        }
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            styleTransferViewModel.streamFrames.collect {
+                if (it != null) {
+                    iv.visibility = View.VISIBLE
+                    iv.setImageBitmap(it.styledBitmap)
+                }
+            }
+        }
+        viewLifecycleOwner.lifecycleScope.launchWhenStarted {
+            styleTransferViewModel.streamStats.collect {
+                if (it == null) {
+                    tv_fps.visibility = View.GONE
+                } else {
+                    tv_fps.visibility = View.VISIBLE
+                    tv_fps.text = String.format("%.1ffps %.0fms", it.fps, it.latencyMillis)
+                }
+            }
+        }
+
+        tv_stream.setOnClickListener {
+            if (styleTransferViewModel.streaming.value) {
+                styleTransferViewModel.stopStreaming()
+            } else {
+                iv.visibility = View.GONE
+                styleTransferViewModel.startStreaming(styleModel)
+            }
+        }
+
         iv_picture.setOnClickListener {
             iv.visibility = View.GONE
             camera.takePicture(cameraExecutor, object :
                 ImageCapture.OnImageCapturedCallback() {
                 override fun onCaptureSuccess(image: ImageProxy) {
-                    styleTransferViewModel.styleTransfer(
+                    //模型还在加载时在请求的协程里等待，不占用 cameraExecutor；加载失败时 image 同样会被关闭
+                    styleTransferViewModel.requestStyleTransfer(styleModel, image)
+                }
+            })
+
+        }
+
+        //拍一张作为混合的内容图，之后拖动滑杆只重新渲染，不用再拍
+        tv_blend.setOnClickListener {
+            iv.visibility = View.GONE
+            //回调在 cameraExecutor 上，滑杆的值在这里读取
+            val strength = blendStrength()
+            camera.takePicture(cameraExecutor, object :
+                ImageCapture.OnImageCapturedCallback() {
+                override fun onCaptureSuccess(image: ImageProxy) {
+                    styleTransferViewModel.requestStyleTransferBlend(
                         styleModel,
-                        contentModel,
                         image,
-                        cameraExecutor
+                        BLEND_STYLE_WEIGHTS,
+                        strength
                     )
                 }
             })
+        }
+
+        sb_strength.setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
+            override fun onProgressChanged(seekBar: SeekBar, progress: Int, fromUser: Boolean) {
+                if (fromUser && styleTransferViewModel.isBlendPrepared) {
+                    styleTransferViewModel.updateStyleTransferBlend(
+                        styleModel,
+                        BLEND_STYLE_WEIGHTS,
+                        blendStrength()
+                    )
+                }
+            }
 
+            override fun onStartTrackingTouch(seekBar: SeekBar) {
+            }
+
+            override fun onStopTrackingTouch(seekBar: SeekBar) {
+            }
+        })
+
+        iv_picture.setOnLongClickListener {
+            iv.visibility = View.GONE
+            camera.takePicture(cameraExecutor, object :
+                ImageCapture.OnImageCapturedCallback() {
+                override fun onCaptureSuccess(image: ImageProxy) {
+                    styleTransferViewModel.requestStyleTransferTiled(styleModel, image)
+                }
+            })
+            true
         }
 
     }
 
+    private fun blendStrength(): Float {
+        return sb_strength.progress / sb_strength.max.toFloat()
+    }
+
+    /**
+     * 绑定实时模式的 ImageAnalysis，相机帧在 cameraExecutor 上交给 ViewModel 的流
+     */
+    private fun bindStreamAnalysis() {
+        val cameraProviderFuture = ProcessCameraProvider.getInstance(requireContext())
+        cameraProviderFuture.addListener(Runnable {
+            //等待期间 view 已经销毁或者流已经停止
+            if (view == null || streamAnalysis != null || !styleTransferViewModel.streaming.value) {
+                return@Runnable
+            }
+            val provider = cameraProviderFuture.get()
+            val analysis = ImageAnalysis.Builder()
+                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                .build()
+            analysis.setAnalyzer(cameraExecutor, styleTransferViewModel.streamAnalyzer)
+            val cameraSelector = CameraSelector.Builder()
+                .requireLensFacing(camera.cameraLensFacing ?: CameraSelector.LENS_FACING_BACK)
+                .build()
+            try {
+                provider.bindToLifecycle(this, cameraSelector, analysis)
+            } catch (e: IllegalArgumentException) {
+                //设备不支持预览、拍照、分析同时绑定
+                Log.e(TAG, "bind ImageAnalysis failed", e)
+                Toast.makeText(requireContext(), "实时模式不可用：${e.message}", Toast.LENGTH_SHORT).show()
+                styleTransferViewModel.stopStreaming()
+                return@Runnable
+            }
+            cameraProvider = provider
+            streamAnalysis = analysis
+        }, ContextCompat.getMainExecutor(requireContext()))
+    }
+
+    private fun unbindStreamAnalysis() {
+        val analysis = streamAnalysis ?: return
+        analysis.clearAnalyzer()
+        cameraProvider?.unbind(analysis)
+        streamAnalysis = null
+    }
+
+    override fun onStop() {
+        //不在前台时不再推理，借用的 content 变体在推理线程退出后归还
+        styleTransferViewModel.stopStreaming()
+        super.onStop()
+    }
+
+    override fun onDestroyView() {
+        unbindStreamAnalysis()
+        val styleModel = styleModel
+        val backgroundExecutor = backgroundExecutor
+        //排在已经提交的拍照任务之后，并等后台任务（预热、变体测量）结束再归还；
+        //已经交给 ViewModel 的请求各自持有引用，推理过程中模型不会被关闭
+        cameraExecutor.execute {
+            backgroundExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+            try {
+                styleModel.get().close()
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "$STYLE_MODEL_NAME was not loaded", e)
+            }
+        }
+        super.onDestroyView()
+    }
+
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,340 @@
+package com.zoomself.ai.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.BatchJournal;
+import com.zoomself.ai.core.BatchPipeline;
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorPreprocessor;
+
+import org.tensorflow.lite.DataType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * 离线批量风格转换，不依赖 Fragment、相机和 LiveData
+ * <p>
+ * 一个目录（或列表）里的每张图片和每个风格组合输出一张结果图，输出到 outputDir/图片文件名_风格名.jpg，
+ * 图片文件名保留扩展名，a.jpg 和 a.png 的结果不会互相覆盖；图片按 EXIF 方向旋转后再推理。
+ * 基于 {@link BatchPipeline}：多个线程解码并预处理成模型输入，从 {@link TFModelPool} 借 Interpreter 推理，
+ * 多个线程编码写文件。同一张图片只解码一次，依次用所有风格推理。
+ * 每张图片的所有风格都写完后记录到 outputDir 下的记录文件，中断后用同样的参数（风格集合和 content 模型）重新运行会从断点继续。
+ */
+public class BatchStyleTransferEngine {
+    private static final String TAG = "BatchStyleTransfer";
+    private static final int JPEG_QUALITY = 95;
+
+    private final TFModelPool contentModelPool;
+    private final int decodeWorkers;
+    private final int encodeWorkers;
+    private final int[] inputShape;
+    private final DataType inputDataType;
+    private final int[] outputShape;
+    private final DataType outputDataType;
+    private final Quantization outputQuantization;
+    private final String modelHash;
+    private final TensorBufferPool inputPool;
+    private volatile BatchPipeline<File, TensorBufferPool.Entry, ByteBuffer[]> pipeline;
+
+    /**
+     * @param contentModelPool 推理线程数等于池的 maxSize
+     */
+    public BatchStyleTransferEngine(@NonNull TFModelPool contentModelPool, int decodeWorkers, int encodeWorkers)
+            throws InterruptedException {
+        TFModel model = contentModelPool.borrow();
+        Quantization inputQuantization;
+        try {
+            this.inputShape = model.getInputTensorShape(0);
+            this.inputDataType = model.getInputTensorDataType(0);
+            this.outputShape = model.getOutputTensorShape(0);
+            this.outputDataType = model.getOutputTensorDataType(0);
+            inputQuantization = model.getInputQuantization(0);
+            this.outputQuantization = model.getOutputQuantization(0);
+            this.modelHash = model.getModelHash();
+        } finally {
+            contentModelPool.release(model);
+        }
+        this.contentModelPool = contentModelPool;
+        this.decodeWorkers = decodeWorkers;
+        this.encodeWorkers = encodeWorkers;
+        //在途的模型输入最多是队列容量加上解码和推理线程数
+        this.inputPool = new TensorBufferPool(inputShape, inputDataType, inputQuantization,
+                TensorPreprocessor.Sampling.BILINEAR, decodeWorkers + contentModelPool.getMaxSize() + 4);
+    }
+
+    /**
+     * 目录下的所有 jpg / png / webp，按文件名排序，保证断点续跑时顺序一致
+     */
+    @NonNull
+    public static List<File> listImages(@NonNull File dir) {
+        List<File> images = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return images;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+                    || name.endsWith(".webp"))) {
+                images.add(file);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * 阻塞到全部完成或 {@link #cancel()}
+     *
+     * @param styleBottlenecks 风格名 -> 风格瓶颈向量 (1,1,1,100)，只读
+     * @param listener         在编码线程上回调，可以为空
+     */
+    @NonNull
+    public BatchPipeline.Stats run(@NonNull List<File> images, @NonNull Map<String, ByteBuffer> styleBottlenecks,
+                                   @NonNull File outputDir, @Nullable BatchPipeline.Listener<File> listener)
+            throws IOException, InterruptedException {
+        if (styleBottlenecks.isEmpty()) {
+            throw new IllegalArgumentException("styleBottlenecks can not be empty");
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("can not create " + outputDir);
+        }
+        //按风格名排序，记录文件名只取决于风格集合和 content 模型，换了模型不会跳过旧模型已经完成的图片
+        TreeMap<String, ByteBuffer> styles = new TreeMap<>(styleBottlenecks);
+        BatchJournal journal = new BatchJournal(new File(outputDir,
+                ".batch_" + Integer.toHexString(Objects.hash(styles.keySet(), modelHash)) + ".journal"));
+        try {
+            BatchPipeline<File, TensorBufferPool.Entry, ByteBuffer[]> pipeline =
+                    new BatchPipeline.Builder<>(new Stages(styles, outputDir))
+                            .setWorkers(decodeWorkers, contentModelPool.getMaxSize(), encodeWorkers)
+                            .setJournal(journal)
+                            .setListener(listener)
+                            .build();
+            this.pipeline = pipeline;
+            BatchPipeline.Stats stats = pipeline.run(images.iterator());
+            Log.i(TAG, "run " + images.size() + " images x " + styles.size() + " styles: " + stats);
+            return stats;
+        } finally {
+            this.pipeline = null;
+            journal.close();
+        }
+    }
+
+    /**
+     * 不再开始新的图片，已经解码的继续完成
+     */
+    public void cancel() {
+        BatchPipeline<File, TensorBufferPool.Entry, ByteBuffer[]> current = pipeline;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    private class Stages implements BatchPipeline.Stages<File, TensorBufferPool.Entry, ByteBuffer[]> {
+        private final String[] styleNames;
+        private final ByteBuffer[] bottlenecks;
+        private final File outputDir;
+        private final int outputBytes;
+        //每个编码线程复用一个 Bitmap
+        private final Map<Thread, Bitmap> encodeBitmaps = new HashMap<>();
+        //推理输出在推理线程写入、编码线程读取，不能按线程复用，用完放回这里
+        private final ArrayDeque<ByteBuffer[]> freeOutputs = new ArrayDeque<>();
+
+        Stages(TreeMap<String, ByteBuffer> styles, File outputDir) {
+            this.styleNames = styles.keySet().toArray(new String[0]);
+            this.bottlenecks = styles.values().toArray(new ByteBuffer[0]);
+            this.outputDir = outputDir;
+            this.outputBytes = outputShape[1] * outputShape[2] * outputShape[3] * outputDataType.byteSize();
+        }
+
+        @Override
+        public String key(File image) {
+            return image.getAbsolutePath();
+        }
+
+        @Override
+        public TensorBufferPool.Entry decode(File image) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(image.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("can not decode " + image);
+            }
+            int rotationDegrees = readRotationDegrees(image);
+            //旋转 90° / 270° 时宽高互换，旋转后不小于模型输入的尺寸
+            boolean swapped = rotationDegrees == 90 || rotationDegrees == 270;
+            int width = swapped ? options.outHeight : options.outWidth;
+            int height = swapped ? options.outWidth : options.outHeight;
+            //直接解码到不小于模型输入的尺寸
+            int sampleSize = 1;
+            while (width / (sampleSize * 2) >= inputShape[2]
+                    && height / (sampleSize * 2) >= inputShape[1]) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(image.getPath(), options);
+            if (bitmap == null) {
+                throw new IOException("can not decode " + image);
+            }
+            TensorBufferPool.Entry entry = inputPool.acquire();
+            boolean loaded = false;
+            try {
+                entry.load(bitmap, rotationDegrees);
+                loaded = true;
+                return entry;
+            } finally {
+                bitmap.recycle();
+                if (!loaded) {
+                    inputPool.release(entry);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer[] infer(File image, TensorBufferPool.Entry entry) throws Exception {
+            ByteBuffer[] outputs = acquireOutputs();
+            Object[] inputs = new Object[2];
+            Map<Integer, Object> outputMap = new HashMap<>();
+            boolean done = false;
+            TFModel model = null;
+            try {
+                model = contentModelPool.borrow();
+                for (int i = 0; i < styleNames.length; i++) {
+                    ByteBuffer input = entry.getBuffer();
+                    input.rewind();
+                    //Interpreter 会移动输入 buffer 的 position，多线程共享的瓶颈向量要用副本
+                    ByteBuffer bottleneck = bottlenecks[i].duplicate().order(ByteOrder.nativeOrder());
+                    bottleneck.rewind();
+                    outputs[i].rewind();
+                    inputs[0] = input;
+                    inputs[1] = bottleneck;
+                    outputMap.put(0, outputs[i]);
+                    model.run(inputs, outputMap);
+                    outputs[i].rewind();
+                }
+                done = true;
+            } finally {
+                if (model != null) {
+                    contentModelPool.release(model);
+                }
+                inputPool.release(entry);
+                if (!done) {
+                    releaseOutputs(outputs);
+                }
+            }
+            return outputs;
+        }
+
+        @Override
+        public void encode(File image, ByteBuffer[] outputs) throws IOException {
+            try {
+                encodeOutputs(image, outputs);
+            } finally {
+                releaseOutputs(outputs);
+            }
+        }
+
+        private void encodeOutputs(File image, ByteBuffer[] outputs) throws IOException {
+            Bitmap reuse;
+            synchronized (encodeBitmaps) {
+                reuse = encodeBitmaps.get(Thread.currentThread());
+            }
+            String baseName = image.getName();
+            for (int i = 0; i < outputs.length; i++) {
+                Bitmap bitmap = TFImageUtils.convertTensorToBitmap(outputs[i], outputDataType, outputQuantization,
+                        outputShape[2], outputShape[1], reuse);
+                reuse = bitmap;
+                File target = new File(outputDir, baseName + "_" + stripExtension(styleNames[i]) + ".jpg");
+                //先写临时文件再重命名，中断时不会留下不完整的结果图
+                File temp = new File(outputDir, target.getName() + ".tmp");
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                        throw new IOException("compress failed: " + target);
+                    }
+                }
+                if (!temp.renameTo(target)) {
+                    throw new IOException("rename failed: " + target);
+                }
+            }
+            synchronized (encodeBitmaps) {
+                encodeBitmaps.put(Thread.currentThread(), reuse);
+            }
+        }
+
+        /**
+         * 一张图片所有风格的输出 buffer，编码完成后归还，同时在用的组数受流水线在途数量限制
+         */
+        private ByteBuffer[] acquireOutputs() {
+            synchronized (freeOutputs) {
+                ByteBuffer[] outputs = freeOutputs.pollFirst();
+                if (outputs != null) {
+                    return outputs;
+                }
+            }
+            ByteBuffer[] outputs = new ByteBuffer[styleNames.length];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = ByteBuffer.allocateDirect(outputBytes).order(ByteOrder.nativeOrder());
+            }
+            return outputs;
+        }
+
+        private void releaseOutputs(ByteBuffer[] outputs) {
+            synchronized (freeOutputs) {
+                freeOutputs.addFirst(outputs);
+            }
+        }
+    }
+
+    /**
+     * EXIF 方向对应的顺时针旋转角度，和相机帧的 rotationDegrees 含义相同；镜像方向只取旋转部分，没有 EXIF 时为 0
+     */
+    private static int readRotationDegrees(File image) {
+        int orientation;
+        try {
+            orientation = new ExifInterface(image.getPath())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "read exif failed: " + image, e);
+            return 0;
+        }
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
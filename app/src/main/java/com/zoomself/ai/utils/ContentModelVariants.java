@@ -0,0 +1,365 @@
+package com.zoomself.ai.utils;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.ModelVariantRegistry;
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * content 模型的多个变体（float16、量化），按延迟预算选择并在运行时热切换
+ * <p>
+ * 第一次使用时在本机上测量每个变体：延迟（{@link TFModel#measureLatencyNanos(int)}）、
+ * 内存（模型文件大小 + 创建 Interpreter 并推理一次后 native heap 的增量，只是估计值）、
+ * 以及在同一组输入上和参考变体（第一个，float 版本）输出比较的 PSNR。结果见 {@link ModelVariantRegistry}。
+ * <p>
+ * 使用方通过 {@link #acquire(long)} / {@link #release(TFModel)} 借用当前模型；切换后旧模型在最后一个使用者归还后才关闭。
+ * 线程安全。
+ */
+public class ContentModelVariants {
+    private static final String TAG = "ContentModelVariants";
+    private static final String RECORD_FILE = "model_variants.properties";
+    private static final int MEASURE_RUNS = 5;
+
+    /**
+     * 测量输出质量用的固定输入，按模型的输入类型生成，每一条是按输入序号排列的 buffer
+     */
+    public interface QualityInputs {
+        @NonNull
+        List<ByteBuffer[]> create(@NonNull TFModel model) throws Exception;
+    }
+
+    /**
+     * 模型被换下并且没有使用者之后、关闭之前回调，用于清理以模型为 key 的缓存
+     */
+    public interface OnRetireListener {
+        void onRetire(@NonNull TFModel model);
+    }
+
+    private final ModelVariantRegistry registry;
+    private final Map<ModelVariantRegistry.Variant, TFModel.Builder> builders = new LinkedHashMap<>();
+    //正在使用的模型 -> 借出次数
+    private final Map<TFModel, Integer> leases = new HashMap<>();
+    private final List<TFModel> retired = new ArrayList<>();
+    private TFModel current;
+    private ModelVariantRegistry.Variant currentVariant;
+    //没有当前变体时最近一次 select 的失败
+    private Exception failure;
+    private OnRetireListener onRetireListener;
+    private boolean closed;
+
+    /**
+     * @param modelPaths assets 下的模型路径，第一个是参考变体
+     * @param tuner      每个变体各自调优设备和线程数，可以为空
+     */
+    public ContentModelVariants(@NonNull Context context, @NonNull String[] modelPaths, @Nullable TFModelTuner tuner,
+                                int warmUpRuns) throws IOException {
+        if (modelPaths.length == 0) {
+            throw new IllegalArgumentException("modelPaths can not be empty");
+        }
+        this.registry = new ModelVariantRegistry(new File(context.getFilesDir(), RECORD_FILE),
+                TFModelTuner.deviceFingerprint());
+        for (String path : modelPaths) {
+            TFModel.Builder builder = new TFModel.Builder(context, path)
+                    .setAutoTuner(tuner)
+                    .setWarmUpRuns(warmUpRuns);
+            ModelVariantRegistry.Variant variant = registry.register(variantName(path), path,
+                    builder.getModelHash());
+            builders.put(variant, builder);
+        }
+    }
+
+    /**
+     * style_transfer_quantized_384.tflite -> quantized
+     */
+    @NonNull
+    static String variantName(@NonNull String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        String[] parts = (dot > 0 ? name.substring(0, dot) : name).split("_");
+        return parts.length >= 2 ? parts[parts.length - 2] : name;
+    }
+
+    public synchronized void setOnRetireListener(@Nullable OnRetireListener listener) {
+        this.onRetireListener = listener;
+    }
+
+    @NonNull
+    public List<ModelVariantRegistry.Variant> getVariants() {
+        return registry.getVariants();
+    }
+
+    @Nullable
+    public synchronized ModelVariantRegistry.Variant getCurrentVariant() {
+        return currentVariant;
+    }
+
+    /**
+     * 测量还没有记录的变体，耗时较长，不要在主线程调用
+     */
+    public void profile(@NonNull QualityInputs qualityInputs) throws Exception {
+        ModelVariantRegistry.Variant reference = registry.getReference();
+        Measurement referenceMeasurement = null;
+        for (ModelVariantRegistry.Variant variant : registry.getVariants()) {
+            if (variant.getProfile() != null) {
+                continue;
+            }
+            if (referenceMeasurement == null) {
+                //其他变体的 PSNR 需要参考变体的输出，参考变体已经有记录时只运行不记录
+                referenceMeasurement = measure(reference, qualityInputs);
+                if (reference.getProfile() == null) {
+                    registry.setProfile(reference, new ModelVariantRegistry.Profile(referenceMeasurement.latencyNanos,
+                            referenceMeasurement.memoryBytes, Double.POSITIVE_INFINITY));
+                    Log.i(TAG, "profiled " + reference);
+                }
+                if (variant == reference) {
+                    continue;
+                }
+            }
+            Measurement measurement = measure(variant, qualityInputs);
+            double mse = 0;
+            for (int i = 0; i < measurement.outputs.size(); i++) {
+                mse += ModelVariantRegistry.meanSquaredError(
+                        referenceMeasurement.outputs.get(i), referenceMeasurement.outputType,
+                        referenceMeasurement.outputQuantization,
+                        measurement.outputs.get(i), measurement.outputType, measurement.outputQuantization,
+                        measurement.valueCount);
+            }
+            registry.setProfile(variant, new ModelVariantRegistry.Profile(measurement.latencyNanos,
+                    measurement.memoryBytes, ModelVariantRegistry.psnr(mse / measurement.outputs.size())));
+            Log.i(TAG, "profiled " + variant);
+        }
+    }
+
+    private static class Measurement {
+        long latencyNanos;
+        long memoryBytes;
+        List<ByteBuffer> outputs;
+        TensorType outputType;
+        Quantization outputQuantization;
+        int valueCount;
+    }
+
+    private Measurement measure(ModelVariantRegistry.Variant variant, QualityInputs qualityInputs) throws Exception {
+        TFModel.Builder builder = builders.get(variant);
+        long nativeBefore = Debug.getNativeHeapAllocatedSize();
+        TFModel model = builder.build();
+        try {
+            Measurement measurement = new Measurement();
+            measurement.outputs = runQualityInputs(model, qualityInputs);
+            measurement.memoryBytes = builder.getByteModel().capacity()
+                    + Math.max(0, Debug.getNativeHeapAllocatedSize() - nativeBefore);
+            measurement.latencyNanos = model.measureLatencyNanos(MEASURE_RUNS);
+            measurement.outputType = model.getOutputTensorType(0);
+            measurement.outputQuantization = model.getOutputQuantization(0);
+            int[] shape = model.getOutputTensorShape(0);
+            measurement.valueCount = shape[1] * shape[2] * shape[3];
+            return measurement;
+        } finally {
+            model.close();
+        }
+    }
+
+    private static List<ByteBuffer> runQualityInputs(TFModel model, QualityInputs qualityInputs) throws Exception {
+        List<ByteBuffer> results = new ArrayList<>();
+        for (ByteBuffer[] inputs : qualityInputs.create(model)) {
+            Object[] modelInputs = new Object[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                ByteBuffer input = inputs[i].duplicate().order(ByteOrder.nativeOrder());
+                input.rewind();
+                modelInputs[i] = input;
+            }
+            int[] shape = model.getOutputTensorShape(0);
+            ByteBuffer output = ByteBuffer.allocateDirect(shape[1] * shape[2] * shape[3]
+                    * model.getOutputTensorDataType(0).byteSize()).order(ByteOrder.nativeOrder());
+            Map<Integer, Object> outputs = new HashMap<>();
+            outputs.put(0, output);
+            model.run(modelInputs, outputs);
+            output.rewind();
+            results.add(output);
+        }
+        if (results.isEmpty()) {
+            throw new IllegalArgumentException("quality inputs can not be empty");
+        }
+        return results;
+    }
+
+    /**
+     * 测量（如果需要）后按延迟预算选择变体，和当前变体不同时创建新模型并切换，耗时较长，不要在主线程调用
+     * <p>
+     * 还没有当前变体并且需要测量时，先切换到参考变体，测量期间 {@link #acquire(long)} 不用等待；
+     * 没有任何可用变体时失败会记录下来，由 {@link #acquire(long)} 抛出
+     *
+     * @return 切换后的当前变体
+     */
+    @NonNull
+    public ModelVariantRegistry.Variant select(long latencyBudgetNanos, @NonNull QualityInputs qualityInputs)
+            throws Exception {
+        try {
+            if (getCurrentVariant() == null && !isProfiled()) {
+                switchTo(registry.getReference(), latencyBudgetNanos);
+            }
+            profile(qualityInputs);
+            return switchTo(registry.select(latencyBudgetNanos), latencyBudgetNanos);
+        } catch (Exception e) {
+            synchronized (this) {
+                if (current == null) {
+                    failure = e;
+                    notifyAll();
+                }
+            }
+            throw e;
+        }
+    }
+
+    private boolean isProfiled() {
+        for (ModelVariantRegistry.Variant variant : registry.getVariants()) {
+            if (variant.getProfile() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ModelVariantRegistry.Variant switchTo(ModelVariantRegistry.Variant variant, long latencyBudgetNanos)
+            throws Exception {
+        synchronized (this) {
+            if (variant == currentVariant || closed) {
+                return variant;
+            }
+        }
+        TFModel model = builders.get(variant).build();
+        TFModel previous;
+        synchronized (this) {
+            if (closed) {
+                model.close();
+                return variant;
+            }
+            previous = current;
+            current = model;
+            currentVariant = variant;
+            failure = null;
+            notifyAll();
+        }
+        Log.i(TAG, "switched to " + variant + " budget:" + latencyBudgetNanos / 1_000_000 + "ms");
+        if (previous != null) {
+            retire(previous);
+        }
+        return variant;
+    }
+
+    /**
+     * 借用当前模型，还没有选择过变体时最多等待 timeoutMillis，用完必须 {@link #release(TFModel)}
+     *
+     * @throws ExecutionException 上一次 {@link #select(long, QualityInputs)} 失败并且没有可用的变体
+     * @throws TimeoutException   超时还没有可用的变体，比如 select 一直没有被调用
+     */
+    @NonNull
+    public TFModel acquire(long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException {
+        synchronized (this) {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            while (current == null) {
+                if (closed) {
+                    throw new IllegalStateException("closed");
+                }
+                if (failure != null) {
+                    throw new ExecutionException("select content variant failed", failure);
+                }
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("no content variant selected in " + timeoutMillis + "ms");
+                }
+                wait(remaining);
+            }
+            Integer count = leases.get(current);
+            leases.put(current, count == null ? 1 : count + 1);
+            return current;
+        }
+    }
+
+    public void release(@NonNull TFModel model) {
+        boolean close;
+        synchronized (this) {
+            Integer count = leases.get(model);
+            if (count == null) {
+                throw new IllegalArgumentException("model not acquired: " + model.getPath());
+            }
+            if (count > 1) {
+                leases.put(model, count - 1);
+                return;
+            }
+            leases.remove(model);
+            close = retired.remove(model);
+        }
+        if (close) {
+            closeModel(model);
+        }
+    }
+
+    private void retire(TFModel model) {
+        synchronized (this) {
+            if (leases.containsKey(model)) {
+                //最后一个使用者 release 时关闭
+                retired.add(model);
+                return;
+            }
+        }
+        closeModel(model);
+    }
+
+    private void closeModel(TFModel model) {
+        OnRetireListener listener;
+        synchronized (this) {
+            listener = onRetireListener;
+        }
+        if (listener != null) {
+            listener.onRetire(model);
+        }
+        model.close();
+    }
+
+    /**
+     * 关闭当前模型，借出中的模型在归还时关闭
+     */
+    public void close() {
+        TFModel previous;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            previous = current;
+            current = null;
+            currentVariant = null;
+            notifyAll();
+        }
+        if (previous != null) {
+            retire(previous);
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "ContentModelVariants{current=" + currentVariant + ", variants=" + registry.getVariants()
+                + ", leased=" + leases.size() + ", retired=" + retired.size() + "}";
+    }
+}
@@ -0,0 +1,186 @@
+package com.zoomself.ai.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 风格转换流水线分阶段耗时统计
+ * <p>
+ * 使用 {@link System#nanoTime()} 单调的墙上时间，而不是 SystemClock.currentThreadTimeMillis()
+ * 这种只统计当前线程 CPU 时间的计时（Interpreter 的工作在 native 线程上，会被漏掉）。
+ * 每个阶段保留最近 windowSize 个样本，计算 p50/p95/p99。
+ */
+public class PipelineMetrics {
+
+    public enum Stage {
+        ASSET_DECODE,
+        YUV_TO_JPEG,
+        JPEG_DECODE,
+        PREPROCESS,
+        STYLE_PREDICT,
+        //风格混合：从缓存读取风格瓶颈向量并混合，代替 style predict
+        BLEND,
+        CONTENT_TRANSFER,
+        TENSOR_TO_BITMAP,
+        TOTAL
+    }
+
+    private final int windowSize;
+    private final EnumMap<Stage, RollingHistogram> histograms = new EnumMap<>(Stage.class);
+
+    public PipelineMetrics(int windowSize) {
+        this.windowSize = windowSize;
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new RollingHistogram(windowSize));
+        }
+    }
+
+    /**
+     * 开始一次流水线计时
+     */
+    @NonNull
+    public Timer startTimer() {
+        return new Timer();
+    }
+
+    /**
+     * 把一次流水线各阶段的耗时加入统计
+     */
+    public void record(@NonNull Timer timer) {
+        for (Map.Entry<Stage, Long> entry : timer.stageNanos.entrySet()) {
+            histograms.get(entry.getKey()).add(entry.getValue());
+        }
+    }
+
+    @NonNull
+    public Percentiles percentiles(@NonNull Stage stage) {
+        return histograms.get(stage).percentiles();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PipelineMetrics{");
+        for (Stage stage : Stage.values()) {
+            Percentiles percentiles = percentiles(stage);
+            if (percentiles.count == 0) {
+                continue;
+            }
+            builder.append('\n').append(stage).append(": ").append(percentiles);
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * 一次流水线的计时，同一阶段多次出现时累加，没有执行的阶段（比如缓存命中）不记录
+     */
+    public static class Timer {
+        private final long startNanos = System.nanoTime();
+        private final EnumMap<Stage, Long> stageNanos = new EnumMap<>(Stage.class);
+        private long stageStartNanos = startNanos;
+
+        /**
+         * 开始一个阶段
+         */
+        public void begin() {
+            stageStartNanos = System.nanoTime();
+        }
+
+        /**
+         * 结束从上一次 {@link #begin()} 开始的阶段
+         */
+        public void end(@NonNull Stage stage) {
+            long now = System.nanoTime();
+            Long previous = stageNanos.get(stage);
+            stageNanos.put(stage, (previous == null ? 0 : previous) + now - stageStartNanos);
+            stageStartNanos = now;
+        }
+
+        /**
+         * 累加在其他线程上测得的阶段耗时，比如并发执行的模型图节点，不影响 {@link #begin()} 的起点
+         */
+        public void add(@NonNull Stage stage, long nanos) {
+            Long previous = stageNanos.get(stage);
+            stageNanos.put(stage, (previous == null ? 0 : previous) + nanos);
+        }
+
+        /**
+         * 结束整个流水线，记录 {@link Stage#TOTAL}
+         */
+        public long finish() {
+            long total = System.nanoTime() - startNanos;
+            stageNanos.put(Stage.TOTAL, total);
+            return total;
+        }
+
+        /**
+         * 各阶段耗时（纳秒）的副本
+         */
+        @NonNull
+        public EnumMap<Stage, Long> getStageNanos() {
+            return new EnumMap<>(stageNanos);
+        }
+    }
+
+    public static class Percentiles {
+        public final int count;
+        public final long p50Nanos;
+        public final long p95Nanos;
+        public final long p99Nanos;
+
+        Percentiles(int count, long p50Nanos, long p95Nanos, long p99Nanos) {
+            this.count = count;
+            this.p50Nanos = p50Nanos;
+            this.p95Nanos = p95Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d p50=%.2fms p95=%.2fms p99=%.2fms",
+                    count, p50Nanos / 1e6, p95Nanos / 1e6, p99Nanos / 1e6);
+        }
+    }
+
+    /**
+     * 固定窗口的样本环形缓冲，查询时排序计算分位数
+     */
+    static class RollingHistogram {
+        private final long[] samples;
+        private int count;
+
+        RollingHistogram(int windowSize) {
+            this.samples = new long[windowSize];
+        }
+
+        synchronized void add(long value) {
+            samples[count % samples.length] = value;
+            count++;
+        }
+
+        synchronized Percentiles percentiles() {
+            int size = Math.min(count, samples.length);
+            if (size == 0) {
+                return new Percentiles(0, 0, 0, 0);
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return new Percentiles(size, percentile(sorted, 0.50), percentile(sorted, 0.95),
+                    percentile(sorted, 0.99));
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
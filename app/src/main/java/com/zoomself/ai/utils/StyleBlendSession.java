@@ -0,0 +1,112 @@
+package com.zoomself.ai.utils;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.zoomself.ai.core.BottleneckBlender;
+
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 同一张内容图的多次风格混合渲染，用于风格强度 / 混合滑杆
+ * <p>
+ * 创建时保存内容图的模型输入和内容图自身的瓶颈向量，之后每次 {@link #render} 只做向量混合和一次 contentModel 推理，
+ * 不再解码、预处理内容图，也不运行 style predict 模型。输入、输出 buffer 和结果 Bitmap 都复用。
+ */
+public class StyleBlendSession {
+    //结果 Bitmap 轮流复用的数量，和 StyleTransferStream 一样用 3 个：结果异步发布到 UI，
+    //第 N 次的结果还在显示时第 N+1 次可能已经发布、第 N+2 次正在渲染，2 个时会覆盖正在显示的 Bitmap
+    private static final int OUTPUT_BITMAP_COUNT = 3;
+
+    private final TFModel contentModel;
+    private final ByteBuffer contentInput;
+    private final float[] contentBottleneck;
+    private final ByteBuffer blendedBottleneck;
+    private final float[] scratch;
+    private final TensorBuffer outputTensorBuffer;
+    private final Object[] inputs = new Object[2];
+    private final Map<Integer, Object> outputs = new HashMap<>();
+    private final Bitmap[] outputBitmaps = new Bitmap[OUTPUT_BITMAP_COUNT];
+    private int outputBitmapIndex;
+
+    /**
+     * @param contentInput      内容图的 contentModel 输入，会复制一份，调用方之后可以复用
+     * @param contentBottleneck 内容图经过 style predict 模型得到的瓶颈向量
+     */
+    public StyleBlendSession(@NonNull TFModel contentModel, @NonNull ByteBuffer contentInput,
+                             @NonNull float[] contentBottleneck) {
+        this.contentModel = contentModel;
+        ByteBuffer source = contentInput.duplicate();
+        source.rewind();
+        this.contentInput = ByteBuffer.allocateDirect(source.remaining()).order(ByteOrder.nativeOrder());
+        this.contentInput.put(source);
+        this.contentInput.rewind();
+        this.contentBottleneck = contentBottleneck.clone();
+        this.blendedBottleneck = BottleneckBlender.allocate(contentBottleneck.length);
+        this.scratch = new float[contentBottleneck.length];
+        this.outputTensorBuffer = TensorBuffer.createFixedSize(contentModel.getOutputTensorShape(0),
+                contentModel.getOutputTensorDataType(0));
+    }
+
+    /**
+     * 风格向量按 styleWeights 混合后，再和内容图自身的向量按 strength 插值
+     *
+     * @param styleWeights 非负，内部归一化
+     * @param strength     【0,1】，0 时只有内容图自身的风格，1 时完全是混合后的风格
+     * @return 轮流复用的 Bitmap（3 个），需要长期保存时自己复制
+     */
+    @NonNull
+    public synchronized Bitmap render(@NonNull float[][] styleBottlenecks, @NonNull float[] styleWeights,
+                                      float strength, @NonNull PipelineMetrics.Timer timer) {
+        if (!(strength >= 0f && strength <= 1f)) {
+            throw new IllegalArgumentException("strength must be in [0,1]: " + strength);
+        }
+        if (styleBottlenecks.length != styleWeights.length) {
+            throw new IllegalArgumentException("styleBottlenecks and styleWeights length mismatch");
+        }
+        float styleTotal = 0f;
+        for (float w : styleWeights) {
+            styleTotal += w;
+        }
+        float[][] bottlenecks = new float[styleBottlenecks.length + 1][];
+        float[] weights = new float[styleWeights.length + 1];
+        bottlenecks[0] = contentBottleneck;
+        weights[0] = 1f - strength;
+        for (int i = 0; i < styleBottlenecks.length; i++) {
+            bottlenecks[i + 1] = styleBottlenecks[i];
+            weights[i + 1] = styleTotal > 0f ? strength * styleWeights[i] / styleTotal : 0f;
+        }
+        timer.begin();
+        BottleneckBlender.blend(bottlenecks, weights, scratch, blendedBottleneck);
+        timer.end(PipelineMetrics.Stage.BLEND);
+
+        contentInput.rewind();
+        blendedBottleneck.rewind();
+        outputTensorBuffer.getBuffer().rewind();
+        inputs[0] = contentInput;
+        inputs[1] = blendedBottleneck;
+        outputs.put(0, outputTensorBuffer.getBuffer());
+        contentModel.run(inputs, outputs);
+        timer.end(PipelineMetrics.Stage.CONTENT_TRANSFER);
+
+        int[] outputShape = outputTensorBuffer.getShape();
+        Bitmap bitmap = TFImageUtils.convertTensorToBitmap(outputTensorBuffer.getBuffer(),
+                outputTensorBuffer.getDataType(), contentModel.getOutputQuantization(0),
+                outputShape[2], outputShape[1], outputBitmaps[outputBitmapIndex]);
+        outputBitmaps[outputBitmapIndex] = bitmap;
+        outputBitmapIndex = (outputBitmapIndex + 1) % OUTPUT_BITMAP_COUNT;
+        timer.end(PipelineMetrics.Stage.TENSOR_TO_BITMAP);
+        return bitmap;
+    }
+
+    @NonNull
+    public TFModel getContentModel() {
+        return contentModel;
+    }
+}
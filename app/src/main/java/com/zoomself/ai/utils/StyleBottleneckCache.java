@@ -0,0 +1,198 @@
+package com.zoomself.ai.utils;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 风格瓶颈向量缓存（style predict 模型输出的 (1,1,1,100)）
+ * <p>
+ * 两级缓存：内存 LRU + 磁盘原始 float 文件，key 由风格图片名称和模型 hash 组成，
+ * 命中时可以跳过风格图片解码、预处理以及 style predict 模型推理。
+ */
+public class StyleBottleneckCache {
+    private static final String TAG = "StyleBottleneckCache";
+    private static final String CACHE_DIR = "style_bottleneck";
+    private static final String FILE_SUFFIX = ".bin";
+    //风格图片预处理方式改变时加 1，旧的磁盘缓存自然失效
+    private static final int PREPROCESS_VERSION = 3;
+
+    private final LruCache<String, float[]> memoryCache;
+    private final File diskDir;
+
+    private final AtomicLong memoryHitCount = new AtomicLong();
+    private final AtomicLong diskHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public StyleBottleneckCache(@NonNull Context context, int maxMemoryEntries) {
+        this.memoryCache = new LruCache<>(maxMemoryEntries);
+        this.diskDir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!diskDir.exists() && !diskDir.mkdirs()) {
+            Log.w(TAG, "Unable to create cache dir: " + diskDir);
+        }
+    }
+
+    /**
+     * @param styleImageName assets/style_images 下的文件名
+     * @param modelHash      {@link TFModel#getModelHash()}
+     */
+    @NonNull
+    public static String key(@NonNull String styleImageName, @NonNull String modelHash) {
+        return styleImageName + "_" + modelHash + "_v" + PREPROCESS_VERSION;
+    }
+
+    /**
+     * 先查内存再查磁盘，磁盘命中会回填内存
+     *
+     * @param expectedLength 瓶颈向量的 float 个数，长度不符的缓存（写了一半的文件、模型输出变化）当作未命中并删除
+     */
+    @Nullable
+    public float[] get(@NonNull String key, int expectedLength) {
+        float[] bottleneck = memoryCache.get(key);
+        if (bottleneck != null) {
+            if (bottleneck.length == expectedLength) {
+                memoryHitCount.incrementAndGet();
+                return bottleneck;
+            }
+            memoryCache.remove(key);
+        }
+        bottleneck = readFromDisk(key, expectedLength);
+        if (bottleneck != null) {
+            diskHitCount.incrementAndGet();
+            memoryCache.put(key, bottleneck);
+            return bottleneck;
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 不计入命中统计，用于预热时判断是否需要计算
+     */
+    public boolean contains(@NonNull String key) {
+        return memoryCache.get(key) != null || diskFile(key).exists();
+    }
+
+    public void put(@NonNull String key, @NonNull float[] bottleneck) {
+        memoryCache.put(key, bottleneck);
+        writeToDisk(key, bottleneck);
+    }
+
+    public void clear() {
+        memoryCache.evictAll();
+        File[] files = diskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete: " + file);
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return memoryHitCount.get() + diskHitCount.get();
+    }
+
+    public long getMemoryHitCount() {
+        return memoryHitCount.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "StyleBottleneckCache{memoryHit=" + getMemoryHitCount()
+                + ", diskHit=" + getDiskHitCount()
+                + ", miss=" + getMissCount()
+                + ", memorySize=" + memoryCache.size() + "}";
+    }
+
+    private File diskFile(String key) {
+        return new File(diskDir, key.replaceAll("[^a-zA-Z0-9._-]", "_") + FILE_SUFFIX);
+    }
+
+    @Nullable
+    private float[] readFromDisk(String key, int expectedLength) {
+        File file = diskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(file);
+             FileChannel channel = inputStream.getChannel()) {
+            long expectedBytes = expectedLength * 4L;
+            if (expectedLength <= 0 || channel.size() != expectedBytes) {
+                Log.w(TAG, "Invalid bottleneck file size " + channel.size() + ", expected " + expectedBytes + ": " + file);
+                deleteFromDisk(file);
+                return null;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) expectedBytes);
+            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            while (byteBuffer.hasRemaining() && channel.read(byteBuffer) > 0) {
+                // 读满为止
+            }
+            if (byteBuffer.hasRemaining()) {
+                Log.w(TAG, "Truncated bottleneck file: " + file);
+                deleteFromDisk(file);
+                return null;
+            }
+            byteBuffer.flip();
+            float[] bottleneck = new float[expectedLength];
+            byteBuffer.asFloatBuffer().get(bottleneck);
+            return bottleneck;
+        } catch (IOException e) {
+            Log.w(TAG, "Read bottleneck failed: " + file, e);
+            deleteFromDisk(file);
+            return null;
+        }
+    }
+
+    /**
+     * 损坏的缓存文件删除后由下一次 {@link #put} 重新写入
+     */
+    private static void deleteFromDisk(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete: " + file);
+        }
+    }
+
+    private void writeToDisk(String key, float[] bottleneck) {
+        File file = diskFile(key);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ByteBuffer byteBuffer = ByteBuffer.allocate(bottleneck.length * 4);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.asFloatBuffer().put(bottleneck);
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile);
+             FileChannel channel = outputStream.getChannel()) {
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Write bottleneck failed: " + file, e);
+            return;
+        }
+        //先写临时文件再重命名，避免进程被杀时留下半个文件
+        if (!tmpFile.renameTo(file)) {
+            Log.w(TAG, "Rename bottleneck file failed: " + file);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.zoomself.ai.utils;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorPreprocessor;
+
+import org.tensorflow.lite.DataType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 风格图片仓库：解码好的 style predict 模型输入 tensor 常驻在 direct 内存里
+ * <p>
+ * 解码时先读取尺寸，用 inSampleSize 直接解码到不小于模型输入的尺寸，解码用的 Bitmap 通过 inBitmap 复用，
+ * 再用 {@link TensorPreprocessor} 居中裁剪、缩放成模型输入写入 slot。
+ * slot 用到时才分配，总字节数不超过 maxBytes，满了按 LRU 淘汰没有被 {@link #acquire(String)} 占用的 slot。
+ * 解码不持有仓库的锁，解码期间其他线程照常命中已有的风格。
+ * 选择风格用的缩略图直接从 tensor 生成，不需要再次解码图片。线程安全。
+ */
+public class StyleImageStore {
+    private static final String TAG = "StyleImageStore";
+
+    private final AssetManager assets;
+    private final String dir;
+    private final int width;
+    private final int height;
+    private final DataType dataType;
+    private final Quantization quantization;
+    private final int slotBytes;
+    private final int slotCount;
+    //已经分配的 slot 数，不超过 slotCount
+    private int allocatedSlots;
+    private final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+    //access order，最近使用的在最后
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private final TensorPreprocessor preprocessor;
+    private final LruCache<String, Bitmap> thumbnails;
+
+    //解码复用，只在 decodeLock 里使用
+    private final Object decodeLock = new Object();
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private Bitmap decodeBitmap;
+    private int[] decodePixels;
+
+    private int loadCount;
+    private int hitCount;
+    private int evictionCount;
+
+    /**
+     * @param inputShape 模型输入 shape (1,height,width,3)
+     * @param maxBytes   slot 占用的 direct 内存上限，至少能放下一张
+     */
+    public StyleImageStore(@NonNull AssetManager assets, @NonNull String dir, @NonNull int[] inputShape,
+                           @NonNull DataType dataType, long maxBytes) {
+        this(assets, dir, inputShape, dataType, Quantization.NONE, maxBytes);
+    }
+
+    /**
+     * @param quantization UINT8 模型输入的量化参数，见 {@link TFModel#getInputQuantization(int)}
+     */
+    public StyleImageStore(@NonNull AssetManager assets, @NonNull String dir, @NonNull int[] inputShape,
+                           @NonNull DataType dataType, @NonNull Quantization quantization, long maxBytes) {
+        if (inputShape.length != 4 || inputShape[3] != 3) {
+            throw new IllegalArgumentException("inputShape must be (1,height,width,3)");
+        }
+        this.assets = assets;
+        this.dir = dir;
+        this.height = inputShape[1];
+        this.width = inputShape[2];
+        this.dataType = dataType;
+        this.quantization = quantization;
+        this.slotBytes = width * height * 3 * dataType.byteSize();
+        this.slotCount = (int) Math.min(Integer.MAX_VALUE, maxBytes / slotBytes);
+        if (slotCount < 1) {
+            throw new IllegalArgumentException("maxBytes less than one tensor: " + slotBytes);
+        }
+        this.preprocessor = new TensorPreprocessor.Builder(width, height, TFImageUtils.toTensorType(dataType))
+                .setSampling(TensorPreprocessor.Sampling.BILINEAR)
+                .setQuantization(quantization)
+                .build();
+        this.thumbnails = new LruCache<String, Bitmap>((int) Math.min(Integer.MAX_VALUE, maxBytes / 4)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 获取风格图片的模型输入，不在内存中时解码，用完必须 {@link #release(StyleImage)}，占用期间不会被淘汰
+     */
+    @NonNull
+    public StyleImage acquire(@NonNull String styleImageName) throws IOException {
+        Slot slot;
+        synchronized (this) {
+            slot = slots.get(styleImageName);
+            if (slot != null) {
+                hitCount++;
+                slot.pinCount++;
+                return new StyleImage(styleImageName, slot);
+            }
+            //先占用一个 slot，不在 slots 里，解码期间不会被别人拿到或淘汰
+            slot = obtainSlot();
+        }
+        try {
+            synchronized (decodeLock) {
+                decodeInto(styleImageName, slot);
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                freeSlots.add(slot);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            //同一张图片同时未命中时会各自解码，只保留先发布的
+            Slot published = slots.get(styleImageName);
+            if (published != null) {
+                freeSlots.add(slot);
+                slot = published;
+            } else {
+                slots.put(styleImageName, slot);
+                loadCount++;
+            }
+            slot.pinCount++;
+            return new StyleImage(styleImageName, slot);
+        }
+    }
+
+    public synchronized void release(@NonNull StyleImage styleImage) {
+        if (styleImage.released) {
+            return;
+        }
+        styleImage.released = true;
+        styleImage.slot.pinCount--;
+    }
+
+    /**
+     * 选择风格用的缩略图，从模型输入 tensor 生成并缓存，不再解码原图
+     */
+    @NonNull
+    public Bitmap getThumbnail(@NonNull String styleImageName, int size) throws IOException {
+        String key = styleImageName + "@" + size;
+        Bitmap thumbnail = thumbnails.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        StyleImage styleImage = acquire(styleImageName);
+        Bitmap tensorBitmap;
+        try {
+            tensorBitmap = TFImageUtils.convertTensorToBitmap(styleImage.getBuffer(), dataType, quantization,
+                    width, height, null);
+        } finally {
+            release(styleImage);
+        }
+        if (size == width && size == height) {
+            thumbnail = tensorBitmap;
+        } else {
+            thumbnail = Bitmap.createScaledBitmap(tensorBitmap, size, size, true);
+            tensorBitmap.recycle();
+        }
+        thumbnails.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * assets 中所有风格图片的文件名
+     */
+    @NonNull
+    public String[] list() throws IOException {
+        String[] names = assets.list(dir);
+        return names != null ? names : new String[0];
+    }
+
+    /**
+     * 最多能常驻的风格数
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "StyleImageStore{resident=%d/%d, allocated=%d, hit=%d, load=%d, eviction=%d}",
+                slots.size(), slotCount, allocatedSlots, hitCount, loadCount, evictionCount);
+    }
+
+    private Slot obtainSlot() {
+        Slot slot = freeSlots.pollFirst();
+        if (slot != null) {
+            return slot;
+        }
+        if (allocatedSlots < slotCount) {
+            allocatedSlots++;
+            return new Slot();
+        }
+        Iterator<Map.Entry<String, Slot>> iterator = slots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Slot> eldest = iterator.next();
+            if (eldest.getValue().pinCount == 0) {
+                iterator.remove();
+                evictionCount++;
+                return eldest.getValue();
+            }
+        }
+        throw new IllegalStateException("all " + slotCount + " slots are in use");
+    }
+
+    private void decodeInto(String styleImageName, Slot slot) throws IOException {
+        String path = dir + "/" + styleImageName;
+        options.inJustDecodeBounds = true;
+        options.inSampleSize = 1;
+        options.inBitmap = null;
+        try (InputStream in = assets.open(path)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("can not decode " + path);
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        //inBitmap 的内存不小于解码结果时可以直接复用（API 19+）
+        options.inBitmap = decodeBitmap != null && !decodeBitmap.isRecycled() ? decodeBitmap : null;
+        Bitmap bitmap;
+        try (InputStream in = assets.open(path)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } catch (IllegalArgumentException e) {
+            //inBitmap 太小，重新分配
+            options.inBitmap = null;
+            try (InputStream in = assets.open(path)) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+        if (bitmap == null) {
+            throw new IOException("can not decode " + path);
+        }
+        if (bitmap != decodeBitmap) {
+            if (decodeBitmap != null) {
+                decodeBitmap.recycle();
+            }
+            decodeBitmap = bitmap;
+        }
+
+        int bitmapWidth = bitmap.getWidth();
+        int bitmapHeight = bitmap.getHeight();
+        if (decodePixels == null || decodePixels.length < bitmapWidth * bitmapHeight) {
+            decodePixels = new int[bitmapWidth * bitmapHeight];
+        }
+        bitmap.getPixels(decodePixels, 0, bitmapWidth, 0, 0, bitmapWidth, bitmapHeight);
+        ByteBuffer target = slot.view();
+        preprocessor.process(decodePixels, bitmapWidth, bitmapHeight, 0, target);
+        Log.d(TAG, "decode " + styleImageName + " " + options.outWidth + "x" + options.outHeight
+                + " inSampleSize=" + options.inSampleSize);
+    }
+
+    /**
+     * 最大的 2 的幂，使解码结果的短边仍然不小于模型输入
+     */
+    private int sampleSize(int imageWidth, int imageHeight) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private class Slot {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(slotBytes).order(ByteOrder.nativeOrder());
+        int pinCount;
+
+        ByteBuffer view() {
+            return buffer.duplicate().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * 风格图片的模型输入，{@link #getBuffer()} 可以直接传给 {@link TFModel#run(Object, Object)}
+     */
+    public static class StyleImage {
+        private final String name;
+        private final Slot slot;
+        private boolean released;
+
+        private StyleImage(String name, Slot slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * slot 的视图，position 为 0，每次调用返回新的视图；内容被多个调用方共享，不要写入
+         */
+        @NonNull
+        public ByteBuffer getBuffer() {
+            return slot.view();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.zoomself.ai.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.ModelGraph;
+import com.zoomself.ai.core.TensorType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 风格转换的模型图：style_image -> style_predict -> style_bottleneck，content_preprocess -> content_input，
+ * 两者 -> style_transfer -> stylized
+ * <p>
+ * style predict 和内容图预处理在同一层，并发执行；风格图片不变时 style predict 被 memoize 跳过，
+ * {@link StyleBottleneckCache} 命中时直接把缓存的风格瓶颈向量交给图，同样跳过 style predict，也不需要风格图片，
+ * 所以风格来回切换（A -> B -> A）或者预热过的风格都不会再运行 style predict。
+ * 风格图片的 tensor 从 {@link StyleImageStore} 取出并占用到切换风格为止。
+ * 新的模型链只需要照这个类声明节点和边，不需要复制 ViewModel 里的流程。
+ */
+public class StyleTransferGraph {
+    public static final String STYLE_IMAGE = "style_image";
+    public static final String STYLE_BOTTLENECK = "style_bottleneck";
+    public static final String CONTENT_INPUT = "content_input";
+    public static final String STYLIZED = "stylized";
+    public static final String NODE_STYLE_PREDICT = "style_predict";
+    public static final String NODE_CONTENT_PREPROCESS = "content_preprocess";
+    public static final String NODE_STYLE_TRANSFER = "style_transfer";
+
+    /**
+     * 把内容图写入 contentModel 的输入，在图的工作线程或调用 run 的线程上执行
+     */
+    public interface ContentLoader {
+        void load(@NonNull ByteBuffer out) throws Exception;
+    }
+
+    private final TFModel styleModel;
+    private final TFModel contentModel;
+    private final StyleImageStore styleImageStore;
+    @Nullable
+    private final StyleBottleneckCache bottleneckCache;
+    private final ModelGraph graph;
+    //缓存命中时交给图的风格瓶颈向量，复用同一块 buffer
+    private final ByteBuffer cachedBottleneck;
+    //同一层的第二个节点在这里执行，调用 run 的线程执行第一个
+    private final ExecutorService branchExecutor = Executors.newSingleThreadExecutor();
+    private ContentLoader contentLoader;
+    private StyleImageStore.StyleImage styleImage;
+
+    public StyleTransferGraph(@NonNull TFModel styleModel, @NonNull TFModel contentModel,
+                              @NonNull StyleImageStore styleImageStore) {
+        this(styleModel, contentModel, styleImageStore, null);
+    }
+
+    /**
+     * @param bottleneckCache 风格瓶颈向量缓存，style predict 的输出不是 FLOAT32 时不使用
+     */
+    public StyleTransferGraph(@NonNull TFModel styleModel, @NonNull TFModel contentModel,
+                              @NonNull StyleImageStore styleImageStore,
+                              @Nullable StyleBottleneckCache bottleneckCache) {
+        this.styleModel = styleModel;
+        this.contentModel = contentModel;
+        this.styleImageStore = styleImageStore;
+        this.bottleneckCache = styleModel.getOutputTensorType(0) == TensorType.FLOAT32 ? bottleneckCache : null;
+        this.cachedBottleneck = ByteBuffer.allocateDirect(ModelGraph.byteSize(styleModel.getOutputTensorShape(0),
+                styleModel.getOutputTensorType(0))).order(ByteOrder.nativeOrder());
+        int styleInputBytes = ModelGraph.byteSize(styleModel.getInputTensorShape(0), styleModel.getInputTensorType(0));
+        int contentInputBytes = ModelGraph.byteSize(contentModel.getInputTensorShape(0),
+                contentModel.getInputTensorType(0));
+        this.graph = new ModelGraph.Builder()
+                .input(STYLE_IMAGE, styleInputBytes)
+                .model(NODE_STYLE_PREDICT, styleModel, new String[]{STYLE_IMAGE}, new String[]{STYLE_BOTTLENECK}, true)
+                .op(NODE_CONTENT_PREPROCESS, new ModelGraph.Op() {
+                    @Override
+                    public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) throws Exception {
+                        contentLoader.load(outputs[0]);
+                    }
+                }, new String[0], new String[]{CONTENT_INPUT}, new int[]{contentInputBytes}, false)
+                .model(NODE_STYLE_TRANSFER, contentModel, new String[]{CONTENT_INPUT, STYLE_BOTTLENECK},
+                        new String[]{STYLIZED}, false)
+                .output(STYLIZED)
+                .output(STYLE_BOTTLENECK)
+                .build();
+    }
+
+    /**
+     * 运行整个图，同一时刻只能有一个 run
+     *
+     * @return contentModel 的输出 (1,h,w,3)，只读，下一次 run 之前有效
+     */
+    @NonNull
+    public ByteBuffer run(@NonNull String styleImageName, @NonNull ContentLoader contentLoader,
+                          @NonNull PipelineMetrics.Timer timer) throws IOException {
+        return run(styleImageName, contentLoader, timer, null);
+    }
+
+    /**
+     * 同 {@link #run(String, ContentLoader, PipelineMetrics.Timer)}，style predict / 预处理完成后已取消时不再运行 contentModel
+     *
+     * @throws java.util.concurrent.CancellationException 已取消
+     */
+    @NonNull
+    public synchronized ByteBuffer run(@NonNull String styleImageName, @NonNull ContentLoader contentLoader,
+                                       @NonNull PipelineMetrics.Timer timer,
+                                       @Nullable ModelGraph.CancellationSignal cancellation) throws IOException {
+        String cacheKey = bottleneckCache != null
+                ? StyleBottleneckCache.key(styleImageName, styleModel.getModelHash()) : null;
+        float[] cached = cacheKey != null ? bottleneckCache.get(cacheKey, cachedBottleneck.capacity() / 4) : null;
+        if (cached != null) {
+            cachedBottleneck.clear();
+            cachedBottleneck.asFloatBuffer().put(cached);
+            graph.provide(STYLE_BOTTLENECK, cachedBottleneck);
+        } else {
+            graph.provide(STYLE_BOTTLENECK, null);
+        }
+        if (cached == null && (styleImage == null || !styleImage.getName().equals(styleImageName))) {
+            StyleImageStore.StyleImage next = styleImageStore.acquire(styleImageName);
+            if (styleImage != null) {
+                styleImageStore.release(styleImage);
+            }
+            styleImage = next;
+            graph.setInput(STYLE_IMAGE, next.getBuffer());
+        }
+        this.contentLoader = contentLoader;
+        long predictRuns = graph.getNodeRunCount(NODE_STYLE_PREDICT);
+        try {
+            graph.run(branchExecutor, cancellation);
+        } finally {
+            this.contentLoader = null;
+        }
+        //style predict 和预处理并发执行，耗时按节点分别记录
+        if (graph.getNodeRunCount(NODE_STYLE_PREDICT) != predictRuns) {
+            timer.add(PipelineMetrics.Stage.STYLE_PREDICT, graph.getNodeNanos(NODE_STYLE_PREDICT));
+            if (cacheKey != null) {
+                float[] bottleneck = new float[cachedBottleneck.capacity() / 4];
+                graph.getOutput(STYLE_BOTTLENECK).asFloatBuffer().get(bottleneck);
+                bottleneckCache.put(cacheKey, bottleneck);
+            }
+        }
+        timer.add(PipelineMetrics.Stage.CONTENT_TRANSFER, graph.getNodeNanos(NODE_STYLE_TRANSFER));
+        return graph.getOutput(STYLIZED);
+    }
+
+    @NonNull
+    public TFModel getContentModel() {
+        return contentModel;
+    }
+
+    public synchronized void close() {
+        branchExecutor.shutdown();
+        if (styleImage != null) {
+            styleImageStore.release(styleImage);
+            styleImage = null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return graph.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package com.zoomself.ai.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 实时风格转换，作为 {@link ImageAnalysis.Analyzer} 接收相机帧
+ * <p>
+ * 两级流水线：analyze 线程把 YUV 帧直接转换到输入 buffer 后立即关闭帧，交给推理线程；
+ * 推理线程处理第 N 帧时 analyze 线程已经在预处理第 N+1 帧。中间只保留一帧待处理，
+ * 推理跟不上时旧的待处理帧被丢弃，保证显示的总是最新画面。
+ * <p>
+ * 只能 start 一次，{@link #stop()} 之后推理线程退出时通过 {@link OnTerminatedListener} 归还 contentModel。
+ */
+public class StyleTransferStream implements ImageAnalysis.Analyzer {
+    private static final String TAG = "StyleTransferStream";
+    //用最近多少帧计算帧率
+    private static final int FPS_WINDOW = 30;
+    //结果 Bitmap 轮流复用的数量，UI 还在显示上一帧时不会被覆盖
+    private static final int OUTPUT_BITMAP_COUNT = 3;
+
+    public interface Listener {
+        /**
+         * 在推理线程回调，持有内部锁，只做发布结果之类的轻量工作；{@link #stop()} 返回后不会再回调。
+         * styledBitmap 在之后的帧中会被复用（3 个轮流使用），需要长期保存时自己复制
+         *
+         * @param latencyNanos 从收到相机帧到得到结果的耗时
+         */
+        void onFrame(@NonNull Bitmap styledBitmap, long latencyNanos, float fps, long droppedFrames);
+
+        /**
+         * 推理失败，流已经停止（Interpreter 出错后之后的帧也会失败），在推理线程回调一次；{@link #stop()} 之后不会回调
+         */
+        void onError(@NonNull RuntimeException e);
+    }
+
+    /**
+     * 推理线程退出后（或者没有 start 就 stop 时）回调一次，之后不再使用 contentModel，
+     * 可以在这里归还借用的模型，例如 {@link ContentModelVariants#release(TFModel)}
+     */
+    public interface OnTerminatedListener {
+        void onTerminated(@NonNull TFModel contentModel);
+    }
+
+    private final TFModel contentModel;
+    private final Listener listener;
+    private final OnTerminatedListener onTerminatedListener;
+    //两个 entry：一个在推理，一个在预处理
+    private final TensorBufferPool inputPool;
+    private final TensorBuffer outputTensorBuffer;
+    private final Object[] inputs = new Object[2];
+    private final Map<Integer, Object> outputs = new HashMap<>();
+    //只在推理线程访问
+    private final Bitmap[] outputBitmaps = new Bitmap[OUTPUT_BITMAP_COUNT];
+    private int outputBitmapIndex;
+
+    private final Object lock = new Object();
+    private PendingFrame pendingFrame;
+    private volatile ByteBuffer styleBottleneck;
+    //推理线程的执行体，完成表示线程已经退出并且 contentModel 已经归还
+    private FutureTask<Void> inferenceTask;
+    private volatile boolean running;
+    private boolean stopped;
+
+    private final long[] resultTimes = new long[FPS_WINDOW];
+    private int resultCount;
+    private long droppedFrames;
+
+    /**
+     * @param onTerminatedListener 为空时 contentModel 由调用方自己管理，需要等 {@link #stop()} 返回的 Future 完成后再关闭
+     */
+    public StyleTransferStream(@NonNull TFModel contentModel, @NonNull ByteBuffer styleBottleneck,
+                               @NonNull Listener listener, @Nullable OnTerminatedListener onTerminatedListener) {
+        this.contentModel = contentModel;
+        this.listener = listener;
+        this.onTerminatedListener = onTerminatedListener;
+        this.inputPool = TensorBufferPool.forModelInput(contentModel, 0, 2);
+        this.outputTensorBuffer = TensorBuffer.createFixedSize(contentModel.getOutputTensorShape(0),
+                contentModel.getOutputTensorDataType(0));
+        setStyleBottleneck(styleBottleneck);
+    }
+
+    /**
+     * 切换风格，下一帧生效
+     */
+    public void setStyleBottleneck(@NonNull ByteBuffer styleBottleneck) {
+        this.styleBottleneck = styleBottleneck.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @throws IllegalStateException 已经 stop
+     */
+    public void start() {
+        synchronized (lock) {
+            if (stopped) {
+                throw new IllegalStateException("stream stopped");
+            }
+            if (running) {
+                return;
+            }
+            running = true;
+            resultCount = 0;
+            droppedFrames = 0;
+            inferenceTask = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        inferenceLoop();
+                    } finally {
+                        terminate();
+                    }
+                }
+            }, null);
+            new Thread(inferenceTask, TAG).start();
+        }
+    }
+
+    /**
+     * 停止接收相机帧，不等待正在进行的推理（TFLite 的 Interpreter 不能中途取消），返回后不会再回调 {@link Listener#onFrame}。
+     * 可以重复调用
+     *
+     * @return 推理线程退出、contentModel 归还后完成，等待它之后才能关闭 contentModel
+     */
+    @NonNull
+    public Future<?> stop() {
+        FutureTask<Void> task;
+        boolean started;
+        synchronized (lock) {
+            running = false;
+            stopped = true;
+            if (pendingFrame != null) {
+                inputPool.release(pendingFrame.entry);
+                pendingFrame = null;
+            }
+            lock.notifyAll();
+            started = inferenceTask != null;
+            if (!started) {
+                inferenceTask = new FutureTask<>(new Runnable() {
+                    @Override
+                    public void run() {
+                        terminate();
+                    }
+                }, null);
+            }
+            task = inferenceTask;
+        }
+        if (!started) {
+            //没有启动过推理线程，在这里归还
+            task.run();
+        }
+        return task;
+    }
+
+    private void terminate() {
+        if (onTerminatedListener != null) {
+            onTerminatedListener.onTerminated(contentModel);
+        }
+    }
+
+    @Override
+    public void analyze(@NonNull ImageProxy image) {
+        long receivedNanos = System.nanoTime();
+        if (!running || image.getFormat() != ImageFormat.YUV_420_888) {
+            image.close();
+            return;
+        }
+        TensorBufferPool.Entry entry = inputPool.acquire();
+        try {
+            entry.load(image);
+        } finally {
+            //尽快归还相机帧，相机才能继续产出下一帧
+            image.close();
+        }
+        synchronized (lock) {
+            if (!running) {
+                inputPool.release(entry);
+                return;
+            }
+            if (pendingFrame != null) {
+                //推理线程还没取走上一帧，丢掉旧的
+                inputPool.release(pendingFrame.entry);
+                droppedFrames++;
+            }
+            pendingFrame = new PendingFrame(entry, receivedNanos);
+            lock.notifyAll();
+        }
+    }
+
+    private void inferenceLoop() {
+        while (true) {
+            PendingFrame frame;
+            synchronized (lock) {
+                while (running && pendingFrame == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                frame = pendingFrame;
+                pendingFrame = null;
+            }
+
+            try {
+                ByteBuffer bottleneck = styleBottleneck.duplicate();
+                bottleneck.rewind();
+                inputs[0] = frame.entry.getBuffer();
+                inputs[1] = bottleneck;
+                outputTensorBuffer.getBuffer().rewind();
+                outputs.put(0, outputTensorBuffer.getBuffer());
+                contentModel.run(inputs, outputs);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "inference failed", e);
+                synchronized (lock) {
+                    if (running) {
+                        running = false;
+                        stopped = true;
+                        if (pendingFrame != null) {
+                            inputPool.release(pendingFrame.entry);
+                            pendingFrame = null;
+                        }
+                        listener.onError(e);
+                    }
+                }
+                return;
+            } finally {
+                frame.entry.getBuffer().rewind();
+                inputPool.release(frame.entry);
+            }
+
+            int[] outputShape = outputTensorBuffer.getShape();
+            Bitmap styledBitmap = TFImageUtils.convertTensorToBitmap(outputTensorBuffer.getBuffer(),
+                    outputTensorBuffer.getDataType(), contentModel.getOutputQuantization(0),
+                    outputShape[2], outputShape[1], outputBitmaps[outputBitmapIndex]);
+            outputBitmaps[outputBitmapIndex] = styledBitmap;
+            outputBitmapIndex = (outputBitmapIndex + 1) % OUTPUT_BITMAP_COUNT;
+            long now = System.nanoTime();
+            //在锁内回调：stop 拿到锁之后 running 已经是 false，不会再有结果发出
+            synchronized (lock) {
+                if (!running) {
+                    return;
+                }
+                resultTimes[resultCount % FPS_WINDOW] = now;
+                resultCount++;
+                int window = Math.min(resultCount, FPS_WINDOW);
+                long oldest = resultTimes[(resultCount - window) % FPS_WINDOW];
+                float fps = window > 1 ? (window - 1) * 1e9f / (now - oldest) : 0f;
+                listener.onFrame(styledBitmap, now - frame.receivedNanos, fps, droppedFrames);
+            }
+        }
+    }
+
+    private static class PendingFrame {
+        final TensorBufferPool.Entry entry;
+        final long receivedNanos;
+
+        PendingFrame(TensorBufferPool.Entry entry, long receivedNanos) {
+            this.entry = entry;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
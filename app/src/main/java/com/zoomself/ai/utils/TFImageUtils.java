@@ -3,7 +3,6 @@ package com.zoomself.ai.utils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Rect;
@@ -17,46 +16,28 @@ import androidx.annotation.Nullable;
 import androidx.camera.core.ImageProxy;
 import androidx.camera.core.impl.ImageOutputConfig.RotationValue;
 
+import com.zoomself.ai.core.ByteArrayPool;
+import com.zoomself.ai.core.ImageKernels;
+import com.zoomself.ai.core.PooledByteArrayOutputStream;
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorToPixelsConverter;
+import com.zoomself.ai.core.TensorType;
+
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Utility class for image related operations.
  */
 public class TFImageUtils {
-    // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
-    // are normalized to eight bits.
-    static final int kMaxChannelValue = 262143;
-
-    private static int YUV2RGB(int y, int u, int v) {
-        // Adjust and check YUV values
-        y = (y - 16) < 0 ? 0 : (y - 16);
-        u -= 128;
-        v -= 128;
-
-        // This is the floating point equivalent. We do the conversion in integer
-        // because some Android devices do not have floating point in hardware.
-        // nR = (int)(1.164 * nY + 2.018 * nU);
-        // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-        // nB = (int)(1.164 * nY + 1.596 * nV);
-        int y1192 = 1192 * y;
-        int r = (y1192 + 1634 * v);
-        int g = (y1192 - 833 * v - 400 * u);
-        int b = (y1192 + 2066 * u);
-
-        // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
-        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
-        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
-
-        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-    }
-
+    /**
+     * 单线程标量实现，整帧转换用 {@link com.zoomself.ai.core.YuvToArgbConverter}，输出逐位一致
+     */
     public static void convertYUV420ToARGB8888(
             byte[] yData,
             byte[] uData,
@@ -67,21 +48,21 @@ public class TFImageUtils {
             int uvRowStride,
             int uvPixelStride,
             int[] out) {
-        int yp = 0;
-        for (int j = 0; j < height; j++) {
-            int pY = yRowStride * j;
-            int pUV = uvRowStride * (j >> 1);
-
-            for (int i = 0; i < width; i++) {
-                int uv_offset = pUV + (i >> 1) * uvPixelStride;
-
-                out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
-            }
-        }
+        ImageKernels.convertYUV420ToARGB8888(yData, uData, vData, width, height,
+                yRowStride, uvRowStride, uvPixelStride, out);
     }
 
 
     private static final String TAG = "ImageUtil";
+    //NV21 / JPEG 临时数组池，连续预览时每帧大小相同，预热之后转换过程不再分配
+    private static final ByteArrayPool BYTE_ARRAY_POOL = new ByteArrayPool(32 * 1024 * 1024);
+    //1080p 的 JPEG 质量 100 大约 1MB
+    private static final int JPEG_INITIAL_CAPACITY = 1024 * 1024;
+    //模型输出转 Bitmap 的并行转换，Android 上 ForkJoinPool.commonPool() 需要 API 24，这里自己创建
+    private static final TensorToPixelsConverter TENSOR_TO_PIXELS =
+            new TensorToPixelsConverter(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    //copyPixelsFromBuffer 用的 RGBA 像素 buffer，每个线程一个
+    private static final ThreadLocal<ByteBuffer> PIXEL_BUFFER = new ThreadLocal<>();
 
     private TFImageUtils() {
     }
@@ -92,15 +73,48 @@ public class TFImageUtils {
     @Nullable
     public static byte[] imageToJpegByteArray(@NonNull ImageProxy image)
             throws TFImageUtils.CodecFailedException {
-        byte[] data = null;
+        PooledByteArrayOutputStream out = newPooledOutputStream();
+        try {
+            return imageToJpeg(image, out) ? out.toByteArray() : null;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * {@link android.media.Image} to JPEG，结果写入 out（会先 reset），
+     * JPEG 数据是 out.getBuffer() 的 [0, out.size())，不复制
+     *
+     * @return 不支持的格式返回 false
+     */
+    public static boolean imageToJpeg(@NonNull ImageProxy image, @NonNull PooledByteArrayOutputStream out)
+            throws TFImageUtils.CodecFailedException {
+        out.reset();
         if (image.getFormat() == ImageFormat.JPEG) {
-            data = jpegImageToJpegByteArray(image);
+            jpegImageToJpeg(image, out);
         } else if (image.getFormat() == ImageFormat.YUV_420_888) {
-            data = yuvImageToJpegByteArray(image);
+            yuvImageToJpeg(image, out);
         } else {
             Log.w(TAG, "Unrecognized image format: " + image.getFormat());
+            return false;
         }
-        return data;
+        return true;
+    }
+
+    /**
+     * 从共享的数组池借一个 JPEG 输出流，用完要 close
+     */
+    @NonNull
+    public static PooledByteArrayOutputStream newPooledOutputStream() {
+        return new PooledByteArrayOutputStream(BYTE_ARRAY_POOL, JPEG_INITIAL_CAPACITY);
+    }
+
+    /**
+     * NV21 / JPEG 数组池，可以查看使用量和命中率
+     */
+    @NonNull
+    public static ByteArrayPool getByteArrayPool() {
+        return BYTE_ARRAY_POOL;
     }
 
     /**
@@ -113,9 +127,24 @@ public class TFImageUtils {
             return data;
         }
 
+        PooledByteArrayOutputStream out = newPooledOutputStream();
+        try {
+            cropByteArray(data, data.length, cropRect, out);
+            return out.toByteArray();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Crops JPEG data[0, length) with given {@link Rect}, re-encoded JPEG is written to out.
+     */
+    public static void cropByteArray(@NonNull byte[] data, int length, @NonNull Rect cropRect,
+                                     @NonNull PooledByteArrayOutputStream out)
+            throws TFImageUtils.CodecFailedException {
         Bitmap bitmap = null;
         try {
-            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length,
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, length,
                     false);
             bitmap = decoder.decodeRegion(cropRect, new BitmapFactory.Options());
             decoder.recycle();
@@ -132,15 +161,13 @@ public class TFImageUtils {
                     TFImageUtils.CodecFailedException.FailureType.DECODE_FAILED);
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.reset();
         boolean success = bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+        bitmap.recycle();
         if (!success) {
             throw new TFImageUtils.CodecFailedException("Encode bitmap failed.",
                     TFImageUtils.CodecFailedException.FailureType.ENCODE_FAILED);
         }
-        bitmap.recycle();
-
-        return out.toByteArray();
     }
 
     /**
@@ -210,9 +237,9 @@ public class TFImageUtils {
         return rational;
     }
 
-    private static byte[] nv21ToJpeg(byte[] nv21, int width, int height, @Nullable Rect cropRect)
+    private static void nv21ToJpeg(byte[] nv21, int width, int height, @Nullable Rect cropRect,
+                                   PooledByteArrayOutputStream out)
             throws TFImageUtils.CodecFailedException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
         boolean success =
                 yuv.compressToJpeg(
@@ -221,59 +248,23 @@ public class TFImageUtils {
             throw new TFImageUtils.CodecFailedException("YuvImage failed to encode jpeg.",
                     TFImageUtils.CodecFailedException.FailureType.ENCODE_FAILED);
         }
-        return out.toByteArray();
     }
 
+    /**
+     * 返回的数组来自 {@link #BYTE_ARRAY_POOL}，可能比 NV21 数据长，用完要归还
+     */
     private static byte[] yuv_420_888toNv21(ImageProxy image) {
         ImageProxy.PlaneProxy yPlane = image.getPlanes()[0];
         ImageProxy.PlaneProxy uPlane = image.getPlanes()[1];
         ImageProxy.PlaneProxy vPlane = image.getPlanes()[2];
 
-        ByteBuffer yBuffer = yPlane.getBuffer();
-        ByteBuffer uBuffer = uPlane.getBuffer();
-        ByteBuffer vBuffer = vPlane.getBuffer();
-        yBuffer.rewind();
-        uBuffer.rewind();
-        vBuffer.rewind();
-
-        int ySize = yBuffer.remaining();
-
-        int position = 0;
-        // TODO(b/115743986): Pull these bytes from a pool instead of allocating for every image.
-        byte[] nv21 = new byte[ySize + (image.getWidth() * image.getHeight() / 2)];
-
-        // Add the full y buffer to the array. If rowStride > 1, some padding may be skipped.
-        for (int row = 0; row < image.getHeight(); row++) {
-            yBuffer.get(nv21, position, image.getWidth());
-            position += image.getWidth();
-            yBuffer.position(
-                    Math.min(ySize, yBuffer.position() - image.getWidth() + yPlane.getRowStride()));
-        }
-
-        int chromaHeight = image.getHeight() / 2;
-        int chromaWidth = image.getWidth() / 2;
-        int vRowStride = vPlane.getRowStride();
-        int uRowStride = uPlane.getRowStride();
-        int vPixelStride = vPlane.getPixelStride();
-        int uPixelStride = uPlane.getPixelStride();
-
-        // Interleave the u and v frames, filling up the rest of the buffer. Use two line buffers to
-        // perform faster bulk gets from the byte buffers.
-        byte[] vLineBuffer = new byte[vRowStride];
-        byte[] uLineBuffer = new byte[uRowStride];
-        for (int row = 0; row < chromaHeight; row++) {
-            vBuffer.get(vLineBuffer, 0, Math.min(vRowStride, vBuffer.remaining()));
-            uBuffer.get(uLineBuffer, 0, Math.min(uRowStride, uBuffer.remaining()));
-            int vLineBufferPosition = 0;
-            int uLineBufferPosition = 0;
-            for (int col = 0; col < chromaWidth; col++) {
-                nv21[position++] = vLineBuffer[vLineBufferPosition];
-                nv21[position++] = uLineBuffer[uLineBufferPosition];
-                vLineBufferPosition += vPixelStride;
-                uLineBufferPosition += uPixelStride;
-            }
-        }
-
+        byte[] nv21 = BYTE_ARRAY_POOL.acquire(ImageKernels.nv21Size(image.getWidth(), image.getHeight()));
+        ImageKernels.yuv420ToNv21(
+                yPlane.getBuffer(), uPlane.getBuffer(), vPlane.getBuffer(),
+                image.getWidth(), image.getHeight(),
+                yPlane.getRowStride(), uPlane.getRowStride(), vPlane.getRowStride(),
+                uPlane.getPixelStride(), vPlane.getPixelStride(),
+                nv21);
         return nv21;
     }
 
@@ -303,25 +294,38 @@ public class TFImageUtils {
         return !targetSize.equals(sourceSize);
     }
 
-    private static byte[] jpegImageToJpegByteArray(ImageProxy image) throws TFImageUtils.CodecFailedException {
+    private static void jpegImageToJpeg(ImageProxy image, PooledByteArrayOutputStream out)
+            throws TFImageUtils.CodecFailedException {
         ImageProxy.PlaneProxy[] planes = image.getPlanes();
-        ByteBuffer buffer = planes[0].getBuffer();
-        byte[] data = new byte[buffer.capacity()];
-        buffer.rewind();
-        buffer.get(data);
-        if (shouldCropImage(image)) {
-            data = cropByteArray(data, image.getCropRect());
+        ByteBuffer buffer = planes[0].getBuffer().duplicate();
+        buffer.clear();
+        if (!shouldCropImage(image)) {
+            out.write(buffer);
+            return;
+        }
+        int length = buffer.remaining();
+        byte[] data = BYTE_ARRAY_POOL.acquire(length);
+        try {
+            buffer.get(data, 0, length);
+            cropByteArray(data, length, image.getCropRect(), out);
+        } finally {
+            BYTE_ARRAY_POOL.release(data);
         }
-        return data;
     }
 
-    private static byte[] yuvImageToJpegByteArray(ImageProxy image)
+    private static void yuvImageToJpeg(ImageProxy image, PooledByteArrayOutputStream out)
             throws TFImageUtils.CodecFailedException {
-        return TFImageUtils.nv21ToJpeg(
-                TFImageUtils.yuv_420_888toNv21(image),
-                image.getWidth(),
-                image.getHeight(),
-                shouldCropImage(image) ? image.getCropRect() : null);
+        byte[] nv21 = TFImageUtils.yuv_420_888toNv21(image);
+        try {
+            TFImageUtils.nv21ToJpeg(
+                    nv21,
+                    image.getWidth(),
+                    image.getHeight(),
+                    shouldCropImage(image) ? image.getCropRect() : null,
+                    out);
+        } finally {
+            BYTE_ARRAY_POOL.release(nv21);
+        }
     }
 
     /**
@@ -399,11 +403,12 @@ public class TFImageUtils {
         ByteBuffer byteBuffer = ByteBuffer.allocate(tensorBufferWidth * tensorBufferHeight * tensorBufferChannel * dataType.byteSize());
         byteBuffer.order(ByteOrder.nativeOrder());//不能省略
         byteBuffer.rewind();
-        if (dataType == DataType.UINT8) {//这一段要是不行可以参考ImageConversions convertBitmapToTensorBuffer函数修改
+        if (dataType == DataType.UINT8) {
+            //每个通道 1 个字节，buffer 是按 dataType.byteSize() 分配的，不能用 putInt
             for (int pixel : PixelValues) {
-                byteBuffer.putInt(pixel >> 16 & 255);
-                byteBuffer.putInt(pixel >> 8 & 255);
-                byteBuffer.putInt(pixel & 255);
+                byteBuffer.put((byte) (pixel >> 16 & 255));
+                byteBuffer.put((byte) (pixel >> 8 & 255));
+                byteBuffer.put((byte) (pixel & 255));
             }
 
         } else {
@@ -418,7 +423,133 @@ public class TFImageUtils {
         tensorBuffer.loadBuffer(byteBuffer);
     }
 
+    /**
+     * 把 ARGB 像素按 RGB 顺序写入 out（从当前 position 开始），不做任何分配
+     * UINT8 每个通道写 1 个字节，FLOAT32 归一化到【0,1】
+     */
+    public static void convertPixelsToByteBuffer(int[] pixels, int pixelCount, DataType dataType, ByteBuffer out) {
+        convertPixelsToByteBuffer(pixels, pixelCount, dataType, Quantization.NONE, out);
+    }
+
+    /**
+     * 同上，UINT8 按模型输入的量化参数写入，见 {@link TFModel#getInputQuantization(int)}
+     */
+    public static void convertPixelsToByteBuffer(int[] pixels, int pixelCount, DataType dataType,
+                                                 @NonNull Quantization quantization, ByteBuffer out) {
+        ImageKernels.argbToTensor(pixels, pixelCount, toTensorType(dataType), quantization, out);
+    }
+
+    /**
+     * 转换为和 Android 无关的 {@link TensorType}，core 模块的内核只支持 UINT8 和 FLOAT32
+     */
+    @NonNull
+    public static TensorType toTensorType(@NonNull DataType dataType) {
+        if (dataType == DataType.UINT8) {
+            return TensorType.UINT8;
+        } else if (dataType == DataType.FLOAT32) {
+            return TensorType.FLOAT32;
+        }
+        throw new IllegalArgumentException("unsupported dataType: " + dataType);
+    }
+
+    /**
+     * YUV_420_888 {@link ImageProxy} 直接写入模型输入，见
+     * {@link #convertYUV420ToTensor(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, int, int, int, int, int, int, int, DataType, ByteBuffer)}
+     * 裁剪区域使用 image.getCropRect()，旋转使用 imageInfo.getRotationDegrees()
+     */
+    public static void convertYUV420ToTensor(@NonNull ImageProxy image, int outWidth, int outHeight,
+                                             @NonNull DataType dataType, @NonNull ByteBuffer out) {
+        convertYUV420ToTensor(image, outWidth, outHeight, dataType, Quantization.NONE, out);
+    }
+
+    /**
+     * 同上，UINT8 按模型输入的量化参数写入，见 {@link TFModel#getInputQuantization(int)}
+     */
+    public static void convertYUV420ToTensor(@NonNull ImageProxy image, int outWidth, int outHeight,
+                                             @NonNull DataType dataType, @NonNull Quantization quantization,
+                                             @NonNull ByteBuffer out) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported image format: " + image.getFormat());
+        }
+        ImageProxy.PlaneProxy yPlane = image.getPlanes()[0];
+        ImageProxy.PlaneProxy uPlane = image.getPlanes()[1];
+        ImageProxy.PlaneProxy vPlane = image.getPlanes()[2];
+        Rect cropRect = image.getCropRect();
+        convertYUV420ToTensor(
+                yPlane.getBuffer(), uPlane.getBuffer(), vPlane.getBuffer(),
+                yPlane.getRowStride(), uPlane.getRowStride(), uPlane.getPixelStride(),
+                image.getWidth(), image.getHeight(),
+                cropRect.left, cropRect.top, cropRect.width(), cropRect.height(),
+                image.getImageInfo().getRotationDegrees(),
+                outWidth, outHeight, dataType, quantization, out);
+    }
+
+    /**
+     * YUV420 三个平面单次遍历写入模型输入 buffer，替代 NV21 -> JPEG -> Bitmap -> 裁剪/缩放/旋转 -> tensor
+     * <p>
+     * 在裁剪区域中心取最大正方形，顺时针旋转 rotationDegrees（和 Rot90Op(-rotationDegrees / 90) 一致），
+     * 最近邻缩放到 outWidth x outHeight，按 RGB 顺序写入 out 的当前 position。
+     * UINT8 每个通道写 1 个字节，FLOAT32 归一化到【0,1】。只使用绝对位置读取平面数据，不修改平面 buffer 的状态，也不做任何分配。
+     */
+    public static void convertYUV420ToTensor(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int width,
+            int height,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int rotationDegrees,
+            int outWidth,
+            int outHeight,
+            DataType dataType,
+            ByteBuffer out) {
+        convertYUV420ToTensor(yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride,
+                width, height, cropLeft, cropTop, cropWidth, cropHeight, rotationDegrees,
+                outWidth, outHeight, dataType, Quantization.NONE, out);
+    }
+
+    public static void convertYUV420ToTensor(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int width,
+            int height,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int rotationDegrees,
+            int outWidth,
+            int outHeight,
+            DataType dataType,
+            Quantization quantization,
+            ByteBuffer out) {
+        ImageKernels.yuv420ToTensor(yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride,
+                width, height, cropLeft, cropTop, cropWidth, cropHeight, rotationDegrees,
+                outWidth, outHeight, toTensorType(dataType), quantization, out);
+    }
+
     public static Bitmap convertTensorBufferToBitmap(TensorBuffer buffer) {
+        return convertTensorBufferToBitmap(buffer, null);
+    }
+
+    /**
+     * 模型输出 tensor 直接转换到 Bitmap 的像素内存：行带并行、每个通道截断到【0,255】，
+     * 不复制 tensor，也不经过 int[] 和 setPixels
+     *
+     * @param reuse 尺寸一致、ARGB_8888 且可修改时直接写入并返回，否则新建 Bitmap
+     */
+    @NonNull
+    public static Bitmap convertTensorBufferToBitmap(TensorBuffer buffer, @Nullable Bitmap reuse) {
         if (buffer == null) {
             throw new IllegalArgumentException("tensorBuffer can not be null");
         }
@@ -426,48 +557,42 @@ public class TFImageUtils {
         if (shape.length != 4) {
             throw new IllegalArgumentException("tensorBuffer shape length must is 4");
         }
-        int h = shape[1];
-        int w = shape[2];
-        int[] pixelValues = new int[w * h];
+        return convertTensorToBitmap(buffer.getBuffer(), buffer.getDataType(), shape[2], shape[1], reuse);
+    }
 
-        DataType dataType = buffer.getDataType();
-        if (dataType == DataType.UINT8) {
-            int[] rgbValues = buffer.getIntArray();
-            int i = 0;
-            for (int var8 = 0; i < pixelValues.length; ++i) {
-                int r = rgbValues[var8++];
-                int g = rgbValues[var8++];
-                int b = rgbValues[var8++];
-                pixelValues[i] = Color.rgb(r, g, b);
-            }
-        } else if (dataType == DataType.FLOAT32) {
-            float[] rgbValues = buffer.getFloatArray();
-            int i = 0;
-            for (int var8 = 0; i < pixelValues.length; ++i) {
-                float r = rgbValues[var8++];
-                float g = rgbValues[var8++];
-                float b = rgbValues[var8++];
-                pixelValues[i] = rgb(r, g, b);
-            }
-        }
-        Bitmap bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixelValues, 0, w, 0, 0, w, h);
-        return bitmap;
+    /**
+     * 同 {@link #convertTensorBufferToBitmap(TensorBuffer, Bitmap)}，直接读取 (1,h,w,3) 的 tensor 内存
+     */
+    @NonNull
+    public static Bitmap convertTensorToBitmap(@NonNull ByteBuffer tensor, @NonNull DataType dataType, int w, int h,
+                                               @Nullable Bitmap reuse) {
+        return convertTensorToBitmap(tensor, dataType, Quantization.NONE, w, h, reuse);
     }
 
     /**
-     * 针对于float类型颜色值转换
-     *
-     * @param red
-     * @param green
-     * @param blue
-     * @return
+     * 同上，UINT8 按模型输出的量化参数反量化，见 {@link TFModel#getOutputQuantization(int)}
      */
-    private static int rgb(float red, float green, float blue) {
-        return 0xff000000 |
-                ((int) (red * 255.0f + 0.5f) << 16) |
-                ((int) (green * 255.0f + 0.5f) << 8) |
-                (int) (blue * 255.0f + 0.5f);
+    @NonNull
+    public static Bitmap convertTensorToBitmap(@NonNull ByteBuffer tensor, @NonNull DataType dataType,
+                                               @NonNull Quantization quantization, int w, int h,
+                                               @Nullable Bitmap reuse) {
+        Bitmap bitmap = reuse;
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getWidth() != w
+                || bitmap.getHeight() != h || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        }
+        ByteBuffer pixelBuffer = PIXEL_BUFFER.get();
+        if (pixelBuffer == null || pixelBuffer.capacity() < w * h * 4) {
+            pixelBuffer = ByteBuffer.allocateDirect(w * h * 4).order(ByteOrder.nativeOrder());
+            PIXEL_BUFFER.set(pixelBuffer);
+        }
+        pixelBuffer.clear();
+        TENSOR_TO_PIXELS.convert(tensor, toTensorType(dataType), quantization, w, h,
+                pixelBuffer.asIntBuffer(), TensorToPixelsConverter.PixelFormat.RGBA);
+        pixelBuffer.limit(w * h * 4);
+        bitmap.copyPixelsFromBuffer(pixelBuffer);
+        return bitmap;
     }
 
+
 }
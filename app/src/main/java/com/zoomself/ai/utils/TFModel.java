@@ -6,27 +6,69 @@
 package com.zoomself.ai.utils;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.InferenceModel;
+import com.zoomself.ai.core.ModelFile;
+import com.zoomself.ai.core.ModelTuner;
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorType;
 
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Interpreter.Options;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.GpuDelegate;
-import org.tensorflow.lite.support.common.FileUtil;
 import org.tensorflow.lite.support.common.SupportPreconditions;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * TFLite Interpreter 对 {@link InferenceModel} 的实现，模型文件的加载和 hash 见 {@link ModelFile}
+ */
+public class TFModel implements InferenceModel {
+    private static final String TAG = "TFModel";
 
-public class TFModel {
-    private final Interpreter interpreter;
+    //close 后为 null
+    private Interpreter interpreter;
     private final String modelPath;
     private final MappedByteBuffer byteModel;
-    private final GpuDelegate gpuDelegate;
+    private GpuDelegate gpuDelegate;
     private final Device device;
     private final int threadCount;
+    private final boolean useXnnpack;
+    private volatile String modelHash;
+
+    //batch 为 1 时的输入输出 shape，runBatch 会修改 Interpreter 的输入 shape
+    private final int[][] inputShapes;
+    private final int[][] outputShapes;
+    private final DataType[] inputDataTypes;
+    private final DataType[] outputDataTypes;
+    private final Quantization[] inputQuantizations;
+    private final Quantization[] outputQuantizations;
+    private int currentBatchSize = 1;
+    //runBatch 打包输入用，按需扩容复用
+    private ByteBuffer[] batchInputBuffers;
+    private long warmUpDurationMillis;
 
     @NonNull
     public MappedByteBuffer getData() {
@@ -41,53 +83,293 @@ public class TFModel {
         return this.threadCount;
     }
 
+    public boolean isUseXnnpack() {
+        return this.useXnnpack;
+    }
+
     @NonNull
     public String getPath() {
         return this.modelPath;
     }
 
+    /**
+     * 最近一次 {@link #warmUp(int)} 的耗时，没有预热过为 0
+     */
+    public long getWarmUpDurationMillis() {
+        return this.warmUpDurationMillis;
+    }
+
+    /**
+     * 模型文件内容的 CRC32，用于缓存 key，模型文件变化后缓存自动失效
+     */
+    @NonNull
+    public String getModelHash() {
+        String hash = this.modelHash;
+        if (hash == null) {
+            hash = ModelFile.hash(this.byteModel);
+            this.modelHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * batch 为 1 时的 shape
+     */
     public int[] getOutputTensorShape(int outputIndex) {
-        return this.interpreter.getOutputTensor(outputIndex).shape();
+        return this.outputShapes[outputIndex].clone();
     }
 
     public DataType getOutputTensorDataType(int outputIndex) {
-        return this.interpreter.getOutputTensor(outputIndex).dataType();
+        return this.outputDataTypes[outputIndex];
     }
 
     public DataType getInputTensorDataType(int inputIndex) {
-        return this.interpreter.getInputTensor(inputIndex).dataType();
+        return this.inputDataTypes[inputIndex];
+    }
+
+    @NonNull
+    @Override
+    public TensorType getInputTensorType(int inputIndex) {
+        return TFImageUtils.toTensorType(getInputTensorDataType(inputIndex));
     }
 
+    @NonNull
+    @Override
+    public TensorType getOutputTensorType(int outputIndex) {
+        return TFImageUtils.toTensorType(getOutputTensorDataType(outputIndex));
+    }
+
+    /**
+     * UINT8 输入的量化参数，图片输入按它把【0,1】的值量化成字节；FLOAT32 或没有量化参数时是 {@link Quantization#NONE}
+     */
+    @NonNull
+    public Quantization getInputQuantization(int inputIndex) {
+        return this.inputQuantizations[inputIndex];
+    }
+
+    /**
+     * UINT8 输出的量化参数，转 Bitmap 时按它反量化；FLOAT32 或没有量化参数时是 {@link Quantization#NONE}
+     */
+    @NonNull
+    public Quantization getOutputQuantization(int outputIndex) {
+        return this.outputQuantizations[outputIndex];
+    }
+
+    /**
+     * batch 为 1 时的 shape
+     */
     public int[] getInputTensorShape(int inputIndex) {
-        return this.interpreter.getInputTensor(inputIndex).shape();
+        return this.inputShapes[inputIndex].clone();
+    }
+
+    public int getInputTensorCount() {
+        return this.inputShapes.length;
     }
 
-    public void run(@NonNull Object[] inputs, @NonNull Map<Integer, Object> outputs) {
+    public int getOutputTensorCount() {
+        return this.outputShapes.length;
+    }
+
+    @Override
+    public synchronized void run(@NonNull Object[] inputs, @NonNull Map<Integer, Object> outputs) {
+        checkNotClosed();
+        resizeBatch(1);
         this.interpreter.runForMultipleInputsOutputs(inputs, outputs);
     }
 
-    public void run(Object input, Object output) {
+    public synchronized void run(Object input, Object output) {
+        checkNotClosed();
+        resizeBatch(1);
         this.interpreter.run(input, output);
     }
 
-    public void close() {
+    /**
+     * 用全 0 的输入跑 runs 次推理，提前完成 tensor 分配、delegate 初始化等首次推理才做的工作
+     *
+     * @return 预热耗时
+     */
+    public synchronized long warmUp(int runs) {
+        checkNotClosed();
+        long startTime = SystemClock.elapsedRealtime();
+        Object[] inputs = allocateInputs();
+        Map<Integer, Object> outputs = allocateOutputs();
+        for (int i = 0; i < runs; i++) {
+            run(inputs, outputs);
+        }
+        this.warmUpDurationMillis = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, "warmUp " + modelPath + " runs:" + runs + " duration:" + warmUpDurationMillis + "ms");
+        return this.warmUpDurationMillis;
+    }
+
+    /**
+     * 用全 0 的输入跑 runs 次推理（不含第一次），返回单次延迟的中位数，用于 {@link TFModelTuner}
+     */
+    public synchronized long measureLatencyNanos(int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("runs must >= 1: " + runs);
+        }
+        checkNotClosed();
+        Object[] inputs = allocateInputs();
+        Map<Integer, Object> outputs = allocateOutputs();
+        //第一次推理包含 tensor 分配和 delegate 初始化，不计入
+        run(inputs, outputs);
+        long[] nanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            run(inputs, outputs);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[runs / 2];
+    }
+
+    private Object[] allocateInputs() {
+        Object[] inputs = new Object[inputShapes.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = ByteBuffer.allocateDirect(byteSize(inputShapes[i], getInputTensorDataType(i)))
+                    .order(ByteOrder.nativeOrder());
+        }
+        return inputs;
+    }
+
+    private Map<Integer, Object> allocateOutputs() {
+        Map<Integer, Object> outputs = new HashMap<>();
+        for (int i = 0; i < outputShapes.length; i++) {
+            outputs.put(i, ByteBuffer.allocateDirect(byteSize(outputShapes[i], getOutputTensorDataType(i)))
+                    .order(ByteOrder.nativeOrder()));
+        }
+        return outputs;
+    }
+
+    /**
+     * 批量推理：把输入 resize 到 batch N，打包成连续 buffer 只运行一次 Interpreter，再把输出按条拆开
+     *
+     * @param items 每一条是按输入序号排列的 batch 为 1 的输入 buffer，调用期间不能修改
+     * @return 每一条是按输出序号排列的输出 buffer（native order，position 为 0），互不共享
+     */
+    @NonNull
+    public synchronized List<ByteBuffer[]> runBatch(@NonNull List<ByteBuffer[]> items) {
+        checkNotClosed();
+        int batchSize = items.size();
+        if (batchSize == 0) {
+            return new ArrayList<>();
+        }
+        int inputCount = inputShapes.length;
+        int outputCount = outputShapes.length;
+        resizeBatch(batchSize);
+
+        if (batchInputBuffers == null) {
+            batchInputBuffers = new ByteBuffer[inputCount];
+        }
+        Object[] inputs = new Object[inputCount];
+        for (int i = 0; i < inputCount; i++) {
+            int itemBytes = byteSize(inputShapes[i], getInputTensorDataType(i));
+            ByteBuffer packed = batchInputBuffers[i];
+            if (packed == null || packed.capacity() < itemBytes * batchSize) {
+                packed = ByteBuffer.allocateDirect(itemBytes * batchSize);
+                packed.order(ByteOrder.nativeOrder());
+                batchInputBuffers[i] = packed;
+            }
+            packed.clear();
+            for (ByteBuffer[] item : items) {
+                if (item.length != inputCount) {
+                    throw new IllegalArgumentException("each item must contain " + inputCount + " inputs");
+                }
+                ByteBuffer input = item[i].duplicate();
+                input.rewind();
+                if (input.remaining() != itemBytes) {
+                    throw new IllegalArgumentException("input " + i + " must be " + itemBytes + " bytes, but was " + input.remaining());
+                }
+                packed.put(input);
+            }
+            packed.flip();
+            inputs[i] = packed;
+        }
+
+        Map<Integer, Object> outputs = new HashMap<>();
+        int[] outputItemBytes = new int[outputCount];
+        for (int i = 0; i < outputCount; i++) {
+            outputItemBytes[i] = byteSize(outputShapes[i], getOutputTensorDataType(i));
+            ByteBuffer output = ByteBuffer.allocateDirect(outputItemBytes[i] * batchSize);
+            output.order(ByteOrder.nativeOrder());
+            outputs.put(i, output);
+        }
+
+        this.interpreter.runForMultipleInputsOutputs(inputs, outputs);
+
+        List<ByteBuffer[]> results = new ArrayList<>(batchSize);
+        for (int item = 0; item < batchSize; item++) {
+            ByteBuffer[] result = new ByteBuffer[outputCount];
+            for (int i = 0; i < outputCount; i++) {
+                ByteBuffer output = ((ByteBuffer) outputs.get(i)).duplicate();
+                output.position(item * outputItemBytes[i]);
+                output.limit((item + 1) * outputItemBytes[i]);
+                result[i] = output.slice().order(ByteOrder.nativeOrder());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * 只有 batch 变化时才 resize，避免每次推理都重新分配 tensor
+     */
+    private void resizeBatch(int batchSize) {
+        if (batchSize == currentBatchSize) {
+            return;
+        }
+        for (int i = 0; i < inputShapes.length; i++) {
+            int[] shape = inputShapes[i].clone();
+            shape[0] = batchSize;
+            this.interpreter.resizeInput(i, shape);
+        }
+        currentBatchSize = batchSize;
+    }
+
+    private static int byteSize(int[] shape, DataType dataType) {
+        int size = dataType.byteSize();
+        //第 0 维是 batch
+        for (int i = 1; i < shape.length; i++) {
+            size *= shape[i];
+        }
+        return size;
+    }
+
+    /**
+     * @throws IllegalStateException 已经 {@link #close()}
+     */
+    private void checkNotClosed() {
+        if (this.interpreter == null) {
+            throw new IllegalStateException("model closed: " + modelPath);
+        }
+    }
+
+    /**
+     * 和推理互斥，正在进行的推理结束后才关闭；可以重复调用，之后的推理抛出 {@link IllegalStateException}
+     */
+    @Override
+    public synchronized void close() {
         if (this.interpreter != null) {
             this.interpreter.close();
+            this.interpreter = null;
         }
 
         if (this.gpuDelegate != null) {
             this.gpuDelegate.close();
+            this.gpuDelegate = null;
         }
 
     }
 
-    private TFModel(@NonNull String modelPath, @NonNull MappedByteBuffer byteModel, TFModel.Device device, int numThreads) {
+    private TFModel(@NonNull String modelPath, @NonNull MappedByteBuffer byteModel, TFModel.Device device, int numThreads,
+                    boolean useXnnpack) {
         SupportPreconditions.checkNotNull(byteModel, "Model file cannot be null.");
         SupportPreconditions.checkNotEmpty(modelPath, "Model path in the asset folder cannot be empty.");
         this.modelPath = modelPath;
         this.byteModel = byteModel;
         this.device = device;
         this.threadCount = numThreads;
+        this.useXnnpack = useXnnpack;
         Options interpreterOptions = new Options();
         this.gpuDelegate = device == TFModel.Device.GPU ? new GpuDelegate() : null;
         switch (device) {
@@ -100,20 +382,98 @@ public class TFModel {
         }
 
         interpreterOptions.setNumThreads(numThreads);
+        //XNNPACK 只对 CPU 上的浮点算子生效，其他设备上开启也没有影响
+        interpreterOptions.setUseXNNPACK(useXnnpack);
         this.interpreter = new Interpreter(byteModel, interpreterOptions);
+
+        //shape 和类型同样读一次缓存起来，close 之后仍然可以查询
+        this.inputShapes = new int[this.interpreter.getInputTensorCount()][];
+        this.inputDataTypes = new DataType[this.inputShapes.length];
+        for (int i = 0; i < this.inputShapes.length; i++) {
+            this.inputShapes[i] = this.interpreter.getInputTensor(i).shape();
+            this.inputDataTypes[i] = this.interpreter.getInputTensor(i).dataType();
+        }
+        this.outputShapes = new int[this.interpreter.getOutputTensorCount()][];
+        this.outputDataTypes = new DataType[this.outputShapes.length];
+        for (int i = 0; i < this.outputShapes.length; i++) {
+            this.outputShapes[i] = this.interpreter.getOutputTensor(i).shape();
+            this.outputDataTypes[i] = this.interpreter.getOutputTensor(i).dataType();
+        }
+        //量化参数在模型里是固定的，读一次缓存起来
+        this.inputQuantizations = new Quantization[this.inputShapes.length];
+        for (int i = 0; i < this.inputQuantizations.length; i++) {
+            this.inputQuantizations[i] = quantizationOf(this.interpreter.getInputTensor(i));
+        }
+        this.outputQuantizations = new Quantization[this.outputShapes.length];
+        for (int i = 0; i < this.outputQuantizations.length; i++) {
+            this.outputQuantizations[i] = quantizationOf(this.interpreter.getOutputTensor(i));
+        }
+    }
+
+    private static Quantization quantizationOf(Tensor tensor) {
+        if (tensor.dataType() != DataType.UINT8) {
+            return Quantization.NONE;
+        }
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        if (params.getScale() == 0f) {
+            return Quantization.NONE;
+        }
+        return new Quantization(params.getScale(), params.getZeroPoint());
     }
 
     public static class Builder {
+        //模型路径#大小 -> 模型 hash
+        private static final Map<String, String> MODEL_HASHES = new HashMap<>();
+
         private TFModel.Device device;
         private int numThreads;
+        private int warmUpRuns;
+        private boolean useXnnpack;
+        private TFModelTuner tuner;
         private final String modelPath;
         private final MappedByteBuffer byteModel;
 
+        /**
+         * 从 assets 加载，模型文件在 apk 中不能压缩（aaptOptions noCompress "tflite"）
+         */
         public Builder(@NonNull Context context, @NonNull String modelPath) throws IOException {
+            this(modelPath, mapAsset(context, modelPath));
+        }
+
+        /**
+         * 从文件加载，比如下载到私有目录的模型
+         */
+        public Builder(@NonNull File modelFile) throws IOException {
+            this(modelFile.getPath(), ModelFile.map(modelFile));
+        }
+
+        /**
+         * @param modelPath 只用于日志和标识
+         * @param byteModel 已经映射好的模型，见 {@link ModelFile}
+         */
+        public Builder(@NonNull String modelPath, @NonNull MappedByteBuffer byteModel) {
             this.device = TFModel.Device.CPU;
             this.numThreads = 1;
             this.modelPath = modelPath;
-            this.byteModel = FileUtil.loadMappedFile(context, modelPath);
+            this.byteModel = byteModel;
+        }
+
+        private static MappedByteBuffer mapAsset(Context context, String modelPath) throws IOException {
+            try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelPath);
+                 FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+                return ModelFile.map(inputStream.getChannel(), fileDescriptor.getStartOffset(),
+                        fileDescriptor.getDeclaredLength());
+            }
+        }
+
+        private Builder(@NonNull TFModel.Builder other) {
+            this.device = other.device;
+            this.numThreads = other.numThreads;
+            this.warmUpRuns = other.warmUpRuns;
+            this.useXnnpack = other.useXnnpack;
+            this.tuner = other.tuner;
+            this.modelPath = other.modelPath;
+            this.byteModel = other.byteModel;
         }
 
         @NonNull
@@ -128,10 +488,129 @@ public class TFModel {
             return this;
         }
 
+        /**
+         * build 时先跑 runs 次空推理预热，默认 0 不预热
+         */
+        @NonNull
+        public TFModel.Builder setWarmUpRuns(int warmUpRuns) {
+            this.warmUpRuns = warmUpRuns;
+            return this;
+        }
+
+        /**
+         * CPU 上使用 XNNPACK delegate，默认关闭
+         */
+        @NonNull
+        public TFModel.Builder setUseXNNPACK(boolean useXnnpack) {
+            this.useXnnpack = useXnnpack;
+            return this;
+        }
+
+        /**
+         * build 时由 tuner 选择设备、线程数和 XNNPACK，覆盖 setDevice / setNumThreads / setUseXNNPACK 的设置；
+         * 第一次使用某个模型时会先测量所有候选配置，之后直接读取记录
+         */
+        @NonNull
+        public TFModel.Builder setAutoTuner(@Nullable TFModelTuner tuner) {
+            this.tuner = tuner;
+            return this;
+        }
+
+        @NonNull
+        String getModelPath() {
+            return this.modelPath;
+        }
+
+        @NonNull
+        MappedByteBuffer getByteModel() {
+            return this.byteModel;
+        }
+
+        /**
+         * 模型内容的 hash，见 {@link ModelFile#hash(java.nio.ByteBuffer)}；需要读完整个模型，
+         * 同一个路径和大小在进程内只计算一次，池中的实例、不同 Builder 映射的同一个模型共用
+         */
+        @NonNull
+        String getModelHash() {
+            String key = this.modelPath + "#" + this.byteModel.capacity();
+            synchronized (MODEL_HASHES) {
+                String hash = MODEL_HASHES.get(key);
+                if (hash == null) {
+                    hash = ModelFile.hash(this.byteModel);
+                    MODEL_HASHES.put(key, hash);
+                }
+                return hash;
+            }
+        }
+
         @NonNull
         public TFModel build() {
-            return new TFModel(this.modelPath, this.byteModel, this.device, this.numThreads);
+            TFModel.Device device = this.device;
+            int numThreads = this.numThreads;
+            boolean useXnnpack = this.useXnnpack;
+            //调优结果只用于这一次 build，不写回 builder
+            if (this.tuner != null) {
+                ModelTuner.Config config = this.tuner.tune(this);
+                device = TFModel.Device.valueOf(config.getDevice());
+                numThreads = config.getNumThreads();
+                useXnnpack = config.isUseXnnpack();
+            }
+            TFModel model = new TFModel(this.modelPath, this.byteModel, device, numThreads, useXnnpack);
+            if (this.warmUpRuns > 0) {
+                model.warmUp(this.warmUpRuns);
+            }
+            return model;
+        }
+
+        /**
+         * 在 executor 上创建 Interpreter 并预热，调用方可以同时去做别的事情（比如启动相机）
+         * <p>
+         * 构造 Builder 时已经映射了模型文件，主线程上不要直接构造，用 {@link TFModelManager#acquireAsync} 把映射也放到后台
+         *
+         * @param listener 在 executor 的线程上回调，可以为空
+         */
+        @NonNull
+        public Future<TFModel> buildAsync(@NonNull Executor executor, @Nullable final OnModelReadyListener listener) {
+            final TFModel.Builder builder = new TFModel.Builder(this);
+            FutureTask<TFModel> task = new FutureTask<TFModel>(new Callable<TFModel>() {
+                @Override
+                public TFModel call() {
+                    try {
+                        TFModel model = builder.build();
+                        if (listener != null) {
+                            listener.onReady(model, model.getWarmUpDurationMillis());
+                        }
+                        return model;
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "build " + builder.modelPath + " failed", e);
+                        if (listener != null) {
+                            listener.onError(e);
+                        }
+                        throw e;
+                    }
+                }
+            });
+            executor.execute(task);
+            return task;
         }
+
+        /**
+         * 池化模式，池中所有实例共享同一个 MappedByteBuffer，各自持有独立的 Interpreter
+         *
+         * @param maxSize           最多同时存在的实例数
+         * @param idleTimeoutMillis 空闲超过该时间的实例会被关闭，<=0 表示不回收
+         */
+        @NonNull
+        public TFModelPool buildPool(int maxSize, long idleTimeoutMillis) {
+            //复制一份配置，之后再修改当前 builder 不影响池
+            return new TFModelPool(new TFModel.Builder(this), maxSize, idleTimeoutMillis);
+        }
+    }
+
+    public interface OnModelReadyListener {
+        void onReady(@NonNull TFModel model, long warmUpDurationMillis);
+
+        void onError(@NonNull Exception e);
     }
 
     public static enum Device {
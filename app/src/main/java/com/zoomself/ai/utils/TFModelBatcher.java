@@ -0,0 +1,27 @@
+package com.zoomself.ai.utils;
+
+import androidx.annotation.NonNull;
+
+import com.zoomself.ai.core.ModelBatcher;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * {@link TFModel} 的自适应批处理，见 {@link ModelBatcher}
+ * <p>
+ * 每条请求是按输入序号排列的 batch 为 1 的输入，输出按输出序号排列，
+ * 凑好的一批通过 {@link TFModel#runBatch(List)} 一次性推理。
+ */
+public class TFModelBatcher extends ModelBatcher<ByteBuffer[], ByteBuffer[]> {
+    private static final String TAG = "TFModelBatcher";
+
+    public TFModelBatcher(@NonNull final TFModel model, int maxBatchSize, long maxWaitMillis) {
+        super(new BatchRunner<ByteBuffer[], ByteBuffer[]>() {
+            @Override
+            public List<ByteBuffer[]> run(List<ByteBuffer[]> items) {
+                return model.runBatch(items);
+            }
+        }, maxBatchSize, maxWaitMillis, TAG);
+    }
+}
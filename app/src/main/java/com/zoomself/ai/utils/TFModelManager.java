@@ -0,0 +1,149 @@
+package com.zoomself.ai.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.ModelCache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 应用级别的 {@link TFModel} 管理，见 {@link ModelCache}
+ * <p>
+ * 同一个 assets 模型在所有 fragment、ViewModel 之间共享一个 Interpreter，按 handle 引用计数；
+ * fragment 重建（比如旋转屏幕）后直接拿到已经预热的实例，不再重新映射文件、创建 Interpreter。
+ * 实例大小按模型文件大小加上输入输出 tensor 大小估计，Interpreter 内部的中间 tensor 不计入。
+ */
+public class TFModelManager extends ModelCache<TFModel> {
+    private static final String TAG = "TFModelManager";
+
+    private final Context context;
+    private final TFModelTuner tuner;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable evictIdle = new Runnable() {
+        @Override
+        public void run() {
+            int evicted = evictIdle();
+            if (evicted > 0) {
+                Log.i(TAG, "evict idle " + evicted + ", " + TFModelManager.this);
+            }
+        }
+    };
+
+    /**
+     * @param tuner 每个模型第一次加载时调优设备和线程数，可以为空
+     */
+    public TFModelManager(@NonNull Context context, @Nullable TFModelTuner tuner, long maxBytes,
+                          long idleTimeoutMillis) {
+        super(maxBytes, idleTimeoutMillis, new Sizer<TFModel>() {
+            @Override
+            public long sizeOf(TFModel model) {
+                return estimateBytes(model);
+            }
+        });
+        this.context = context.getApplicationContext();
+        this.tuner = tuner;
+    }
+
+    /**
+     * 取得 assets 下模型的 handle，没有加载时创建 Interpreter 并预热（耗时较长，不要在主线程调用），用完必须 close
+     * <p>
+     * 同一个 modelPath 只有一个实例，warmUpRuns 只在第一次加载时生效
+     */
+    @NonNull
+    public Handle<TFModel> acquire(@NonNull final String modelPath, final int warmUpRuns) throws Exception {
+        return acquire(modelPath, new Loader<TFModel>() {
+            @Override
+            public TFModel load() throws Exception {
+                TFModel model = new TFModel.Builder(context, modelPath)
+                        .setAutoTuner(tuner)
+                        .setWarmUpRuns(warmUpRuns)
+                        .build();
+                Log.i(TAG, "loaded " + modelPath + " " + estimateBytes(model) / 1024 + "KB");
+                return model;
+            }
+        });
+    }
+
+    /**
+     * 在 executor 上 {@link #acquire(String, int)}，调用方可以同时去做别的事情（比如启动相机）
+     *
+     * @param listener 在 executor 的线程上回调，可以为空；复用已加载的实例时 warmUpDurationMillis 是第一次加载时的预热耗时。
+     *                 onReady 抛出异常时 handle 被关闭，异常交给 onError 并从 Future 抛出
+     */
+    @NonNull
+    public Future<Handle<TFModel>> acquireAsync(@NonNull final String modelPath, final int warmUpRuns,
+                                                @NonNull Executor executor,
+                                                @Nullable final TFModel.OnModelReadyListener listener) {
+        FutureTask<Handle<TFModel>> task = new FutureTask<>(new Callable<Handle<TFModel>>() {
+            @Override
+            public Handle<TFModel> call() throws Exception {
+                try {
+                    Handle<TFModel> handle = acquire(modelPath, warmUpRuns);
+                    if (listener != null) {
+                        try {
+                            TFModel model = handle.get();
+                            listener.onReady(model, model.getWarmUpDurationMillis());
+                        } catch (Exception e) {
+                            //比如 onReady 里提交任务时调用方的 executor 已经关闭，没有人会拿到这个 handle，在这里归还
+                            handle.close();
+                            throw e;
+                        }
+                    }
+                    return handle;
+                } catch (Exception e) {
+                    Log.e(TAG, "acquire " + modelPath + " failed", e);
+                    if (listener != null) {
+                        listener.onError(e);
+                    }
+                    throw e;
+                }
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    @Override
+    protected void onIdle(String key, long delayMillis) {
+        //多个实例先后空闲时只保留最后一次，到时 evictIdle 会检查所有实例
+        handler.removeCallbacks(evictIdle);
+        handler.postDelayed(evictIdle, delayMillis);
+    }
+
+    @Override
+    public void close() {
+        handler.removeCallbacks(evictIdle);
+        super.close();
+    }
+
+    /**
+     * 模型文件（MappedByteBuffer 的页面常驻后）加上 batch 为 1 时输入输出 tensor 的大小
+     */
+    static long estimateBytes(@NonNull TFModel model) {
+        long bytes = model.getData().capacity();
+        for (int i = 0; i < model.getInputTensorCount(); i++) {
+            bytes += tensorBytes(model.getInputTensorShape(i), model.getInputTensorDataType(i).byteSize());
+        }
+        for (int i = 0; i < model.getOutputTensorCount(); i++) {
+            bytes += tensorBytes(model.getOutputTensorShape(i), model.getOutputTensorDataType(i).byteSize());
+        }
+        return bytes;
+    }
+
+    private static long tensorBytes(int[] shape, int elementBytes) {
+        long bytes = elementBytes;
+        for (int dim : shape) {
+            bytes *= dim;
+        }
+        return bytes;
+    }
+}
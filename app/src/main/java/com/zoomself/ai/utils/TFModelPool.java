@@ -0,0 +1,22 @@
+package com.zoomself.ai.utils;
+
+import androidx.annotation.NonNull;
+
+import com.zoomself.ai.core.ModelPool;
+
+/**
+ * {@link TFModel} 池，见 {@link ModelPool}
+ * <p>
+ * 池里的每个 TFModel 都持有自己的 Interpreter，但共享同一个 MappedByteBuffer。
+ */
+public class TFModelPool extends ModelPool<TFModel> {
+
+    TFModelPool(@NonNull final TFModel.Builder builder, int maxSize, long idleTimeoutMillis) {
+        super(new Factory<TFModel>() {
+            @Override
+            public TFModel create() {
+                return builder.build();
+            }
+        }, maxSize, idleTimeoutMillis);
+    }
+}
@@ -0,0 +1,114 @@
+package com.zoomself.ai.utils;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.zoomself.ai.core.ModelTuner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link TFModel} 的自动调优，见 {@link ModelTuner}
+ * <p>
+ * 候选配置：CPU 上 1..availableProcessors 个线程分别开关 XNNPACK，API 27 以上加 NNAPI。
+ * GPU delegate 绑定创建它的线程，而共享的模型在加载线程上创建、在推理线程池的任意线程上运行，
+ * 所以不参与自动调优，需要 GPU 的调用方自己在固定线程上 setDevice。
+ * 每个候选都用同一个 MappedByteBuffer 新建一个 Interpreter，测完马上关闭；创建失败（设备不支持）的候选跳过。
+ * 结果按模型路径、模型 hash 和设备指纹记录在应用私有目录，应用级别共享一个实例。
+ */
+public class TFModelTuner {
+    private static final String TAG = "TFModelTuner";
+    private static final String RECORD_FILE = "model_tuning.properties";
+    private static final int MEASURE_RUNS = 5;
+
+    private final ModelTuner tuner;
+    private final int maxThreads;
+
+    public TFModelTuner(@NonNull Context context) {
+        this(new File(context.getFilesDir(), RECORD_FILE), Runtime.getRuntime().availableProcessors());
+    }
+
+    public TFModelTuner(@NonNull File recordFile, int maxThreads) {
+        this.tuner = new ModelTuner(recordFile);
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * 机型、硬件、系统版本和 CPU 核数，任何一项变化都需要重新调优
+     */
+    @NonNull
+    public static String deviceFingerprint() {
+        return Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.HARDWARE + "/" + Build.VERSION.SDK_INT + "/"
+                + Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 返回 builder 对应模型最快的配置，没有记录时当场测量（耗时较长，不要在主线程调用）
+     * <p>
+     * 同一时间只测量一个模型，同时测量会互相抢占 CPU。记录文件读写失败时不影响使用，只是下次会重新测量
+     */
+    @NonNull
+    synchronized ModelTuner.Config tune(@NonNull final TFModel.Builder builder) {
+        final String modelPath = builder.getModelPath();
+        String key = ModelTuner.key(modelPath, builder.getModelHash(), deviceFingerprint());
+        List<ModelTuner.Config> candidates = candidates();
+        try {
+            ModelTuner.Result stored = tuner.getTuned(key);
+            //之前的版本可能记录了现在不再参与调优的配置（比如 GPU），重新测量
+            if (stored != null && candidates.contains(stored.getConfig())) {
+                Log.i(TAG, "tune " + modelPath + ": " + stored);
+                return stored.getConfig();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "read tuning record failed", e);
+        }
+        ModelTuner.Result result = ModelTuner.measure(key, candidates, new ModelTuner.Benchmark() {
+            @Override
+            public long measure(ModelTuner.Config config) {
+                return measureConfig(builder, config);
+            }
+        });
+        Log.i(TAG, "tune " + modelPath + ": " + result);
+        try {
+            tuner.record(key, result);
+        } catch (IOException e) {
+            Log.w(TAG, "save tuning record failed, " + modelPath + " will be tuned again next time", e);
+        }
+        return result.getConfig();
+    }
+
+    /**
+     * 删除记录，比如模型换了新的 delegate 版本之后
+     */
+    public void forget(@NonNull TFModel.Builder builder) throws IOException {
+        tuner.forget(ModelTuner.key(builder.getModelPath(), builder.getModelHash(), deviceFingerprint()));
+    }
+
+    @NonNull
+    private List<ModelTuner.Config> candidates() {
+        List<ModelTuner.Config> candidates = ModelTuner.cpuCandidates(TFModel.Device.CPU.name(), maxThreads);
+        //API 27 之前的 NNAPI 支持的算子太少，基本都会回退到 CPU
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            candidates.add(new ModelTuner.Config(TFModel.Device.NNAPI.name(), 1, false));
+        }
+        return candidates;
+    }
+
+    private static long measureConfig(TFModel.Builder builder, ModelTuner.Config config) {
+        TFModel model = new TFModel.Builder(builder.getModelPath(), builder.getByteModel())
+                .setDevice(TFModel.Device.valueOf(config.getDevice()))
+                .setNumThreads(config.getNumThreads())
+                .setUseXNNPACK(config.isUseXnnpack())
+                .build();
+        try {
+            return model.measureLatencyNanos(MEASURE_RUNS);
+        } finally {
+            model.close();
+        }
+    }
+}
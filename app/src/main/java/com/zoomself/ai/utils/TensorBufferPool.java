@@ -0,0 +1,196 @@
+package com.zoomself.ai.utils;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageProxy;
+
+import com.zoomself.ai.core.Quantization;
+import com.zoomself.ai.core.TensorPreprocessor;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * 模型输入 buffer 池
+ * <p>
+ * 按模型输入 tensor 的 shape 和类型分配 direct、native order 的 {@link ByteBuffer}，
+ * 连同像素数组、预处理算子 {@link TensorPreprocessor} 一起复用，稳定状态下每帧转换不产生任何分配（超过 1080p 的原图除外），
+ * 转换结果可以直接传给 {@link TFModel#run(Object, Object)}，省掉 TensorBuffer.loadBuffer 的拷贝。
+ */
+public class TensorBufferPool {
+    //entry 最多缓存这么多原图像素（1080p，约 8MB），实时分析的帧都在这之内；更大的拍照原图每次临时分配，用完丢弃
+    private static final int MAX_CACHED_SOURCE_PIXELS = 1920 * 1080;
+
+    private final int[] shape;
+    private final DataType dataType;
+    private final TensorPreprocessor.Sampling sampling;
+    private final Quantization quantization;
+    private final int maxPoolSize;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    public TensorBufferPool(@NonNull int[] shape, @NonNull DataType dataType, int maxPoolSize) {
+        this(shape, dataType, TensorPreprocessor.Sampling.NEAREST, maxPoolSize);
+    }
+
+    /**
+     * @param sampling {@link Entry#load(Bitmap, int)} 缩放时的采样方式，默认最近邻，和原来的 ResizeOp(NEAREST_NEIGHBOR) 一致
+     */
+    public TensorBufferPool(@NonNull int[] shape, @NonNull DataType dataType,
+                            @NonNull TensorPreprocessor.Sampling sampling, int maxPoolSize) {
+        this(shape, dataType, Quantization.NONE, sampling, maxPoolSize);
+    }
+
+    /**
+     * @param quantization UINT8 输入的量化参数，所有 load 方法都按它写入字节
+     */
+    public TensorBufferPool(@NonNull int[] shape, @NonNull DataType dataType, @NonNull Quantization quantization,
+                            @NonNull TensorPreprocessor.Sampling sampling, int maxPoolSize) {
+        if (shape.length != 4) {
+            throw new IllegalArgumentException("tensorBuffer shape length must is 4");
+        }
+        this.shape = shape.clone();
+        this.dataType = dataType;
+        this.sampling = sampling;
+        this.quantization = quantization;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * 按模型第 inputIndex 个输入的 shape、类型和量化参数创建
+     */
+    @NonNull
+    public static TensorBufferPool forModelInput(@NonNull TFModel model, int inputIndex, int maxPoolSize) {
+        return new TensorBufferPool(model.getInputTensorShape(inputIndex),
+                model.getInputTensorDataType(inputIndex), model.getInputQuantization(inputIndex),
+                TensorPreprocessor.Sampling.NEAREST, maxPoolSize);
+    }
+
+    @NonNull
+    public Entry acquire() {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.pollFirst();
+        }
+        return entry != null ? entry : new Entry();
+    }
+
+    public void release(@NonNull Entry entry) {
+        synchronized (entries) {
+            if (entries.size() < maxPoolSize) {
+                entries.addFirst(entry);
+            }
+        }
+    }
+
+    @NonNull
+    public int[] getShape() {
+        return shape.clone();
+    }
+
+    @NonNull
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    @NonNull
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    public class Entry {
+        private final int height = shape[1];
+        private final int width = shape[2];
+        private final ByteBuffer buffer;
+        private final TensorPreprocessor preprocessor = new TensorPreprocessor.Builder(width, height,
+                TFImageUtils.toTensorType(dataType)).setSampling(sampling).setQuantization(quantization).build();
+        //原图像素，不超过 MAX_CACHED_SOURCE_PIXELS 时按最大的原图尺寸分配后复用
+        private int[] sourcePixels;
+
+        private Entry() {
+            buffer = ByteBuffer.allocateDirect(width * height * shape[3] * dataType.byteSize());
+            buffer.order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * 居中裁剪、缩放到 tensor 尺寸后写入 buffer，返回的 buffer 已经 rewind
+         */
+        @NonNull
+        public ByteBuffer load(@NonNull Bitmap bitmap) {
+            return load(bitmap, 0);
+        }
+
+        /**
+         * 居中裁剪、顺时针旋转 rotationDegrees、缩放、归一化一次完成，见 {@link TensorPreprocessor}
+         */
+        @NonNull
+        public ByteBuffer load(@NonNull Bitmap bitmap, int rotationDegrees) {
+            buffer.rewind();
+            load(bitmap, rotationDegrees, buffer);
+            buffer.rewind();
+            return buffer;
+        }
+
+        /**
+         * 同 {@link #load(Bitmap, int)}，从 out 的 position 开始直接写入（比如模型图里的输入 tensor），不经过 entry 自己的 buffer
+         */
+        public void load(@NonNull Bitmap bitmap, int rotationDegrees, @NonNull ByteBuffer out) {
+            int bitmapWidth = bitmap.getWidth();
+            int bitmapHeight = bitmap.getHeight();
+            int pixelCount = bitmapWidth * bitmapHeight;
+            int[] pixels;
+            if (pixelCount > MAX_CACHED_SOURCE_PIXELS) {
+                //12MP 的原图要 48MB，池里每个 entry 都留一份太多
+                pixels = new int[pixelCount];
+            } else {
+                if (sourcePixels == null || sourcePixels.length < pixelCount) {
+                    sourcePixels = new int[pixelCount];
+                }
+                pixels = sourcePixels;
+            }
+            bitmap.getPixels(pixels, 0, bitmapWidth, 0, 0, bitmapWidth, bitmapHeight);
+            preprocessor.process(pixels, bitmapWidth, bitmapHeight, rotationDegrees, out);
+        }
+
+        /**
+         * @param argbPixels 任意尺寸的 ARGB 像素，行宽 pixelsWidth
+         */
+        @NonNull
+        public ByteBuffer load(@NonNull int[] argbPixels, int pixelsWidth, int pixelsHeight, int rotationDegrees) {
+            buffer.rewind();
+            preprocessor.process(argbPixels, pixelsWidth, pixelsHeight, rotationDegrees, buffer);
+            buffer.rewind();
+            return buffer;
+        }
+
+        /**
+         * YUV_420_888 图片单次遍历写入 buffer，见 {@link TFImageUtils#convertYUV420ToTensor(ImageProxy, int, int, DataType, ByteBuffer)}
+         */
+        @NonNull
+        public ByteBuffer load(@NonNull ImageProxy image) {
+            buffer.rewind();
+            TFImageUtils.convertYUV420ToTensor(image, width, height, dataType, quantization, buffer);
+            buffer.rewind();
+            return buffer;
+        }
+
+        /**
+         * @param argbPixels 已经是 tensor 尺寸的 ARGB 像素
+         */
+        @NonNull
+        public ByteBuffer load(@NonNull int[] argbPixels) {
+            buffer.rewind();
+            TFImageUtils.convertPixelsToByteBuffer(argbPixels, width * height, dataType, quantization, buffer);
+            buffer.rewind();
+            return buffer;
+        }
+
+        @NonNull
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.zoomself.ai.utils;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zoomself.ai.core.ModelGraph;
+import com.zoomself.ai.core.Quantization;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 分块风格转换，输出和原图同样大小
+ * <p>
+ * content 模型固定输出 384x384，大图会被严重缩小。这里把原图切成互相重叠的 tile（tile 尺寸取模型输入尺寸），
+ * 每个 tile 用同一个风格瓶颈向量单独推理，重叠区域按线性羽化权重混合消除接缝。
+ * 同一行的 tile 分发到 workerCount 个线程并行，从 {@link TFModelPool} 借 Interpreter。
+ * 按 tile 行滚动累加，只需要 tile 高度的累加缓冲，不需要整张图的浮点缓冲。
+ */
+public class TiledStyleTransfer {
+    private final TFModelPool contentModelPool;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int overlap;
+    private final DataType inputDataType;
+    private final DataType outputDataType;
+    private final Quantization inputQuantization;
+    private final Quantization outputQuantization;
+    private final TFModel.Device device;
+    private final int threadCount;
+    private final ExecutorService workers;
+
+    /**
+     * @param contentModelPool content 模型池，maxSize 不小于 workerCount 才能充分并行
+     * @param overlap          相邻 tile 的重叠像素，越大接缝越不明显，tile 数也越多
+     * @param workerCount      并行推理的线程数
+     */
+    public TiledStyleTransfer(@NonNull TFModelPool contentModelPool, int overlap, int workerCount)
+            throws InterruptedException {
+        TFModel model = contentModelPool.borrow();
+        try {
+            int[] inputShape = model.getInputTensorShape(0);
+            this.tileHeight = inputShape[1];
+            this.tileWidth = inputShape[2];
+            this.inputDataType = model.getInputTensorDataType(0);
+            this.outputDataType = model.getOutputTensorDataType(0);
+            this.inputQuantization = model.getInputQuantization(0);
+            this.outputQuantization = model.getOutputQuantization(0);
+            this.device = model.getDevice();
+            this.threadCount = model.getThreadCount();
+        } finally {
+            contentModelPool.release(model);
+        }
+        if (overlap < 0 || overlap >= Math.min(tileWidth, tileHeight) / 2) {
+            throw new IllegalArgumentException("overlap must in [0, tileSize / 2)");
+        }
+        this.contentModelPool = contentModelPool;
+        this.overlap = overlap;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * @param content         原图，已经是正确方向
+     * @param styleBottleneck 风格瓶颈向量 (1,1,1,100)，只读
+     * @return 和 content 同样大小的风格化结果
+     */
+    @NonNull
+    public Bitmap transfer(@NonNull Bitmap content, @NonNull ByteBuffer styleBottleneck) throws Exception {
+        return transfer(content, styleBottleneck, null);
+    }
+
+    /**
+     * 同 {@link #transfer(Bitmap, ByteBuffer)}，每一行 tile 开始之前检查 cancellation，正在推理的 tile 不会被打断。
+     * 没有完成时不会返回部分结果，已经分配的结果 Bitmap 会被回收
+     *
+     * @throws CancellationException 已取消，或者工作线程在等待模型时被中断（比如 {@link #close()}）
+     * @throws InterruptedException  调用线程在等待 tile 时被中断
+     */
+    @NonNull
+    public Bitmap transfer(@NonNull Bitmap content, @NonNull ByteBuffer styleBottleneck,
+                           @Nullable ModelGraph.CancellationSignal cancellation) throws Exception {
+        int width = content.getWidth();
+        int height = content.getHeight();
+        int[] xs = tileOrigins(width, tileWidth, overlap);
+        int[] ys = tileOrigins(height, tileHeight, overlap);
+
+        //按 tile 行滚动使用：图片第 row 行存放在 row % tileHeight
+        Accumulator accumulator = new Accumulator(width, tileHeight);
+        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] rowPixels = new int[width];
+        Map<Thread, TileBuffers> tileBuffers = new HashMap<>();
+
+        //取消、中断或者 tile 失败时只完成了一部分，不能返回
+        boolean completed = false;
+        try {
+            for (int j = 0; j < ys.length; j++) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    throw new CancellationException("cancelled at tile row " + j + "/" + ys.length);
+                }
+                int tileTop = ys[j];
+                boolean top = j == 0;
+                boolean bottom = j == ys.length - 1;
+                List<Future<Void>> futures = new ArrayList<>(xs.length);
+                for (int i = 0; i < xs.length; i++) {
+                    futures.add(workers.submit(new TileTask(content, styleBottleneck, accumulator, tileBuffers,
+                            xs[i], tileTop, i == 0, i == xs.length - 1, top, bottom)));
+                }
+                try {
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                } catch (ExecutionException | InterruptedException | CancellationException e) {
+                    for (Future<Void> f : futures) {
+                        f.cancel(true);
+                    }
+                    //工作线程只会被 close 或者上面的 cancel 中断
+                    if (e instanceof ExecutionException && e.getCause() instanceof InterruptedException) {
+                        CancellationException cancelled = new CancellationException("tile worker interrupted");
+                        cancelled.initCause(e.getCause());
+                        throw cancelled;
+                    }
+                    throw e;
+                }
+
+                //下一行 tile 开始之前的行不会再有 tile 覆盖，可以输出了
+                int finishedEnd = bottom ? height : ys[j + 1];
+                for (int row = tileTop; row < finishedEnd; row++) {
+                    accumulator.resolveRow(row, rowPixels);
+                    result.setPixels(rowPixels, 0, width, 0, row, width, 1);
+                }
+            }
+            completed = true;
+            return result;
+        } finally {
+            if (!completed) {
+                result.recycle();
+            }
+        }
+    }
+
+    public TFModel.Device getDevice() {
+        return device;
+    }
+
+    /**
+     * 每个 Interpreter 的线程数
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * 关闭工作线程，不会关闭模型池
+     */
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * tile 左上角坐标，步长 tileSize - overlap，最后一个 tile 对齐到图片边缘
+     */
+    static int[] tileOrigins(int length, int tileSize, int overlap) {
+        if (length <= tileSize) {
+            return new int[]{0};
+        }
+        int step = tileSize - overlap;
+        int count = (length - tileSize + step - 1) / step + 1;
+        int[] origins = new int[count];
+        for (int i = 0; i < count; i++) {
+            origins[i] = Math.min(i * step, length - tileSize);
+        }
+        return origins;
+    }
+
+    /**
+     * 羽化权重：图片边缘一侧不衰减，和其他 tile 重叠的一侧在 overlap 范围内线性衰减
+     */
+    private float featherWeight(int position, int size, boolean firstEdge, boolean lastEdge) {
+        float weight = 1f;
+        if (!firstEdge && position < overlap) {
+            weight = (position + 1f) / (overlap + 1f);
+        }
+        if (!lastEdge && position >= size - overlap) {
+            weight = Math.min(weight, (size - position) / (overlap + 1f));
+        }
+        return weight;
+    }
+
+    /**
+     * 每个工作线程自己的 tile 像素和输入输出 buffer
+     */
+    private class TileBuffers {
+        final int[] pixels = new int[tileWidth * tileHeight];
+        final ByteBuffer input = ByteBuffer.allocateDirect(tileWidth * tileHeight * 3 * inputDataType.byteSize())
+                .order(ByteOrder.nativeOrder());
+        final ByteBuffer output = ByteBuffer.allocateDirect(tileWidth * tileHeight * 3 * outputDataType.byteSize())
+                .order(ByteOrder.nativeOrder());
+        final Object[] inputs = new Object[2];
+        final Map<Integer, Object> outputs = new HashMap<>();
+    }
+
+    private class TileTask implements Callable<Void> {
+        private final Bitmap content;
+        private final ByteBuffer styleBottleneck;
+        private final Accumulator accumulator;
+        private final Map<Thread, TileBuffers> tileBuffers;
+        private final int left;
+        private final int top;
+        private final boolean leftEdge;
+        private final boolean rightEdge;
+        private final boolean topEdge;
+        private final boolean bottomEdge;
+
+        TileTask(Bitmap content, ByteBuffer styleBottleneck, Accumulator accumulator,
+                 Map<Thread, TileBuffers> tileBuffers, int left, int top,
+                 boolean leftEdge, boolean rightEdge, boolean topEdge, boolean bottomEdge) {
+            this.content = content;
+            this.styleBottleneck = styleBottleneck;
+            this.accumulator = accumulator;
+            this.tileBuffers = tileBuffers;
+            this.left = left;
+            this.top = top;
+            this.leftEdge = leftEdge;
+            this.rightEdge = rightEdge;
+            this.topEdge = topEdge;
+            this.bottomEdge = bottomEdge;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            TileBuffers buffers;
+            synchronized (tileBuffers) {
+                buffers = tileBuffers.get(Thread.currentThread());
+                if (buffers == null) {
+                    buffers = new TileBuffers();
+                    tileBuffers.put(Thread.currentThread(), buffers);
+                }
+            }
+            int validWidth = Math.min(tileWidth, content.getWidth() - left);
+            int validHeight = Math.min(tileHeight, content.getHeight() - top);
+            readTile(buffers.pixels, validWidth, validHeight);
+
+            buffers.input.rewind();
+            TFImageUtils.convertPixelsToByteBuffer(buffers.pixels, tileWidth * tileHeight, inputDataType,
+                    inputQuantization, buffers.input);
+            buffers.input.rewind();
+            buffers.output.rewind();
+            //Interpreter 会移动输入 buffer 的 position，多线程共享的瓶颈向量要用副本
+            buffers.inputs[0] = buffers.input;
+            buffers.inputs[1] = styleBottleneck.duplicate().order(ByteOrder.nativeOrder());
+            ((ByteBuffer) buffers.inputs[1]).rewind();
+            buffers.outputs.put(0, buffers.output);
+
+            //被中断时抛出，由 transfer 作为失败处理，不能当作这个 tile 已经完成
+            TFModel model = contentModelPool.borrow();
+            try {
+                model.run(buffers.inputs, buffers.outputs);
+            } finally {
+                contentModelPool.release(model);
+            }
+
+            buffers.output.rewind();
+            accumulate(buffers.output, validWidth, validHeight);
+            return null;
+        }
+
+        /**
+         * 读取 tile 像素，超出图片的部分复制边缘像素
+         */
+        private void readTile(int[] pixels, int validWidth, int validHeight) {
+            content.getPixels(pixels, 0, tileWidth, left, top, validWidth, validHeight);
+            for (int y = 0; y < validHeight; y++) {
+                int edge = pixels[y * tileWidth + validWidth - 1];
+                for (int x = validWidth; x < tileWidth; x++) {
+                    pixels[y * tileWidth + x] = edge;
+                }
+            }
+            for (int y = validHeight; y < tileHeight; y++) {
+                System.arraycopy(pixels, (validHeight - 1) * tileWidth, pixels, y * tileWidth, tileWidth);
+            }
+        }
+
+        private void accumulate(ByteBuffer output, int validWidth, int validHeight) {
+            FloatBuffer floatOutput = outputDataType == DataType.FLOAT32 ? output.asFloatBuffer() : null;
+            synchronized (accumulator) {
+                for (int y = 0; y < validHeight; y++) {
+                    float weightY = featherWeight(y, tileHeight, topEdge, bottomEdge);
+                    int base = accumulator.rowOffset(top + y) + left * 3;
+                    int weightBase = accumulator.weightRowOffset(top + y) + left;
+                    for (int x = 0; x < validWidth; x++) {
+                        float weight = weightY * featherWeight(x, tileWidth, leftEdge, rightEdge);
+                        int index = (y * tileWidth + x) * 3;
+                        for (int c = 0; c < 3; c++) {
+                            float value = floatOutput != null ? floatOutput.get(index + c)
+                                    : outputQuantization.dequantize(output.get(index + c) & 0xFF);
+                            accumulator.colors[base + x * 3 + c] += value * weight;
+                        }
+                        accumulator.weights[weightBase + x] += weight;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 滚动累加缓冲，按 tile 高度的行数循环使用
+     */
+    private static class Accumulator {
+        final int width;
+        final int rows;
+        final float[] colors;
+        final float[] weights;
+
+        Accumulator(int width, int rows) {
+            this.width = width;
+            this.rows = rows;
+            this.colors = new float[width * rows * 3];
+            this.weights = new float[width * rows];
+        }
+
+        int rowOffset(int row) {
+            return (row % rows) * width * 3;
+        }
+
+        int weightRowOffset(int row) {
+            return (row % rows) * width;
+        }
+
+        /**
+         * 归一化输出一行并清零，给后面的 tile 行复用
+         */
+        synchronized void resolveRow(int row, int[] out) {
+            int base = rowOffset(row);
+            int weightBase = weightRowOffset(row);
+            for (int x = 0; x < width; x++) {
+                float weight = weights[weightBase + x];
+                float scale = weight > 0 ? 255.0f / weight : 0f;
+                int r = clamp(colors[base + x * 3] * scale);
+                int g = clamp(colors[base + x * 3 + 1] * scale);
+                int b = clamp(colors[base + x * 3 + 2] * scale);
+                out[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+                colors[base + x * 3] = 0;
+                colors[base + x * 3 + 1] = 0;
+                colors[base + x * 3 + 2] = 0;
+                weights[weightBase + x] = 0;
+            }
+        }
+
+        private static int clamp(float value) {
+            int v = (int) (value + 0.5f);
+            return v < 0 ? 0 : (v > 255 ? 255 : v);
+        }
+    }
+}
@@ -4,212 +4,1131 @@ import android.app.Application
 import android.graphics.*
 import android.os.SystemClock
 import android.util.Log
+import androidx.camera.core.ImageAnalysis
 import androidx.camera.core.ImageProxy
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.viewModelScope
 import com.zoomself.ai.App
+import com.zoomself.ai.core.ModelCache
+import com.zoomself.ai.core.ModelGraph
+import com.zoomself.ai.core.ModelVariantRegistry
+import com.zoomself.ai.utils.ContentModelVariants
+import com.zoomself.ai.utils.PipelineMetrics
+import com.zoomself.ai.utils.StyleBlendSession
+import com.zoomself.ai.utils.StyleBottleneckCache
+import com.zoomself.ai.utils.StyleImageStore
+import com.zoomself.ai.utils.StyleTransferGraph
+import com.zoomself.ai.utils.StyleTransferStream
 import com.zoomself.ai.utils.TFImageUtils
 import com.zoomself.ai.utils.TFModel
+import com.zoomself.ai.utils.TFModelPool
+import com.zoomself.ai.utils.TensorBufferPool
+import com.zoomself.ai.utils.TiledStyleTransfer
 import com.zoomself.ai.bean.AiBasicInfoBean
+import com.zoomself.ai.bean.StreamStatsBean
 import com.zoomself.ai.bean.StyleTransferResultBean
+import com.zoomself.ai.bean.StyleTransferState
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExecutorCoroutineDispatcher
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.receiveAsFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlin.coroutines.coroutineContext
 import org.tensorflow.lite.DataType
-import org.tensorflow.lite.support.image.ImageProcessor
-import org.tensorflow.lite.support.image.TensorImage
-import org.tensorflow.lite.support.image.ops.ResizeOp
-import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp
-import org.tensorflow.lite.support.image.ops.Rot90Op
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer
 import java.lang.IllegalArgumentException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.max
 
 
 class StyleTransferViewModel(application: Application) : AndroidViewModel(application) {
     companion object {
         const val TAG = "StyleTransferViewModel"
+        const val STYLE_IMAGES_DIR = "style_images"
+        //风格图片 tensor 常驻的 direct 内存上限，用到时才按张分配，256x256 UINT8 每张 192KB
+        const val STYLE_IMAGE_STORE_BYTES = 8L * 1024 * 1024
+        //content 模型的变体，第一个是测量 PSNR 的参考
+        val CONTENT_MODEL_VARIANTS = arrayOf(
+            "style_transfer_f16_384.tflite",
+            "style_transfer_quantized_384.tflite"
+        )
+        const val CONTENT_MODEL_WARM_UP_RUNS = 2
+        //拍照时等待 content 变体可用的最长时间，第一次测量期间先用参考变体，正常只需要等它加载完
+        const val CONTENT_VARIANT_TIMEOUT_MILLIS = 10_000L
+        //测量变体输出质量用的内容图数量，取内置风格图片的前几张
+        const val QUALITY_IMAGE_COUNT = 3
+        //分块模式固定使用量化版本
+        const val TILED_CONTENT_MODEL_NAME = "style_transfer_quantized_384.tflite"
+        const val TILE_OVERLAP = 32
+        const val TILE_IDLE_TIMEOUT_MILLIS = 30_000L
     }
 
-    val styleTransferResultBeanLiveData = MutableLiveData<StyleTransferResultBean>()
+    private val bottleneckCache: StyleBottleneckCache
+        get() = getApplication<App>().styleBottleneckCache
+
+    private val inputPools = HashMap<TFModel, TensorBufferPool>()
+    private val styleImageStores = HashMap<TFModel, StyleImageStore>()
+    private val styleTransferGraphs = HashMap<Pair<TFModel, TFModel>, StyleTransferGraph>()
+
+    /**
+     * content 模型的变体，按延迟预算选择，切换后不需要重建 fragment
+     */
+    private val contentModelVariantsDelegate = lazy {
+        ContentModelVariants(
+            getApplication<App>(),
+            CONTENT_MODEL_VARIANTS,
+            getApplication<App>().modelTuner,
+            CONTENT_MODEL_WARM_UP_RUNS
+        ).apply {
+            setOnRetireListener(ContentModelVariants.OnRetireListener { forgetModel(it) })
+        }
+    }
+    private val contentModelVariants by contentModelVariantsDelegate
+
+    //共享模型被 modelManager 关闭前清理以它为 key 的缓存
+    private val onModelUnloadListener = ModelCache.OnUnloadListener<TFModel> { _, model ->
+        forgetModel(model)
+    }
+
+    init {
+        getApplication<App>().modelManager.addOnUnloadListener(onModelUnloadListener)
+    }
+
+    val contentVariantLiveData = MutableLiveData<ModelVariantRegistry.Variant>()
+
+    /**
+     * 各阶段最近 200 次的耗时分布
+     */
+    val pipelineMetrics = PipelineMetrics(200)
+
+    private val styleTransferStateFlow = MutableStateFlow<StyleTransferState>(StyleTransferState.Idle)
+
+    /**
+     * 拍照风格转换和风格混合的状态，新请求会取消还没完成的旧请求，只发出最新请求的结果；失败时回到 Idle，错误见 [styleTransferFailures]
+     */
+    val styleTransferState: StateFlow<StyleTransferState>
+        get() = styleTransferStateFlow
+
+    //只保留最近一次没有被收到的错误
+    private val styleTransferFailureChannel = Channel<StyleTransferState.Failure>(Channel.CONFLATED)
+
+    /**
+     * 最新请求和实时风格转换的错误，每个错误只会被收到一次，fragment 重建后不会再次提示旧的错误
+     */
+    val styleTransferFailures: Flow<StyleTransferState.Failure> = styleTransferFailureChannel.receiveAsFlow()
+    private val styleTransferJob = AtomicReference<Job?>()
+
+    //推理专用线程池，按参与推理的模型中最大的线程数创建，content 变体切换后线程数不同时重建
+    private var inferenceDispatcher: ExecutorCoroutineDispatcher? = null
+    private var inferenceDispatcherThreads = 0
+    private var cleared = false
+
+    //长按拍照的分块模式，第一次使用时在推理线程上创建，ViewModel 清理时关闭
+    private var tiledStyleTransfer: TiledStyleTransfer? = null
+    private var tiledContentModelPool: TFModelPool? = null
+
+    //只在主线程修改，streamAnalyzer 在相机线程读取
+    @Volatile
+    private var styleTransferStream: StyleTransferStream? = null
+    //准备中的实时风格转换，只在主线程访问
+    private var streamingJob: Job? = null
+
+    private val streamingFlow = MutableStateFlow(false)
+
+    /**
+     * 实时风格转换是否在运行（包括准备中），推理失败自动停止后变为 false
+     */
+    val streaming: StateFlow<Boolean>
+        get() = streamingFlow
+
+    private val streamFrameFlow = MutableStateFlow<StyleTransferResultBean?>(null)
+
+    /**
+     * 实时风格转换的最新一帧，只保留最新的，UI 跟不上时跳过中间的帧；Bitmap 在之后的帧中会被复用（3 个轮流使用），停止后为 null
+     */
+    val streamFrames: StateFlow<StyleTransferResultBean?>
+        get() = streamFrameFlow
+
+    private val streamStatsFlow = MutableStateFlow<StreamStatsBean?>(null)
+
+    /**
+     * 实时风格转换的帧率和延迟，停止后为 null
+     */
+    val streamStats: StateFlow<StreamStatsBean?>
+        get() = streamStatsFlow
+
+    //持有借用的 content 变体，换下或 ViewModel 清理时归还，修改时持有 this 的锁
+    @Volatile
+    private var blendSession: StyleBlendSession? = null
+    //混合会话的准备和渲染依次执行，滑杆拖动时排队的旧请求在等待时被取消
+    private val blendMutex = Mutex()
+
+    private class BlendRequest(
+        val styleWeights: Map<String, Float>,
+        val strength: Float
+    )
+
+    /**
+     * 拍照风格转换，可以在任意线程调用；还没完成的上一次请求会被取消，结果和错误发送到 [styleTransferState]
+     *
+     * @param styleModel 还在加载时在协程里等待，加载失败时错误发送到 [styleTransferFailures]；
+     * 请求期间另外持有一个引用，调用方之后关闭自己的 handle 不影响正在进行的推理
+     * @param contentModel 为空时使用 [selectContentVariant] 选出的 content 模型
+     */
+    fun requestStyleTransfer(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        imageProxy: ImageProxy,
+        contentModel: TFModel? = null,
+        styleImageName: String = "style0.jpg"
+    ) {
+        launchStyleTransfer(styleModel, imageProxy) {
+            styleTransfer(it, imageProxy, contentModel, styleImageName)
+        }
+    }
+
+    /**
+     * 分块模式的 [requestStyleTransfer]，和它共用同一个请求槽，新请求同样会取消旧请求
+     */
+    fun requestStyleTransferTiled(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        imageProxy: ImageProxy,
+        styleImageName: String = "style0.jpg"
+    ) {
+        launchStyleTransfer(styleModel, imageProxy) {
+            styleTransferTiled(it, imageProxy, styleImageName)
+        }
+    }
+
+    /**
+     * @param imageProxy 由 block 负责关闭；还没有进入 block 就失败或被取消时在这里关闭
+     */
+    private fun launchStyleTransfer(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        imageProxy: ImageProxy?,
+        block: suspend CoroutineScope.(TFModel) -> StyleTransferResultBean
+    ) {
+        //失败时在协程里再取一次，发出 Failure
+        val readyStyle = AtomicReference(retainIfReady(styleModel))
+        val imageOwned = AtomicBoolean()
+        //LAZY：先发布到 styleTransferJob 再启动，否则很快失败的请求发出结果时还不是最新的请求，结果会被丢掉
+        val job = viewModelScope.launch(start = CoroutineStart.LAZY) {
+            styleTransferStateFlow.value = StyleTransferState.Running
+            val state = try {
+                withStyleModel(readyStyle, styleModel) {
+                    imageOwned.set(true)
+                    StyleTransferState.Success(block(it))
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "style transfer failed", e)
+                failureOf(e)
+            }
+            //旧请求可能在被取消之前已经切回主线程，只有最新的请求可以发出结果
+            if (styleTransferJob.get() === coroutineContext[Job]) {
+                if (state is StyleTransferState.Failure) {
+                    styleTransferStateFlow.value = StyleTransferState.Idle
+                    styleTransferFailureChannel.offer(state)
+                } else {
+                    styleTransferStateFlow.value = state
+                }
+            }
+        }
+        //启动之前就被取消（被下一次请求取代、ViewModel 已经清理）时协程体不会执行，imageProxy 和 handle 在这里关闭
+        job.invokeOnCompletion {
+            readyStyle.getAndSet(null)?.close()
+            if (imageProxy != null && imageOwned.compareAndSet(false, true)) {
+                imageProxy.close()
+            }
+        }
+        styleTransferJob.getAndSet(job)?.cancel()
+        job.start()
+    }
+
+    /**
+     * 模型已经就绪时在调用线程上直接取得引用，排在调用方关闭 handle 之前；还在加载或加载失败时为空，在协程里再取
+     */
+    private fun retainIfReady(styleModel: Future<ModelCache.Handle<TFModel>>): ModelCache.Handle<TFModel>? {
+        if (!styleModel.isDone) {
+            return null
+        }
+        return try {
+            styleModel.get().retain()
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    /**
+     * 持有 styleModel 的引用执行 block：优先使用 [retainIfReady] 取得的引用，还在加载时到 IO 线程等待，可以被取消
+     *
+     * @throws ExecutionException 模型加载失败
+     */
+    private suspend fun <T> withStyleModel(
+        readyStyle: AtomicReference<ModelCache.Handle<TFModel>?>,
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        block: suspend (TFModel) -> T
+    ): T {
+        val style = readyStyle.getAndSet(null)
+            ?: runInterruptible(Dispatchers.IO) { styleModel.get() }.retain()
+        try {
+            return block(style.get())
+        } finally {
+            style.close()
+        }
+    }
+
+    private fun failureOf(e: Exception): StyleTransferState.Failure {
+        //模型加载失败时 Future 包装的异常
+        return StyleTransferState.Failure(if (e is ExecutionException) e.cause ?: e else e)
+    }
+
+    /**
+     * 在 IO 线程上借用 [selectContentVariant] 选出的变体，还没有选出时最多等待 [CONTENT_VARIANT_TIMEOUT_MILLIS]，
+     * 等待时可以被取消；借到之后协程才被取消时在这里归还，不会泄漏。用完必须 [ContentModelVariants.release]
+     */
+    private suspend fun acquireContentVariant(): TFModel {
+        val acquired = AtomicReference<TFModel?>()
+        try {
+            return runInterruptible(Dispatchers.IO) {
+                contentModelVariants.acquire(CONTENT_VARIANT_TIMEOUT_MILLIS).also { acquired.set(it) }
+            }
+        } catch (e: CancellationException) {
+            acquired.getAndSet(null)?.let { contentModelVariants.release(it) }
+            throw e
+        }
+    }
 
     /**
      * @param styleModel (1,256,256,3) --->  (1,1,1,100)
      *
-     * @param contentModel (1,384,384,3)(1,1,1,100) --->  (1,384,384,3)
+     * @param contentModel (1,384,384,3)(1,1,1,100) --->  (1,384,384,3)，为空时使用 [selectContentVariant] 选出的变体，
+     * 还没有选出时最多等待 [CONTENT_VARIANT_TIMEOUT_MILLIS]
+     *
+     * 在推理线程池上执行，两个模型通过 [StyleTransferGraph] 执行：内容图预处理和 style predict 并发，
+     * 风格不变或风格瓶颈向量已经在 [bottleneckCache] 中时跳过 style predict。
+     * 取消后在下一个阶段开始之前停止；TFLite 2.3 的 Interpreter 不能中途取消，正在进行的一次推理会执行完。
+     * 无论成功、失败还是取消，imageProxy 都会被关闭
      */
-    fun styleTransfer(
+    suspend fun styleTransfer(
         styleModel: TFModel,
-        contentModel: TFModel,
         imageProxy: ImageProxy,
-        executor: Executor,
+        contentModel: TFModel? = null,
         styleImageName: String = "style0.jpg"
-    ) {
+    ): StyleTransferResultBean {
+        val imageClosed = AtomicBoolean()
+        val closeImage = {
+            if (imageClosed.compareAndSet(false, true)) {
+                //一定要释放，要不然连续拍照分析会导致内存不足无法开启camera继续拍照
+                imageProxy.close()
+            }
+        }
+        try {
+            coroutineContext.ensureActive()
+            if (contentModel != null) {
+                return withContext(getInferenceDispatcher(styleModel, contentModel)) {
+                    runStyleTransfer(styleModel, contentModel, imageProxy, styleImageName, closeImage)
+                }
+            }
+            //等待变体选择不占用推理线程，选择失败或超时抛出异常；先拿到变体再按它的线程数取推理线程池
+            val variant = acquireContentVariant()
+            try {
+                return withContext(getInferenceDispatcher(styleModel, variant)) {
+                    runStyleTransfer(styleModel, variant, imageProxy, styleImageName, closeImage)
+                }
+            } finally {
+                contentModelVariants.release(variant)
+            }
+        } finally {
+            closeImage()
+        }
+    }
+
+    /**
+     * 推理专用的 dispatcher：每个 Interpreter 内部已经按调优结果使用 threadCount 个线程，
+     * 同时运行的推理数限制在 核数 / models 中最大的 threadCount，再多只会互相抢占 CPU。
+     * content 变体切换后线程数变化时重建，旧线程池上已经开始的推理继续执行完
+     *
+     * @throws CancellationException ViewModel 已经清理，不再创建推理线程池
+     */
+    @Synchronized
+    private fun getInferenceDispatcher(vararg models: TFModel): CoroutineDispatcher {
+        if (cleared) {
+            throw CancellationException("$TAG cleared")
+        }
+        val threadsPerInference = models.fold(1) { threads, model -> max(threads, model.threadCount) }
+        val threads = max(1, Runtime.getRuntime().availableProcessors() / threadsPerInference)
+        inferenceDispatcher?.let {
+            if (threads == inferenceDispatcherThreads) {
+                return it
+            }
+            //只是 shutdown，已经提交的任务不受影响
+            it.close()
+        }
+        Log.i(TAG, "inference dispatcher threads:$threads")
+        return Executors.newFixedThreadPool(threads).asCoroutineDispatcher().also {
+            inferenceDispatcher = it
+            inferenceDispatcherThreads = threads
+        }
+    }
+
+    /**
+     * 在推理线程上创建，持有 content 模型池和工作线程
+     */
+    @Synchronized
+    private fun getTiledStyleTransfer(): TiledStyleTransfer {
+        tiledStyleTransfer?.let { return it }
+        val workerCount = Runtime.getRuntime().availableProcessors()
+        val contentModelPool = TFModel.Builder(
+            getApplication<App>(),
+            TILED_CONTENT_MODEL_NAME
+        )
+            .setNumThreads(1)
+            .buildPool(workerCount, TILE_IDLE_TIMEOUT_MILLIS)
+        tiledContentModelPool = contentModelPool
+        return TiledStyleTransfer(contentModelPool, TILE_OVERLAP, workerCount).also {
+            tiledStyleTransfer = it
+        }
+    }
 
+    /**
+     * 第一次调用时在本机上测量每个 content 模型变体（延迟、内存、和 float 版本比较的 PSNR），
+     * 之后按 latencyBudgetMillis 选择变体并热切换，可以随时用新的预算再次调用。
+     * 测量期间先使用参考变体；失败时正在等待和之后的拍照请求的错误发送到 [styleTransferFailures]
+     */
+    fun selectContentVariant(styleModel: TFModel, latencyBudgetMillis: Long, executor: Executor) {
         executor.execute {
-            val startTime=SystemClock.currentThreadTimeMillis()
-            val context = getApplication<App>().applicationContext
-            val styleImageInputStream = context.assets.open("style_images/$styleImageName")
-
-            Log.i(TAG, "---------------styleModel----------------")
-
-            //处理 styleModel
-            val styleBitmap = BitmapFactory.decodeStream(styleImageInputStream)
-            var styleTensorImage = TensorImage()
-
-            val styleInputShape = styleModel.getInputTensorShape(0)
-            val styleInputDataType = styleModel.getInputTensorDataType(0)
-            val styleOutputShape = styleModel.getOutputTensorShape(0)
-            val styleOutputDataType = styleModel.getOutputTensorDataType(0)
-            val styleOutputTensorBuffer =
-                TensorBuffer.createFixedSize(styleOutputShape, styleOutputDataType)
-
-            val styleRotationDegrees = imageProxy.imageInfo.rotationDegrees
-            val styleTargetX = styleInputShape[1]
-            val styleTargetY = styleInputShape[2]
-            val styleCropSize = styleBitmap.width.coerceAtMost(styleBitmap.height)
-
-            Log.i(TAG, "styleRotationDegrees:$styleRotationDegrees")
-            Log.i(TAG, "styleCropSize:$styleCropSize")
-            Log.i(
-                TAG,
-                "styleInputShape:${styleTargetX},${styleTargetY},${styleInputShape[3]}, styleInputDataType:$styleInputDataType"
-            )
-            Log.i(
-                TAG,
-                "styleOutputShape:${styleOutputShape[1]},${styleOutputShape[2]},${styleOutputShape[3]}, styleOutputDataType:$styleOutputDataType"
+            try {
+                val variant = contentModelVariants.select(
+                    latencyBudgetMillis * 1_000_000,
+                    qualityInputs(styleModel)
+                )
+                Log.i(TAG, "$contentModelVariants")
+                contentVariantLiveData.postValue(variant)
+            } catch (e: Exception) {
+                Log.e(TAG, "select content variant failed", e)
+            }
+        }
+    }
+
+    /**
+     * 固定的测量输入：前几张内置风格图片当作内容图，配合第一个风格的瓶颈向量
+     */
+    private fun qualityInputs(styleModel: TFModel) = ContentModelVariants.QualityInputs { model ->
+        val styleImageNames = getStyleImageStore(styleModel).list()
+        val bottleneck = getStyleBottleneck(styleModel, styleImageNames[0]).buffer
+        val pool = TensorBufferPool.forModelInput(model, 0, 1)
+        val entry = pool.acquire()
+        styleImageNames.take(QUALITY_IMAGE_COUNT).map { name ->
+            val bitmap = getApplication<App>().assets.open("$STYLE_IMAGES_DIR/$name").use {
+                BitmapFactory.decodeStream(it)
+            }
+            val source = entry.load(bitmap, 0)
+            bitmap.recycle()
+            val input = ByteBuffer.allocateDirect(source.remaining()).order(ByteOrder.nativeOrder())
+            input.put(source)
+            input.rewind()
+            arrayOf(input, bottleneck)
+        }
+    }
+
+    /**
+     * 模型关闭前（content 变体被换下、共享模型被卸载）清理以它为 key 的模型图、输入池和风格图片仓库
+     */
+    private fun forgetModel(model: TFModel) {
+        synchronized(styleTransferGraphs) {
+            val iterator = styleTransferGraphs.entries.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                if (entry.key.first == model || entry.key.second == model) {
+                    entry.value.close()
+                    iterator.remove()
+                }
+            }
+        }
+        synchronized(inputPools) {
+            inputPools.remove(model)
+        }
+        synchronized(styleImageStores) {
+            styleImageStores.remove(model)
+        }
+    }
+
+    private fun CoroutineScope.runStyleTransfer(
+        styleModel: TFModel,
+        contentModel: TFModel,
+        imageProxy: ImageProxy,
+        styleImageName: String,
+        closeImage: () -> Unit
+    ): StyleTransferResultBean {
+        ensureActive()
+        val timer = pipelineMetrics.startTimer()
+
+        val contentInputShape0 = contentModel.getInputTensorShape(0)
+        val contentInputDataType0 = contentModel.getInputTensorDataType(0)
+        val contentOutputShape = contentModel.getOutputTensorShape(0)
+        val contentOutputDataType = contentModel.getOutputTensorDataType(0)
+        if (contentInputDataType0 != DataType.UINT8 && contentInputDataType0 != DataType.FLOAT32) {
+            throw Exception("异常的输入类型，请更换模型: ${contentModel.path}")
+        }
+        val contentRotationDegrees = imageProxy.imageInfo.rotationDegrees
+        Log.i(TAG, "contentRotationDegrees:$contentRotationDegrees, format:${imageProxy.format}")
+
+        val graph = getStyleTransferGraph(styleModel, contentModel)
+        val stylized = graph.run(styleImageName, StyleTransferGraph.ContentLoader { out ->
+            //在图的节点上执行，和 style predict 并发
+            timer.begin()
+            if (imageProxy.format == ImageFormat.YUV_420_888) {
+                //YUV 平面单次遍历直接写入模型输入（裁剪、旋转、缩放、归一化），跳过 NV21 -> JPEG -> Bitmap
+                TFImageUtils.convertYUV420ToTensor(
+                    imageProxy, contentInputShape0[2], contentInputShape0[1], contentInputDataType0,
+                    contentModel.getInputQuantization(0), out
+                )
+            } else {
+                val contentBitmap = decodeJpeg(imageProxy, timer)
+                Log.i(TAG, "contentBitmap:${contentBitmap.width}x${contentBitmap.height}")
+                //居中裁剪、旋转、缩放、归一化一次完成，UINT8 和 FLOAT32 走同一条路径，直接写入图的输入 tensor
+                val inputPool = getInputPool(contentModel)
+                val contentInputEntry = inputPool.acquire()
+                try {
+                    contentInputEntry.load(contentBitmap, contentRotationDegrees, out)
+                } finally {
+                    inputPool.release(contentInputEntry)
+                    contentBitmap.recycle()
+                }
+            }
+            timer.end(PipelineMetrics.Stage.PREPROCESS)
+        }, timer, ModelGraph.CancellationSignal { !isActive })
+        closeImage()
+        Log.i(TAG, "$graph")
+
+        ensureActive()
+        timer.begin()
+        val resultBitmap = TFImageUtils.convertTensorToBitmap(
+            stylized, contentOutputDataType, contentModel.getOutputQuantization(0),
+            contentOutputShape[2], contentOutputShape[1], null
+        )
+        timer.end(PipelineMetrics.Stage.TENSOR_TO_BITMAP)
+        val duration = timer.finish() / 1_000_000
+        pipelineMetrics.record(timer)
+        Log.i(TAG, "$pipelineMetrics")
+        val aiBasicInfoBean =
+            AiBasicInfoBean(
+                contentModel.device,
+                contentModel.threadCount,
+                duration,
+                timer.stageNanos
             )
+        return StyleTransferResultBean(
+            aiBasicInfoBean,
+            resultBitmap
+        )
+    }
 
-            when (styleInputDataType) {
-                DataType.UINT8 -> {
-                    styleTensorImage.load(styleBitmap)
-                    val styleImageProcessor = ImageProcessor.Builder()
-                        .add(ResizeWithCropOrPadOp(styleCropSize, styleCropSize))
-                        .add(
-                            ResizeOp(
-                                styleTargetX,
-                                styleTargetY,
-                                ResizeOp.ResizeMethod.NEAREST_NEIGHBOR
-                            )
-                        )
-                        .add(Rot90Op(-styleRotationDegrees / 90))
-                        .build()
-
-                    styleTensorImage = styleImageProcessor.process(styleTensorImage)
-                }
-                DataType.FLOAT32 -> {
-                    val styleTensorBuffer =
-                        TensorBuffer.createFixedSize(styleInputShape, styleInputDataType)
-                    TFImageUtils.convertBitmapToTensorBuffer(
-                        styleBitmap,
-                        styleTensorBuffer
-                    )
-                    styleTensorImage.load(styleTensorBuffer)
+    /**
+     * 每对 style / content 模型对应一个模型图，风格不变时图里的 style predict 结果一直有效，
+     * 其他风格的瓶颈向量从 [bottleneckCache] 读取（[warmStyleBottlenecks] 预热的结果在这里生效）
+     */
+    private fun getStyleTransferGraph(styleModel: TFModel, contentModel: TFModel): StyleTransferGraph {
+        synchronized(styleTransferGraphs) {
+            return styleTransferGraphs.getOrPut(Pair(styleModel, contentModel)) {
+                StyleTransferGraph(styleModel, contentModel, getStyleImageStore(styleModel), bottleneckCache)
+            }
+        }
+    }
 
+    /**
+     * 实时风格转换的 Analyzer，交给 ImageAnalysis；没有在运行的流时直接关闭相机帧
+     */
+    val streamAnalyzer = ImageAnalysis.Analyzer { image ->
+        val stream = styleTransferStream
+        if (stream != null) {
+            stream.analyze(image)
+        } else {
+            image.close()
+        }
+    }
+
+    /**
+     * 开始实时风格转换，相机帧交给 [streamAnalyzer]，已经在运行的流会先停止。在主线程调用
+     *
+     * 在协程里等待 styleModel、在推理线程池上取得风格瓶颈向量、借用 [selectContentVariant] 选出的变体，
+     * 之后帧和统计发送到 [streamFrames] / [streamStats]，错误发送到 [styleTransferFailures] 并停止。
+     * 借用的变体在流停止、推理线程退出后才归还，期间变体切换或 ViewModel 清理都不会关闭它
+     */
+    fun startStreaming(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        styleImageName: String = "style0.jpg"
+    ) {
+        stopStreaming()
+        val readyStyle = AtomicReference(retainIfReady(styleModel))
+        val job = viewModelScope.launch(start = CoroutineStart.LAZY) {
+            try {
+                val bottleneck = withStyleModel(readyStyle, styleModel) {
+                    withContext(getInferenceDispatcher(it)) {
+                        getStyleBottleneck(it, styleImageName).buffer
+                    }
+                }
+                val contentModel = acquireContentVariant()
+                val listener = StreamListener(contentModel)
+                val stream = try {
+                    StyleTransferStream(contentModel, bottleneck, listener,
+                        StyleTransferStream.OnTerminatedListener { contentModelVariants.release(it) })
+                } catch (e: Exception) {
+                    contentModelVariants.release(contentModel)
+                    throw e
                 }
-                else -> {
-                    throw Exception("异常的输入类型，请更换模型${styleModel.path}")
+                listener.stream = stream
+                //最后一次挂起之后已经回到主线程，和 stopStreaming 不会交错
+                if (!isActive) {
+                    stream.stop()
+                    return@launch
+                }
+                styleTransferStream = stream
+                stream.start()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                //已经被 stopStreaming 取消的请求不能停掉之后开始的流
+                if (streamingJob === coroutineContext[Job]) {
+                    onStreamingFailed(e)
                 }
             }
+        }
+        job.invokeOnCompletion { readyStyle.getAndSet(null)?.close() }
+        streamingJob = job
+        streamingFlow.value = true
+        job.start()
+    }
 
-            styleModel.run(styleTensorImage.buffer, styleOutputTensorBuffer.buffer)
+    /**
+     * 在推理线程上回调，只更新 StateFlow；出错时切回主线程停止
+     */
+    private inner class StreamListener(private val contentModel: TFModel) : StyleTransferStream.Listener {
+        lateinit var stream: StyleTransferStream
 
+        override fun onFrame(styledBitmap: Bitmap, latencyNanos: Long, fps: Float, droppedFrames: Long) {
+            val aiBasicInfoBean = AiBasicInfoBean(
+                contentModel.device,
+                contentModel.threadCount,
+                latencyNanos / 1_000_000
+            )
+            streamFrameFlow.value = StyleTransferResultBean(aiBasicInfoBean, styledBitmap)
+            streamStatsFlow.value = StreamStatsBean(fps, latencyNanos / 1_000_000f, droppedFrames)
+        }
 
-            Log.i(TAG, "---------------contentModel----------------")
+        override fun onError(e: RuntimeException) {
+            viewModelScope.launch {
+                //之后已经重新开始的流不受影响
+                if (styleTransferStream === stream) {
+                    onStreamingFailed(e)
+                }
+            }
+        }
+    }
 
-            //处理 contentModel
-            val imageToJpegByteArray =
-                TFImageUtils.imageToJpegByteArray(imageProxy)
-                    ?: throw IllegalArgumentException("imageToJpegByteArray can't be null")
+    private fun onStreamingFailed(e: Exception) {
+        Log.e(TAG, "streaming failed", e)
+        stopStreaming()
+        styleTransferFailureChannel.offer(failureOf(e))
+    }
 
-            val contentBitmap =
-                BitmapFactory.decodeByteArray(imageToJpegByteArray, 0, imageToJpegByteArray.size)
-            var contentTensorImage = TensorImage()
+    /**
+     * 实时模式下切换风格，下一帧生效；风格瓶颈向量在推理线程池上取得，错误发送到 [styleTransferFailures]
+     */
+    fun switchStreamingStyle(styleModel: Future<ModelCache.Handle<TFModel>>, styleImageName: String) {
+        val readyStyle = AtomicReference(retainIfReady(styleModel))
+        val job = viewModelScope.launch(start = CoroutineStart.LAZY) {
+            try {
+                val bottleneck = withStyleModel(readyStyle, styleModel) {
+                    withContext(getInferenceDispatcher(it)) {
+                        getStyleBottleneck(it, styleImageName).buffer
+                    }
+                }
+                styleTransferStream?.setStyleBottleneck(bottleneck)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "switch streaming style failed", e)
+                styleTransferFailureChannel.offer(failureOf(e))
+            }
+        }
+        job.invokeOnCompletion { readyStyle.getAndSet(null)?.close() }
+        job.start()
+    }
 
-            val contentInputShape0 = contentModel.getInputTensorShape(0)
-            val contentInputDataType0 = contentModel.getInputTensorDataType(0)
-            val contentInputShape1 = contentModel.getInputTensorShape(1)
-            val contentInputDataType1 = contentModel.getInputTensorDataType(1)
+    /**
+     * 停止实时风格转换，在主线程调用。不等待正在进行的推理，返回后不会再发出帧；借用的 content 变体在推理线程退出后归还
+     */
+    fun stopStreaming() {
+        streamingJob?.cancel()
+        streamingJob = null
+        styleTransferStream?.stop()
+        styleTransferStream = null
+        streamingFlow.value = false
+        streamFrameFlow.value = null
+        streamStatsFlow.value = null
+    }
 
-            val contentOutputShape = contentModel.getOutputTensorShape(0)
-            val contentOutputDataType = contentModel.getOutputTensorDataType(0)
-            val contentOutputTensorBuffer =
-                TensorBuffer.createFixedSize(contentOutputShape, contentOutputDataType)
+    override fun onCleared() {
+        super.onCleared()
+        //viewModelScope 已经取消，正在执行的推理在下一个阶段开始之前结束
+        synchronized(this) {
+            cleared = true
+            inferenceDispatcher?.close()
+            inferenceDispatcher = null
+            tiledStyleTransfer?.close()
+            tiledStyleTransfer = null
+            tiledContentModelPool?.close()
+            tiledContentModelPool = null
+        }
+        //流和混合会话借用的 content 变体在最后一次推理结束后才真正关闭，下面关闭变体时不会关掉正在推理的模型
+        stopStreaming()
+        replaceBlendSession(null)
+        synchronized(styleTransferGraphs) {
+            styleTransferGraphs.values.forEach { it.close() }
+            styleTransferGraphs.clear()
+        }
+        if (contentModelVariantsDelegate.isInitialized()) {
+            contentModelVariants.close()
+        }
+        getApplication<App>().modelManager.removeOnUnloadListener(onModelUnloadListener)
+    }
 
-            val contentRotationDegrees = imageProxy.imageInfo.rotationDegrees
-            val contentTargetX = contentInputShape0[1]
-            val contentTargetY = contentInputShape0[2]
-            val contentCropSize = contentBitmap.width.coerceAtMost(contentBitmap.height)
+    /**
+     * 是否已经有可以用 [updateStyleTransferBlend] 调节的内容图
+     */
+    val isBlendPrepared: Boolean
+        get() = blendSession != null
 
-            Log.i(TAG, "contentRotationDegrees:$contentRotationDegrees")
-            Log.i(TAG, "contentCropSize:$contentCropSize")
-            Log.i(
-                TAG,
-                "contentInputShape0:${contentTargetX},${contentTargetY},${contentInputShape0[3]}, contentInputDataType0:$contentInputDataType0"
+    /**
+     * 风格混合：预处理拍摄的内容图并用 styleModel 计算内容图自身的瓶颈向量，保存为混合会话后按参数渲染一次，
+     * 之后 [updateStyleTransferBlend] 只需要混合向量和运行 content 模型。
+     * 和拍照风格转换共用请求槽，结果发送到 [styleTransferState]，错误发送到 [styleTransferFailures]；
+     * 无论成功、失败还是取消，imageProxy 都会被关闭
+     *
+     * @param styleWeights 风格图片名 -> 权重，非负，内部归一化；strength 大于 0 时至少有一个权重大于 0
+     * @param strength 【0,1】，0 时是内容图自身的风格
+     * @throws IllegalArgumentException 参数不合法，在调用线程上检查
+     */
+    fun requestStyleTransferBlend(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        imageProxy: ImageProxy,
+        styleWeights: Map<String, Float>,
+        strength: Float
+    ) {
+        val request = try {
+            blendRequest(styleWeights, strength)
+        } catch (e: IllegalArgumentException) {
+            imageProxy.close()
+            throw e
+        }
+        launchStyleTransfer(styleModel, imageProxy) {
+            prepareBlend(it, imageProxy, request)
+        }
+    }
+
+    /**
+     * 用新的权重和强度重新渲染最近一次 [requestStyleTransferBlend] 的内容图，适合滑杆实时调节：
+     * 新请求取消还在排队的旧请求，渲染依次执行，只发出最新请求的结果
+     *
+     * @throws IllegalArgumentException 参数不合法，在调用线程上检查
+     */
+    fun updateStyleTransferBlend(
+        styleModel: Future<ModelCache.Handle<TFModel>>,
+        styleWeights: Map<String, Float>,
+        strength: Float
+    ) {
+        val request = blendRequest(styleWeights, strength)
+        launchStyleTransfer(styleModel, null) {
+            blendMutex.withLock {
+                val session = blendSession
+                    ?: throw IllegalStateException("no blend session, call requestStyleTransferBlend first")
+                withContext(getInferenceDispatcher(it, session.contentModel)) {
+                    renderBlend(it, session, request)
+                }
+            }
+        }
+    }
+
+    private fun blendRequest(styleWeights: Map<String, Float>, strength: Float): BlendRequest {
+        if (!(strength >= 0f && strength <= 1f)) {
+            throw IllegalArgumentException("strength must be in [0,1]: $strength")
+        }
+        for ((name, weight) in styleWeights) {
+            if (!(weight >= 0f) || weight.isInfinite()) {
+                throw IllegalArgumentException("invalid weight of $name: $weight")
+            }
+        }
+        if (strength > 0f && styleWeights.values.sum() == 0f) {
+            throw IllegalArgumentException("styleWeights must have a weight > 0 when strength > 0")
+        }
+        return BlendRequest(HashMap(styleWeights), strength)
+    }
+
+    private suspend fun prepareBlend(
+        styleModel: TFModel,
+        imageProxy: ImageProxy,
+        request: BlendRequest
+    ): StyleTransferResultBean {
+        val imageClosed = AtomicBoolean()
+        val closeImage = {
+            if (imageClosed.compareAndSet(false, true)) {
+                //一定要释放，要不然连续拍照分析会导致内存不足无法开启camera继续拍照
+                imageProxy.close()
+            }
+        }
+        try {
+            coroutineContext.ensureActive()
+            val contentModel = acquireContentVariant()
+            //交给混合会话后由会话持有，换下或 ViewModel 清理时归还
+            var sessionOwnsContentModel = false
+            try {
+                //和渲染互斥，渲染中途不会换掉会话
+                return blendMutex.withLock {
+                    withContext(getInferenceDispatcher(styleModel, contentModel)) {
+                        val session = createBlendSession(styleModel, contentModel, imageProxy, closeImage)
+                        replaceBlendSession(session)
+                        sessionOwnsContentModel = true
+                        renderBlend(styleModel, session, request)
+                    }
+                }
+            } finally {
+                if (!sessionOwnsContentModel) {
+                    contentModelVariants.release(contentModel)
+                }
+            }
+        } finally {
+            closeImage()
+        }
+    }
+
+    /**
+     * 预处理成 contentModel 输入，并用 styleModel 计算内容图自身的瓶颈向量
+     */
+    private fun CoroutineScope.createBlendSession(
+        styleModel: TFModel,
+        contentModel: TFModel,
+        imageProxy: ImageProxy,
+        closeImage: () -> Unit
+    ): StyleBlendSession {
+        ensureActive()
+        val timer = pipelineMetrics.startTimer()
+        val contentPool = getInputPool(contentModel)
+        val stylePool = getInputPool(styleModel)
+        val contentInputEntry = contentPool.acquire()
+        val styleInputEntry = stylePool.acquire()
+        try {
+            timer.begin()
+            if (imageProxy.format == ImageFormat.YUV_420_888) {
+                contentInputEntry.load(imageProxy)
+                styleInputEntry.load(imageProxy)
+            } else {
+                val contentBitmap = decodeJpeg(imageProxy, timer)
+                val rotationDegrees = imageProxy.imageInfo.rotationDegrees
+                contentInputEntry.load(contentBitmap, rotationDegrees)
+                styleInputEntry.load(contentBitmap, rotationDegrees)
+                contentBitmap.recycle()
+            }
+            closeImage()
+            timer.end(PipelineMetrics.Stage.PREPROCESS)
+            ensureActive()
+
+            val contentBottleneck = TensorBuffer.createFixedSize(
+                styleModel.getOutputTensorShape(0),
+                styleModel.getOutputTensorDataType(0)
             )
-            Log.i(
-                TAG,
-                "contentInputShape1:${contentInputShape1[1]},${contentInputShape1[2]},${contentInputShape1[3]}, contentInputDataType1:$contentInputDataType1"
+            synchronized(styleModel) {
+                styleModel.run(styleInputEntry.buffer, contentBottleneck.buffer)
+            }
+            timer.end(PipelineMetrics.Stage.STYLE_PREDICT)
+
+            val session = StyleBlendSession(
+                contentModel,
+                contentInputEntry.buffer,
+                contentBottleneck.floatArray
             )
-            Log.i(
-                TAG,
-                "contentOutputShape:${contentOutputShape[1]},${contentOutputShape[2]},${contentOutputShape[3]}, contentOutputDataType:$contentOutputDataType"
+            Log.i(TAG, "prepareBlend in ${timer.finish() / 1_000_000}ms")
+            return session
+        } finally {
+            contentPool.release(contentInputEntry)
+            stylePool.release(styleInputEntry)
+        }
+    }
+
+    /**
+     * 换上新的混合会话（为空时清除），归还旧会话借用的 content 变体；ViewModel 已经清理时新会话直接归还
+     */
+    private fun replaceBlendSession(session: StyleBlendSession?) {
+        val released = ArrayList<StyleBlendSession>(2)
+        synchronized(this) {
+            blendSession?.let { released.add(it) }
+            blendSession = if (cleared) null else session
+            if (cleared && session != null) {
+                released.add(session)
+            }
+        }
+        released.forEach { contentModelVariants.release(it.contentModel) }
+    }
+
+    /**
+     * 风格瓶颈向量来自缓存，只运行一次 contentModel
+     */
+    private fun CoroutineScope.renderBlend(
+        styleModel: TFModel,
+        session: StyleBlendSession,
+        request: BlendRequest
+    ): StyleTransferResultBean {
+        ensureActive()
+        val timer = pipelineMetrics.startTimer()
+        val names = request.styleWeights.keys.toTypedArray()
+        //未命中时在 getStyleBottleneck 里记入 ASSET_DECODE / STYLE_PREDICT，
+        //命中时只是读取向量，和 render 里的向量混合一起计入 BLEND
+        val bottlenecks = Array(names.size) {
+            timer.begin()
+            val bottleneck = getStyleBottleneck(styleModel, names[it], timer).floatArray
+            timer.end(PipelineMetrics.Stage.BLEND)
+            bottleneck
+        }
+        ensureActive()
+        val weights = FloatArray(names.size) { request.styleWeights.getValue(names[it]) }
+        val resultBitmap = session.render(bottlenecks, weights, request.strength, timer)
+
+        val duration = timer.finish() / 1_000_000
+        pipelineMetrics.record(timer)
+        val contentModel = session.contentModel
+        val aiBasicInfoBean =
+            AiBasicInfoBean(
+                contentModel.device,
+                contentModel.threadCount,
+                duration,
+                timer.stageNanos
             )
+        return StyleTransferResultBean(
+            aiBasicInfoBean,
+            resultBitmap
+        )
+    }
 
-            when (contentInputDataType0) {
-                DataType.UINT8 -> {
-                    contentTensorImage.load(contentBitmap)
-                    val contentImageProcessor = ImageProcessor.Builder()
-                        .add(ResizeWithCropOrPadOp(contentCropSize, contentCropSize))
-                        .add(
-                            ResizeOp(
-                                contentTargetX,
-                                contentTargetY,
-                                ResizeOp.ResizeMethod.NEAREST_NEIGHBOR
-                            )
-                        )
-                        .add(Rot90Op(-contentRotationDegrees / 90))
-                        .build()
-                    contentTensorImage = contentImageProcessor.process(contentTensorImage)
-                }
-                DataType.FLOAT32 -> {
-
-                    val contentTensorBuffer =
-                        TensorBuffer.createFixedSize(contentInputShape0, contentInputDataType0)
-                    TFImageUtils.convertBitmapToTensorBuffer(
-                        contentBitmap,
-                        contentTensorBuffer
+    /**
+     * 分块风格转换，输出和拍摄的原图同样大小，在推理线程池上执行；取消后在下一行 tile 开始之前停止
+     */
+    suspend fun styleTransferTiled(
+        styleModel: TFModel,
+        imageProxy: ImageProxy,
+        styleImageName: String = "style0.jpg"
+    ): StyleTransferResultBean {
+        val imageClosed = AtomicBoolean()
+        val closeImage = {
+            if (imageClosed.compareAndSet(false, true)) {
+                //一定要释放，要不然连续拍照分析会导致内存不足无法开启camera继续拍照
+                imageProxy.close()
+            }
+        }
+        try {
+            coroutineContext.ensureActive()
+            //tile 在 TiledStyleTransfer 自己的工作线程上推理，这里只占一个推理线程协调
+            return withContext(getInferenceDispatcher(styleModel)) {
+                val tiledStyleTransfer = getTiledStyleTransfer()
+                val timer = pipelineMetrics.startTimer()
+                val styleOutputTensorBuffer = getStyleBottleneck(styleModel, styleImageName, timer)
+                ensureActive()
+
+                timer.begin()
+                var contentBitmap = decodeJpeg(imageProxy, timer)
+                val rotationDegrees = imageProxy.imageInfo.rotationDegrees
+                closeImage()
+                if (rotationDegrees != 0) {
+                    val matrix = Matrix()
+                    matrix.postRotate(rotationDegrees.toFloat())
+                    val rotated = Bitmap.createBitmap(
+                        contentBitmap, 0, 0, contentBitmap.width, contentBitmap.height, matrix, false
                     )
-                    contentTensorImage.load(contentTensorBuffer)
+                    contentBitmap.recycle()
+                    contentBitmap = rotated
                 }
-                else -> {
-                    throw Exception("异常的输入类型，请更换模型: ${contentModel.path}")
+                timer.end(PipelineMetrics.Stage.PREPROCESS)
+
+                Log.i(TAG, "styleTransferTiled ${contentBitmap.width}x${contentBitmap.height}")
+                //分块模式下 tile 的预处理和 tensor 转换都在工作线程上和推理交错执行，统一计入 CONTENT_TRANSFER
+                val resultBitmap = try {
+                    tiledStyleTransfer.transfer(
+                        contentBitmap,
+                        styleOutputTensorBuffer.buffer,
+                        ModelGraph.CancellationSignal { !isActive }
+                    )
+                } finally {
+                    contentBitmap.recycle()
                 }
+                timer.end(PipelineMetrics.Stage.CONTENT_TRANSFER)
+
+                val duration = timer.finish() / 1_000_000
+                pipelineMetrics.record(timer)
+                val aiBasicInfoBean =
+                    AiBasicInfoBean(
+                        tiledStyleTransfer.device,
+                        tiledStyleTransfer.threadCount,
+                        duration,
+                        timer.stageNanos
+                    )
+                StyleTransferResultBean(
+                    aiBasicInfoBean,
+                    resultBitmap
+                )
             }
+        } finally {
+            closeImage()
+        }
+    }
 
-            val composeInputs = arrayOf(contentTensorImage.buffer, styleOutputTensorBuffer.buffer)
-            val outputsMap = hashMapOf<Int, Any>()
-            outputsMap[0] = contentOutputTensorBuffer.buffer
-            contentModel.run(composeInputs, outputsMap)
+    /**
+     * 相机帧编码成 JPEG 再解码，JPEG 数据在池化数组中直接解码，不再 toByteArray 复制
+     */
+    private fun decodeJpeg(imageProxy: ImageProxy, timer: PipelineMetrics.Timer): Bitmap {
+        val contentBitmap = TFImageUtils.newPooledOutputStream().use { jpegStream ->
+            if (!TFImageUtils.imageToJpeg(imageProxy, jpegStream)) {
+                throw IllegalArgumentException("unsupported image format:${imageProxy.format}")
+            }
+            timer.end(PipelineMetrics.Stage.YUV_TO_JPEG)
+            BitmapFactory.decodeByteArray(jpegStream.buffer, 0, jpegStream.size())
+        }
+        timer.end(PipelineMetrics.Stage.JPEG_DECODE)
+        Log.d(TAG, "${TFImageUtils.getByteArrayPool()}")
+        return contentBitmap
+    }
 
-            val resultBitmap =
-                TFImageUtils.convertTensorBufferToBitmap(
-                    contentOutputTensorBuffer
-                )
-            val endTime=SystemClock.currentThreadTimeMillis()
-            val duration=endTime-startTime
-            val aiBasicInfoBean =
-                AiBasicInfoBean(
-                    contentModel.device,
-                    contentModel.threadCount,
-                    duration
+    /**
+     * 每个模型输入对应一个 buffer 池，多个线程同时转换时各自持有一个 entry
+     */
+    private fun getInputPool(model: TFModel): TensorBufferPool {
+        synchronized(inputPools) {
+            return inputPools.getOrPut(model) { TensorBufferPool.forModelInput(model, 0, 2) }
+        }
+    }
+
+    /**
+     * 每个 style predict 模型对应一个风格图片仓库，输入尺寸、类型和量化参数由模型决定
+     */
+    private fun getStyleImageStore(styleModel: TFModel): StyleImageStore {
+        synchronized(styleImageStores) {
+            return styleImageStores.getOrPut(styleModel) {
+                StyleImageStore(
+                    getApplication<App>().assets,
+                    STYLE_IMAGES_DIR,
+                    styleModel.getInputTensorShape(0),
+                    styleModel.getInputTensorDataType(0),
+                    styleModel.getInputQuantization(0),
+                    STYLE_IMAGE_STORE_BYTES
                 )
-            val resultBean = StyleTransferResultBean(
-                aiBasicInfoBean,
-                resultBitmap
+            }
+        }
+    }
+
+    /**
+     * 后台预热所有内置风格的瓶颈向量，已经在磁盘缓存中的会直接跳过，所以只有首次启动才会真正计算
+     */
+    fun warmStyleBottlenecks(styleModel: TFModel, executor: Executor) {
+        executor.execute {
+            val styleImageNames = getStyleImageStore(styleModel).list()
+            val startTime = SystemClock.elapsedRealtime()
+            var computed = 0
+            for (styleImageName in styleImageNames) {
+                val key = StyleBottleneckCache.key(styleImageName, styleModel.modelHash)
+                if (bottleneckCache.contains(key)) {
+                    continue
+                }
+                bottleneckCache.put(key, predictStyleBottleneck(styleModel, styleImageName).floatArray)
+                computed++
+            }
+            Log.i(
+                TAG,
+                "warmStyleBottlenecks computed:$computed/${styleImageNames.size} in ${SystemClock.elapsedRealtime() - startTime}ms, $bottleneckCache"
             )
-            styleTransferResultBeanLiveData.postValue(resultBean)
-            //一定要释放，要不然连续拍照分析会导致内存不足无法开启camera继续拍照
-            imageProxy.close()
+        }
+    }
 
+    /**
+     * 获取风格瓶颈向量 (1,1,1,100)，优先从缓存读取
+     */
+    fun getStyleBottleneck(
+        styleModel: TFModel,
+        styleImageName: String,
+        timer: PipelineMetrics.Timer? = null
+    ): TensorBuffer {
+        val key = StyleBottleneckCache.key(styleImageName, styleModel.modelHash)
+        val styleOutputShape = styleModel.getOutputTensorShape(0)
+        val cached = bottleneckCache.get(key, styleOutputShape.fold(1) { size, dim -> size * dim })
+        if (cached != null) {
+            val styleOutputTensorBuffer = TensorBuffer.createFixedSize(
+                styleOutputShape,
+                styleModel.getOutputTensorDataType(0)
+            )
+            styleOutputTensorBuffer.loadArray(cached, styleOutputShape)
+            return styleOutputTensorBuffer
+        }
+        val styleOutputTensorBuffer = predictStyleBottleneck(styleModel, styleImageName, timer)
+        bottleneckCache.put(key, styleOutputTensorBuffer.floatArray)
+        return styleOutputTensorBuffer
+    }
+
+    /**
+     * 从风格图片仓库取出模型输入并运行 style predict 模型
+     *
+     * 风格图片和相机方向无关，所以这里不做旋转，这样结果只取决于风格图片和模型，可以安全缓存
+     */
+    private fun predictStyleBottleneck(
+        styleModel: TFModel,
+        styleImageName: String,
+        timer: PipelineMetrics.Timer? = null
+    ): TensorBuffer {
+        val styleInputDataType = styleModel.getInputTensorDataType(0)
+        if (styleInputDataType != DataType.UINT8 && styleInputDataType != DataType.FLOAT32) {
+            throw Exception("异常的输入类型，请更换模型${styleModel.path}")
+        }
+        val styleOutputShape = styleModel.getOutputTensorShape(0)
+        val styleOutputTensorBuffer =
+            TensorBuffer.createFixedSize(styleOutputShape, styleModel.getOutputTensorDataType(0))
+
+        //仓库里的风格图片已经是模型输入，不在仓库中时才会解码，解码和预处理一起记在 ASSET_DECODE
+        timer?.begin()
+        val styleImageStore = getStyleImageStore(styleModel)
+        val styleImage = styleImageStore.acquire(styleImageName)
+        timer?.end(PipelineMetrics.Stage.ASSET_DECODE)
+        Log.i(TAG, "styleImageName:$styleImageName, $styleImageStore")
+
+        try {
+            //预热线程和拍照线程可能同时使用 styleModel，Interpreter 不是线程安全的
+            synchronized(styleModel) {
+                styleModel.run(styleImage.buffer, styleOutputTensorBuffer.buffer)
+            }
+        } finally {
+            styleImageStore.release(styleImage)
         }
+        timer?.end(PipelineMetrics.Stage.STYLE_PREDICT)
+        return styleOutputTensorBuffer
     }
 
 
@@ -0,0 +1,128 @@
+package com.zoomself.ai.utils
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.tensorflow.lite.DataType
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class TFImageUtilsTest {
+
+    /**
+     * 带 padding 的 YUV420 测试帧，亮度沿 x 渐变，色度沿 y 渐变，保证旋转错误可以被发现
+     */
+    private class YuvFrame(
+        val width: Int,
+        val height: Int,
+        val yRowStride: Int,
+        val uvRowStride: Int,
+        val uvPixelStride: Int
+    ) {
+        val y = ByteArray(yRowStride * height)
+        val u = ByteArray(uvRowStride * (height / 2))
+        val v = ByteArray(uvRowStride * (height / 2))
+
+        init {
+            for (row in 0 until height) {
+                for (col in 0 until width) {
+                    y[row * yRowStride + col] = (16 + col * 219 / width).toByte()
+                }
+            }
+            for (row in 0 until height / 2) {
+                for (col in 0 until width / 2) {
+                    val offset = row * uvRowStride + col * uvPixelStride
+                    u[offset] = (64 + row * 128 / (height / 2)).toByte()
+                    v[offset] = (192 - row * 128 / (height / 2)).toByte()
+                }
+            }
+        }
+    }
+
+    /**
+     * 现有路径（去掉 JPEG 编解码）：整帧转 ARGB -> 中心裁剪正方形 -> 最近邻缩放 -> 顺时针旋转 -> 归一化
+     */
+    private fun referenceTensor(frame: YuvFrame, rotation: Int, outSize: Int): FloatArray {
+        val argb = IntArray(frame.width * frame.height)
+        TFImageUtils.convertYUV420ToARGB8888(
+            frame.y, frame.u, frame.v, frame.width, frame.height,
+            frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, argb
+        )
+        val size = minOf(frame.width, frame.height)
+        val left = (frame.width - size) / 2
+        val top = (frame.height - size) / 2
+        val resized = IntArray(outSize * outSize)
+        for (row in 0 until outSize) {
+            for (col in 0 until outSize) {
+                val sx = left + col * size / outSize
+                val sy = top + row * size / outSize
+                resized[row * outSize + col] = argb[sy * frame.width + sx]
+            }
+        }
+        val rotated = IntArray(outSize * outSize)
+        val last = outSize - 1
+        for (row in 0 until outSize) {
+            for (col in 0 until outSize) {
+                val (sx, sy) = when (rotation) {
+                    90 -> row to last - col
+                    180 -> last - col to last - row
+                    270 -> last - row to col
+                    else -> col to row
+                }
+                rotated[row * outSize + col] = resized[sy * outSize + sx]
+            }
+        }
+        val tensor = FloatArray(outSize * outSize * 3)
+        rotated.forEachIndexed { i, pixel ->
+            tensor[i * 3] = (pixel shr 16 and 0xFF) / 255f
+            tensor[i * 3 + 1] = (pixel shr 8 and 0xFF) / 255f
+            tensor[i * 3 + 2] = (pixel and 0xFF) / 255f
+        }
+        return tensor
+    }
+
+    private fun fusedTensor(frame: YuvFrame, rotation: Int, outSize: Int, dataType: DataType): FloatArray {
+        val out = ByteBuffer.allocateDirect(outSize * outSize * 3 * dataType.byteSize())
+            .order(ByteOrder.nativeOrder())
+        TFImageUtils.convertYUV420ToTensor(
+            ByteBuffer.wrap(frame.y), ByteBuffer.wrap(frame.u), ByteBuffer.wrap(frame.v),
+            frame.yRowStride, frame.uvRowStride, frame.uvPixelStride,
+            frame.width, frame.height, 0, 0, frame.width, frame.height,
+            rotation, outSize, outSize, dataType, out
+        )
+        assertFalse(out.hasRemaining())
+        out.rewind()
+        return FloatArray(outSize * outSize * 3) {
+            if (dataType == DataType.FLOAT32) out.float else (out.get().toInt() and 0xFF) / 255f
+        }
+    }
+
+    @Test
+    fun convertYUV420ToTensor_matchesCurrentPath() {
+        val frames = listOf(
+            YuvFrame(160, 120, 160, 160, 2),
+            YuvFrame(160, 120, 192, 96, 1),
+            YuvFrame(120, 160, 128, 128, 2)
+        )
+        for (frame in frames) {
+            for (rotation in intArrayOf(0, 90, 180, 270)) {
+                for (dataType in arrayOf(DataType.FLOAT32, DataType.UINT8)) {
+                    val expected = referenceTensor(frame, rotation, 64)
+                    val actual = fusedTensor(frame, rotation, 64, dataType)
+                    //采样点相差不超过一个像素，渐变图上误差很小；JPEG q100 本身也有类似量级误差
+                    for (i in expected.indices) {
+                        assertEquals(
+                            "${frame.width}x${frame.height} rotation:$rotation $dataType index:$i",
+                            expected[i], actual[i], 0.05f
+                        )
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun convertYUV420ToTensor_rejectsInvalidRotation() {
+        val frame = YuvFrame(16, 16, 16, 16, 2)
+        fusedTensor(frame, 45, 8, DataType.FLOAT32)
+    }
+}
@@ -0,0 +1,78 @@
+package com.zoomself.ai.utils
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.tensorflow.lite.DataType
+import java.lang.management.ManagementFactory
+import java.nio.ByteOrder
+
+class TensorBufferPoolTest {
+
+    private val threadMXBean =
+        ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun pixels(size: Int) = IntArray(size * size) { 0xff000000.toInt() or (it * 2654435761L).toInt() }
+
+    @Test
+    fun buffer_isDirectNativeOrderAndSizedFromShape() {
+        val pool = TensorBufferPool(intArrayOf(1, 256, 256, 3), DataType.FLOAT32, 2)
+        val buffer = pool.acquire().buffer
+        assertTrue(buffer.isDirect)
+        assertEquals(ByteOrder.nativeOrder(), buffer.order())
+        assertEquals(256 * 256 * 3 * 4, buffer.capacity())
+    }
+
+    @Test
+    fun load_writesNormalizedRgb() {
+        val pool = TensorBufferPool(intArrayOf(1, 1, 2, 3), DataType.FLOAT32, 1)
+        val buffer = pool.acquire().load(intArrayOf(0xffff8000.toInt(), 0xff0000ff.toInt()))
+        assertEquals(1.0f, buffer.getFloat(0), 0f)
+        assertEquals(128 / 255.0f, buffer.getFloat(4), 0f)
+        assertEquals(0.0f, buffer.getFloat(8), 0f)
+        assertEquals(1.0f, buffer.getFloat(20), 0f)
+    }
+
+    @Test
+    fun load_writesOneBytePerChannelForUint8() {
+        val pool = TensorBufferPool(intArrayOf(1, 1, 1, 3), DataType.UINT8, 1)
+        val buffer = pool.acquire().load(intArrayOf(0xff102030.toInt()))
+        assertEquals(3, buffer.capacity())
+        assertEquals(0x10, buffer.get(0).toInt())
+        assertEquals(0x20, buffer.get(1).toInt())
+        assertEquals(0x30, buffer.get(2).toInt())
+    }
+
+    @Test
+    fun acquire_reusesReleasedEntry() {
+        val pool = TensorBufferPool(intArrayOf(1, 8, 8, 3), DataType.FLOAT32, 1)
+        val entry = pool.acquire()
+        pool.release(entry)
+        assertSame(entry, pool.acquire())
+    }
+
+    @Test
+    fun steadyStateConversion_allocatesNothing() {
+        for (dataType in arrayOf(DataType.FLOAT32, DataType.UINT8)) {
+            val pool = TensorBufferPool(intArrayOf(1, 256, 256, 3), dataType, 2)
+            val pixels = pixels(256)
+            //预热：创建 entry、JIT 编译
+            repeat(1000) {
+                val entry = pool.acquire()
+                entry.load(pixels)
+                pool.release(entry)
+            }
+
+            val threadId = Thread.currentThread().id
+            val before = threadMXBean.getThreadAllocatedBytes(threadId)
+            for (i in 0 until 1000) {
+                val entry = pool.acquire()
+                entry.load(pixels)
+                pool.release(entry)
+            }
+            val allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before
+
+            //一帧 256x256 float 输入就有 768KB，这里只允许测量本身的少量噪声
+            assertTrue("$dataType allocated $allocated bytes", allocated < 1024)
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.zoomself.ai.benchmark;
+
+import com.zoomself.ai.core.ImageKernels;
+import com.zoomself.ai.core.TensorPreprocessor;
+import com.zoomself.ai.core.TensorToPixelsConverter;
+import com.zoomself.ai.core.TensorType;
+import com.zoomself.ai.core.YuvToArgbConverter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TFImageUtils 中 CPU 密集的像素内核在常见相机分辨率下的吞吐量
+ * <p>
+ * 每次操作处理一整帧，输出单位是微秒，所以 {@link PixelCounter#pixels} 一栏（pixels/us）就是 MPixel/s。
+ * 分配速率看 gc profiler 的 gc.alloc.rate 和 gc.alloc.rate.norm。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ImageKernelsBenchmark {
+    //预处理输出的模型输入尺寸
+    private static final int MODEL_INPUT_SIZE = 384;
+
+    @Param({"640x480", "1280x720", "1920x1080", "4032x3024"})
+    public String resolution;
+
+    @Param({"FLOAT32", "UINT8"})
+    public TensorType tensorType;
+
+    private int width;
+    private int height;
+
+    //模拟相机常见的 YUV_420_888 布局：行尾有 padding，UV 交错（pixelStride 为 2）
+    private int yRowStride;
+    private int uvRowStride;
+    private final int uvPixelStride = 2;
+    private byte[] yData;
+    private byte[] uData;
+    private byte[] vData;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+
+    private int[] argb;
+    private final YuvToArgbConverter yuvToArgbConverter = new YuvToArgbConverter();
+    private final TensorToPixelsConverter tensorToPixelsConverter =
+            new TensorToPixelsConverter(ForkJoinPool.commonPool());
+    //Bitmap.copyPixelsFromBuffer 使用的 RGBA 像素
+    private IntBuffer rgbaPixels;
+    private byte[] nv21;
+    private ByteBuffer tensor;
+    private TensorPreprocessor nearestPreprocessor;
+    private TensorPreprocessor bilinearPreprocessor;
+    private ByteBuffer modelInput;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class PixelCounter {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        yRowStride = (width + 63) / 64 * 64;
+        uvRowStride = yRowStride;
+
+        Random random = new Random(42);
+        yData = new byte[yRowStride * height];
+        random.nextBytes(yData);
+        //semi-planar：U 平面从 V 平面后一个字节开始（NV21），和大部分相机 HAL 一致
+        byte[] vuData = new byte[uvRowStride * (height / 2) + 1];
+        random.nextBytes(vuData);
+        vData = vuData;
+        uData = new byte[vuData.length];
+        System.arraycopy(vuData, 1, uData, 0, vuData.length - 1);
+
+        yPlane = ByteBuffer.allocateDirect(yData.length);
+        yPlane.put(yData).rewind();
+        ByteBuffer vuPlane = ByteBuffer.allocateDirect(vuData.length);
+        vuPlane.put(vuData).rewind();
+        vPlane = vuPlane.duplicate();
+        vPlane.limit(vuData.length - 1);
+        vPlane = vPlane.slice();
+        vuPlane.position(1);
+        uPlane = vuPlane.slice();
+
+        argb = new int[width * height];
+        ImageKernels.convertYUV420ToARGB8888(yData, uData, vData, width, height,
+                yRowStride, uvRowStride, uvPixelStride, argb);
+        nv21 = new byte[ImageKernels.nv21Size(width, height)];
+        tensor = ByteBuffer.allocateDirect(width * height * 3 * tensorType.byteSize())
+                .order(ByteOrder.nativeOrder());
+        tensor.rewind();
+        ImageKernels.argbToTensor(argb, width * height, tensorType, tensor);
+
+        rgbaPixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        nearestPreprocessor = new TensorPreprocessor.Builder(MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, tensorType)
+                .setSampling(TensorPreprocessor.Sampling.NEAREST)
+                .build();
+        bilinearPreprocessor = new TensorPreprocessor.Builder(MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, tensorType)
+                .setSampling(TensorPreprocessor.Sampling.BILINEAR)
+                .build();
+        modelInput = ByteBuffer.allocateDirect(MODEL_INPUT_SIZE * MODEL_INPUT_SIZE * 3 * tensorType.byteSize())
+                .order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public int[] convertYUV420ToARGB8888(PixelCounter counter) {
+        ImageKernels.convertYUV420ToARGB8888(yData, uData, vData, width, height,
+                yRowStride, uvRowStride, uvPixelStride, argb);
+        counter.pixels += (long) width * height;
+        return argb;
+    }
+
+    /**
+     * 查找表 + 行带并行的版本，和上面的标量版本对比
+     */
+    @Benchmark
+    public int[] convertYUV420ToARGB8888Parallel(PixelCounter counter) {
+        yuvToArgbConverter.convert(yData, uData, vData, width, height,
+                yRowStride, uvRowStride, uvPixelStride, argb);
+        counter.pixels += (long) width * height;
+        return argb;
+    }
+
+    @Benchmark
+    public byte[] yuv420ToNv21(PixelCounter counter) {
+        ImageKernels.yuv420ToNv21(yPlane, uPlane, vPlane, width, height,
+                yRowStride, uvRowStride, uvRowStride, uvPixelStride, uvPixelStride, nv21);
+        counter.pixels += (long) width * height;
+        return nv21;
+    }
+
+    @Benchmark
+    public ByteBuffer argbToTensor(PixelCounter counter) {
+        tensor.rewind();
+        ImageKernels.argbToTensor(argb, width * height, tensorType, tensor);
+        counter.pixels += (long) width * height;
+        return tensor;
+    }
+
+    @Benchmark
+    public int[] tensorToArgb(PixelCounter counter) {
+        ImageKernels.tensorToArgb(tensor, tensorType, width * height, argb);
+        counter.pixels += (long) width * height;
+        return argb;
+    }
+
+    /**
+     * 并行、截断，直接写入 direct RGBA buffer（Bitmap.copyPixelsFromBuffer 的格式）
+     */
+    @Benchmark
+    public IntBuffer tensorToPixelsParallel(PixelCounter counter) {
+        tensorToPixelsConverter.convert(tensor, tensorType, width, height, rgbaPixels,
+                TensorToPixelsConverter.PixelFormat.RGBA);
+        counter.pixels += (long) width * height;
+        return rgbaPixels;
+    }
+
+    /**
+     * 整帧居中裁剪 + 旋转 90 度 + 缩放到模型输入，pixels 按源图像素计
+     */
+    @Benchmark
+    public ByteBuffer preprocessNearest(PixelCounter counter) {
+        modelInput.rewind();
+        nearestPreprocessor.process(argb, width, height, 90, modelInput);
+        counter.pixels += (long) width * height;
+        return modelInput;
+    }
+
+    @Benchmark
+    public ByteBuffer preprocessBilinear(PixelCounter counter) {
+        modelInput.rewind();
+        bilinearPreprocessor.process(argb, width, height, 90, modelInput);
+        counter.pixels += (long) width * height;
+        return modelInput;
+    }
+}
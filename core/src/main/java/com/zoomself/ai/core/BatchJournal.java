@@ -0,0 +1,106 @@
+package com.zoomself.ai.core;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 批处理的完成记录，每完成一项追加一行 key，中断后重新运行时跳过已完成的项
+ * <p>
+ * 只追加不改写，进程在写一行的中途被杀掉时，最后一行不完整，读取时会被忽略（该项重新处理）。
+ * 使用 java.io.File，Android API 26 以下也能用。
+ */
+public final class BatchJournal implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Set<String> completed = new HashSet<>();
+    private Writer writer;
+
+    /**
+     * 读取已有的记录，文件不存在时视为空
+     */
+    public BatchJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), UTF_8))) {
+                StringBuilder content = new StringBuilder();
+                char[] chunk = new char[8192];
+                int length;
+                while ((length = reader.read(chunk)) != -1) {
+                    content.append(chunk, 0, length);
+                }
+                //只认以换行结尾的完整行
+                int start = 0;
+                int end;
+                while ((end = content.indexOf("\n", start)) != -1) {
+                    if (end > start) {
+                        completed.add(content.substring(start, end));
+                    }
+                    start = end + 1;
+                }
+                if (start < content.length()) {
+                    truncateTo(start, content);
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isCompleted(String key) {
+        return completed.contains(key);
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * 记录完成并立即 flush
+     */
+    public synchronized void markCompleted(String key) throws IOException {
+        if (key.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("key can not contain line break: " + key);
+        }
+        if (!completed.add(key)) {
+            return;
+        }
+        if (writer == null) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("can not create " + parent);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+        }
+        writer.write(key);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * 去掉不完整的最后一行，否则之后追加的内容会接在它后面
+     */
+    private void truncateTo(int charLength, StringBuilder content) throws IOException {
+        long bytes = content.substring(0, charLength).getBytes(UTF_8).length;
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getChannel().truncate(bytes);
+        }
+    }
+}
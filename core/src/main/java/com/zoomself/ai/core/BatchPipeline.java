@@ -0,0 +1,446 @@
+package com.zoomself.ai.core;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 三级有界流水线：并行解码 -> 推理 -> 并行编码写入
+ * <p>
+ * 各级之间是容量固定的阻塞队列，慢的一级会让前面的级阻塞，同时存在的中间结果最多是
+ * 队列容量加上各级线程数，不会因为解码比推理快而把整个目录读进内存。
+ * 每一项完成后写入 {@link BatchJournal}，中断后重新运行会跳过已完成的项。
+ * 单项失败只计数并回调，不影响其他项，也不写入记录，下次运行会重试。
+ * 任何一级出错都会把结束标记传下去，{@link #run(Iterator)} 不会因为某个线程意外退出而一直阻塞。
+ *
+ * @param <J> 任务，比如一个图片文件
+ * @param <D> 解码结果，比如模型输入 tensor
+ * @param <R> 推理结果
+ */
+public final class BatchPipeline<J, D, R> {
+
+    public interface Stages<J, D, R> {
+        /**
+         * 用于断点续跑的唯一 key，不能包含换行
+         */
+        String key(J job);
+
+        D decode(J job) throws Exception;
+
+        R infer(J job, D decoded) throws Exception;
+
+        void encode(J job, R result) throws Exception;
+    }
+
+    public interface Listener<J> {
+        void onCompleted(J job, Stats stats);
+
+        /**
+         * @param e 不是 {@link Exception} 的异常（比如解码时 OutOfMemoryError）包装成 {@link ExecutionException}
+         */
+        void onFailed(J job, Exception e);
+    }
+
+    private final Stages<J, D, R> stages;
+    private final int decodeWorkers;
+    private final int inferenceWorkers;
+    private final int encodeWorkers;
+    private final int queueCapacity;
+    private final BatchJournal journal;
+    private final Listener<J> listener;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong inferenceNanos = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile boolean cancelled;
+    private volatile long startNanos;
+
+    private BatchPipeline(Builder<J, D, R> builder) {
+        this.stages = builder.stages;
+        this.decodeWorkers = builder.decodeWorkers;
+        this.inferenceWorkers = builder.inferenceWorkers;
+        this.encodeWorkers = builder.encodeWorkers;
+        this.queueCapacity = builder.queueCapacity;
+        this.journal = builder.journal;
+        this.listener = builder.listener;
+    }
+
+    /**
+     * 处理所有任务，阻塞到全部完成或 {@link #cancel()}；只能调用一次
+     * <p>
+     * 单项的失败（包括 {@link Error}）只计数；任务迭代器或 {@link Listener} 抛出的异常会在所有线程退出后重新抛出
+     */
+    public Stats run(Iterator<J> jobs) throws InterruptedException {
+        startNanos = System.nanoTime();
+        BlockingQueue<Item<J, D, R>> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item<J, D, R>> inferred = new ArrayBlockingQueue<>(queueCapacity);
+        Thread[] threads = new Thread[decodeWorkers + inferenceWorkers + encodeWorkers];
+        AtomicInteger decodeAlive = new AtomicInteger(decodeWorkers);
+        AtomicInteger inferenceAlive = new AtomicInteger(inferenceWorkers);
+
+        int t = 0;
+        for (int i = 0; i < decodeWorkers; i++) {
+            threads[t++] = new Thread(new DecodeWorker(jobs, decoded, decodeAlive), "batch-decode-" + i);
+        }
+        for (int i = 0; i < inferenceWorkers; i++) {
+            threads[t++] = new Thread(new InferenceWorker(decoded, inferred, inferenceAlive), "batch-infer-" + i);
+        }
+        for (int i = 0; i < encodeWorkers; i++) {
+            threads[t++] = new Thread(new EncodeWorker(inferred), "batch-encode-" + i);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+        Throwable e = error.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IllegalStateException(e);
+        }
+        return getStats();
+    }
+
+    /**
+     * 不再开始新的任务，已经解码的任务继续完成
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public Stats getStats() {
+        return new Stats(completed.get(), skipped.get(), failed.get(), System.nanoTime() - startNanos,
+                decodeNanos.get(), inferenceNanos.get(), encodeNanos.get());
+    }
+
+    private void fail(J job, Throwable e) {
+        failed.incrementAndGet();
+        if (listener != null) {
+            try {
+                listener.onFailed(job, e instanceof Exception ? (Exception) e : new ExecutionException(e));
+            } catch (Throwable listenerError) {
+                abort(listenerError);
+            }
+        }
+    }
+
+    private void complete(J job) {
+        completed.incrementAndGet();
+        if (listener != null) {
+            try {
+                listener.onCompleted(job, getStats());
+            } catch (Throwable listenerError) {
+                abort(listenerError);
+            }
+        }
+    }
+
+    /**
+     * 不属于某一项的异常：记录第一个，停止开始新的任务，已经在队列里的继续完成，{@link #run(Iterator)} 最后抛出
+     */
+    private void abort(Throwable e) {
+        error.compareAndSet(null, e);
+        cancelled = true;
+    }
+
+    /**
+     * 一级的最后一个线程退出时，给下一级的每个线程放一个结束标记；在 finally 里调用，保证下一级一定能结束
+     */
+    private static <J, D, R> void finishStage(AtomicInteger alive, BlockingQueue<Item<J, D, R>> next, int nextWorkers) {
+        if (alive.decrementAndGet() == 0) {
+            try {
+                for (int i = 0; i < nextWorkers; i++) {
+                    next.put(Item.<J, D, R>end());
+                }
+            } catch (InterruptedException e) {
+                //只有 run 被中断时才会走到这里，这时已经不再等待各级结束
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class DecodeWorker implements Runnable {
+        private final Iterator<J> jobs;
+        private final BlockingQueue<Item<J, D, R>> out;
+        private final AtomicInteger alive;
+
+        DecodeWorker(Iterator<J> jobs, BlockingQueue<Item<J, D, R>> out, AtomicInteger alive) {
+            this.jobs = jobs;
+            this.out = out;
+            this.alive = alive;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!cancelled) {
+                    J job;
+                    synchronized (jobs) {
+                        if (!jobs.hasNext()) {
+                            break;
+                        }
+                        job = jobs.next();
+                    }
+                    long start;
+                    D decoded;
+                    try {
+                        if (journal != null && journal.isCompleted(stages.key(job))) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                        start = System.nanoTime();
+                        decoded = stages.decode(job);
+                    } catch (Throwable e) {
+                        fail(job, e);
+                        continue;
+                    }
+                    decodeNanos.addAndGet(System.nanoTime() - start);
+                    out.put(new Item<J, D, R>(job, decoded, null));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                //任务迭代器抛出的异常
+                abort(e);
+            } finally {
+                finishStage(alive, out, inferenceWorkers);
+            }
+        }
+    }
+
+    private class InferenceWorker implements Runnable {
+        private final BlockingQueue<Item<J, D, R>> in;
+        private final BlockingQueue<Item<J, D, R>> out;
+        private final AtomicInteger alive;
+
+        InferenceWorker(BlockingQueue<Item<J, D, R>> in, BlockingQueue<Item<J, D, R>> out, AtomicInteger alive) {
+            this.in = in;
+            this.out = out;
+            this.alive = alive;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Item<J, D, R> item = in.take();
+                    if (item.job == null) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    R result;
+                    try {
+                        result = stages.infer(item.job, item.decoded);
+                    } catch (Throwable e) {
+                        fail(item.job, e);
+                        continue;
+                    }
+                    inferenceNanos.addAndGet(System.nanoTime() - start);
+                    out.put(new Item<J, D, R>(item.job, null, result));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finishStage(alive, out, encodeWorkers);
+            }
+        }
+    }
+
+    private class EncodeWorker implements Runnable {
+        private final BlockingQueue<Item<J, D, R>> in;
+
+        EncodeWorker(BlockingQueue<Item<J, D, R>> in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Item<J, D, R> item = in.take();
+                    if (item.job == null) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        stages.encode(item.job, item.result);
+                        if (journal != null) {
+                            journal.markCompleted(stages.key(item.job));
+                        }
+                    } catch (Throwable e) {
+                        fail(item.job, e);
+                        continue;
+                    }
+                    encodeNanos.addAndGet(System.nanoTime() - start);
+                    complete(item.job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 队列中的一项，job 为 null 表示上一级已经结束
+     */
+    private static final class Item<J, D, R> {
+        final J job;
+        final D decoded;
+        final R result;
+
+        Item(J job, D decoded, R result) {
+            this.job = job;
+            this.decoded = decoded;
+            this.result = result;
+        }
+
+        static <J, D, R> Item<J, D, R> end() {
+            return new Item<>(null, null, null);
+        }
+    }
+
+    /**
+     * 吞吐统计，各级耗时是该级所有线程的耗时之和，除以线程数和总耗时可以看出哪一级是瓶颈
+     */
+    public static final class Stats {
+        private final long completed;
+        private final long skipped;
+        private final long failed;
+        private final long elapsedNanos;
+        private final long decodeNanos;
+        private final long inferenceNanos;
+        private final long encodeNanos;
+
+        Stats(long completed, long skipped, long failed, long elapsedNanos,
+              long decodeNanos, long inferenceNanos, long encodeNanos) {
+            this.completed = completed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.decodeNanos = decodeNanos;
+            this.inferenceNanos = inferenceNanos;
+            this.encodeNanos = encodeNanos;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        public long getInferenceNanos() {
+            return inferenceNanos;
+        }
+
+        public long getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        /**
+         * 本次运行每秒完成的项数，不包括跳过的
+         */
+        public double getThroughput() {
+            return elapsedNanos > 0 ? completed * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            long done = Math.max(1, completed);
+            return String.format(Locale.US,
+                    "BatchStats{completed=%d, skipped=%d, failed=%d, elapsed=%dms, throughput=%.2f/s, "
+                            + "decode=%.1fms, infer=%.1fms, encode=%.1fms per item}",
+                    completed, skipped, failed, elapsedNanos / 1_000_000, getThroughput(),
+                    decodeNanos / 1e6 / done, inferenceNanos / 1e6 / done, encodeNanos / 1e6 / done);
+        }
+    }
+
+    public static class Builder<J, D, R> {
+        private final Stages<J, D, R> stages;
+        private int decodeWorkers = 2;
+        private int inferenceWorkers = 1;
+        private int encodeWorkers = 2;
+        private int queueCapacity = 4;
+        private BatchJournal journal;
+        private Listener<J> listener;
+
+        public Builder(Stages<J, D, R> stages) {
+            this.stages = stages;
+        }
+
+        public Builder<J, D, R> setWorkers(int decodeWorkers, int inferenceWorkers, int encodeWorkers) {
+            if (decodeWorkers <= 0 || inferenceWorkers <= 0 || encodeWorkers <= 0) {
+                throw new IllegalArgumentException("workers must > 0");
+            }
+            this.decodeWorkers = decodeWorkers;
+            this.inferenceWorkers = inferenceWorkers;
+            this.encodeWorkers = encodeWorkers;
+            return this;
+        }
+
+        /**
+         * 每个级间队列的容量，默认 4
+         */
+        public Builder<J, D, R> setQueueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity must > 0");
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * 断点续跑记录，为空时每次都处理全部任务
+         */
+        public Builder<J, D, R> setJournal(BatchJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * 在编码线程上回调
+         */
+        public Builder<J, D, R> setListener(Listener<J> listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public BatchPipeline<J, D, R> build() {
+            return new BatchPipeline<>(this);
+        }
+    }
+}
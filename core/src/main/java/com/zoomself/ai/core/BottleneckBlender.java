@@ -0,0 +1,90 @@
+package com.zoomself.ai.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 风格瓶颈向量的加权混合
+ * <p>
+ * style predict 模型把风格压缩成一个短向量，多个风格的向量线性插值后仍然是有效的风格，
+ * 和内容图自身的瓶颈向量插值就是风格强度。混合只是几百次乘加，不需要重新运行 style predict 模型。
+ */
+public final class BottleneckBlender {
+
+    private BottleneckBlender() {
+    }
+
+    /**
+     * out[i] = sum(weights[k] * bottlenecks[k][i]) / sum(weights)
+     *
+     * @param weights 非负，至少有一个大于 0；权重为 0 的向量不参与计算
+     */
+    public static void blend(float[][] bottlenecks, float[] weights, float[] out) {
+        float total = checkWeights(bottlenecks, weights, out.length);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = 0f;
+        }
+        for (int k = 0; k < bottlenecks.length; k++) {
+            float w = weights[k] / total;
+            if (w == 0f) {
+                continue;
+            }
+            float[] bottleneck = bottlenecks[k];
+            for (int i = 0; i < out.length; i++) {
+                out[i] += w * bottleneck[i];
+            }
+        }
+    }
+
+    /**
+     * 同 {@link #blend(float[][], float[], float[])}，结果按 FLOAT32 写入 out 的开头，out 的 position 不变
+     *
+     * @param scratch 长度等于向量长度的临时数组，调用方复用
+     */
+    public static void blend(float[][] bottlenecks, float[] weights, float[] scratch, ByteBuffer out) {
+        if (out.capacity() < scratch.length * TensorType.FLOAT32.byteSize()) {
+            throw new IllegalArgumentException("out too small: " + out.capacity());
+        }
+        blend(bottlenecks, weights, scratch);
+        //duplicate 会把字节序重置为 BIG_ENDIAN
+        ByteBuffer target = out.duplicate().order(out.order());
+        target.clear();
+        target.asFloatBuffer().put(scratch);
+    }
+
+    /**
+     * 风格强度：strength 为 1 时完全是风格，为 0 时完全是内容自身
+     */
+    public static void interpolate(float[] content, float[] style, float strength, float[] out) {
+        blend(new float[][]{content, style}, new float[]{1f - strength, strength}, out);
+    }
+
+    /**
+     * 直接分配一个 FLOAT32 的 direct buffer，可以作为模型输入
+     */
+    public static ByteBuffer allocate(int length) {
+        return ByteBuffer.allocateDirect(length * TensorType.FLOAT32.byteSize()).order(ByteOrder.nativeOrder());
+    }
+
+    private static float checkWeights(float[][] bottlenecks, float[] weights, int length) {
+        if (bottlenecks.length != weights.length) {
+            throw new IllegalArgumentException("bottlenecks and weights length mismatch: "
+                    + bottlenecks.length + " != " + weights.length);
+        }
+        float total = 0f;
+        for (int k = 0; k < weights.length; k++) {
+            if (!(weights[k] >= 0f) || Float.isInfinite(weights[k])) {
+                throw new IllegalArgumentException("invalid weight: " + weights[k]);
+            }
+            if (bottlenecks[k].length != length) {
+                throw new IllegalArgumentException("bottleneck " + k + " length " + bottlenecks[k].length
+                        + " != " + length);
+            }
+            total += weights[k];
+        }
+        if (total == 0f) {
+            throw new IllegalArgumentException("all weights are 0");
+        }
+        return total;
+    }
+}
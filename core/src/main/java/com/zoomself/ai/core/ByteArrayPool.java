@@ -0,0 +1,166 @@
+package com.zoomself.ai.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 按大小分级的 byte[] 池，给 NV21 / JPEG 这类每帧大小相同的临时数组复用
+ * <p>
+ * 每个 2 的幂区间 (2^k, 2^(k+1)] 再等分成 4 级，{@link #acquire(int)} 返回的数组长度是不小于请求大小的最小一级，
+ * 最多比请求大 25%（只按 2 的幂分桶时 18MB 的 NV21 要占 32MB），调用方要自己记录有效长度。
+ * 请求的那一级没有空闲数组时，也会复用大 4 级以内（不到 2 倍）的数组。
+ * 池中缓存的总字节数不超过 maxPooledBytes，超出时归还的数组直接丢弃。线程安全。
+ */
+public class ByteArrayPool {
+    //小于 1KB 的数组分配很便宜，不值得入池
+    private static final int MIN_SIZE_SHIFT = 10;
+    private static final int MAX_SIZE_SHIFT = 30;
+    //每个 2 的幂区间分成 1 << SUB_CLASS_SHIFT 级
+    private static final int SUB_CLASS_SHIFT = 2;
+    private static final int SUB_CLASSES = 1 << SUB_CLASS_SHIFT;
+    private static final int MAX_CLASS = (MAX_SIZE_SHIFT - MIN_SIZE_SHIFT) * SUB_CLASSES;
+
+    private final long maxPooledBytes;
+    //第 i 级长度为 classSize(i) 的空闲数组
+    private final List<ArrayDeque<byte[]>> buckets = new ArrayList<>(MAX_CLASS + 1);
+    private long pooledBytes;
+
+    private long acquireCount;
+    private long hitCount;
+    private long releaseCount;
+    private long discardCount;
+
+    public ByteArrayPool(long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes must >= 0");
+        }
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            buckets.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * 获取一个长度不小于 minSize 的数组，内容是上一个使用者留下的，不会清零
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("minSize must >= 0: " + minSize);
+        }
+        int sizeClass = sizeClass(minSize);
+        synchronized (this) {
+            acquireCount++;
+            int maxClass = Math.min(MAX_CLASS, sizeClass + SUB_CLASSES - 1);
+            for (int i = sizeClass; i <= maxClass; i++) {
+                byte[] array = buckets.get(i).pollLast();
+                if (array != null) {
+                    hitCount++;
+                    pooledBytes -= array.length;
+                    return array;
+                }
+            }
+        }
+        return new byte[classSize(sizeClass)];
+    }
+
+    /**
+     * 归还 {@link #acquire(int)} 得到的数组，长度不是某一级大小的数组会被忽略
+     */
+    public void release(byte[] array) {
+        if (array == null) {
+            return;
+        }
+        int length = array.length;
+        if (length < 1 << MIN_SIZE_SHIFT || length > 1 << MAX_SIZE_SHIFT) {
+            return;
+        }
+        int sizeClass = sizeClass(length);
+        if (classSize(sizeClass) != length) {
+            return;
+        }
+        synchronized (this) {
+            releaseCount++;
+            if (pooledBytes + length > maxPooledBytes) {
+                discardCount++;
+                return;
+            }
+            buckets.get(sizeClass).addLast(array);
+            pooledBytes += length;
+        }
+    }
+
+    /**
+     * 丢弃池中所有数组，统计数据保留
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> bucket : buckets) {
+            bucket.clear();
+        }
+        pooledBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * 因为超出 maxPooledBytes 被丢弃的归还次数
+     */
+    public synchronized long getDiscardCount() {
+        return discardCount;
+    }
+
+    public synchronized float getHitRate() {
+        return acquireCount == 0 ? 0f : (float) hitCount / acquireCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "ByteArrayPool{pooled=%d/%d bytes, acquire=%d, hitRate=%.2f, discard=%d}",
+                pooledBytes, maxPooledBytes, acquireCount, getHitRate(), discardCount);
+    }
+
+    /**
+     * 能放下 size 的最小一级：0 级是 1KB，之后 (2^k, 2^(k+1)] 区间的第 sub 级（1..4）长度是 2^k + sub * 2^(k-2)
+     */
+    static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        if (size > 1 << MAX_SIZE_SHIFT) {
+            throw new IllegalArgumentException("size too large: " + size);
+        }
+        //2^k < size <= 2^(k+1)
+        int k = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int step = 1 << (k - SUB_CLASS_SHIFT);
+        int sub = (size - (1 << k) + step - 1) / step;
+        return (k - MIN_SIZE_SHIFT) * SUB_CLASSES + sub;
+    }
+
+    static int classSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return 1 << MIN_SIZE_SHIFT;
+        }
+        int k = MIN_SIZE_SHIFT + (sizeClass - 1) / SUB_CLASSES;
+        int sub = (sizeClass - 1) % SUB_CLASSES + 1;
+        return (1 << k) + sub * (1 << (k - SUB_CLASS_SHIFT));
+    }
+}
@@ -0,0 +1,383 @@
+package com.zoomself.ai.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 和 Android 无关的像素 / tensor 转换内核，只依赖数组和 {@link ByteBuffer}
+ * <p>
+ * app 模块的 TFImageUtils 在这些内核外面包装 Bitmap、ImageProxy、TensorBuffer，
+ * benchmark 模块直接在 JVM 上对这些内核做 JMH 基准测试。
+ */
+public final class ImageKernels {
+    // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+    // are normalized to eight bits.
+    static final int kMaxChannelValue = 262143;
+
+    private ImageKernels() {
+    }
+
+    static int YUV2RGB(int y, int u, int v) {
+        // Adjust and check YUV values
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+
+        // This is the floating point equivalent. We do the conversion in integer
+        // because some Android devices do not have floating point in hardware.
+        // nR = (int)(1.164 * nY + 2.018 * nU);
+        // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+        // nB = (int)(1.164 * nY + 1.596 * nV);
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    public static void convertYUV420ToARGB8888(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out) {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            int pY = yRowStride * j;
+            int pUV = uvRowStride * (j >> 1);
+
+            for (int i = 0; i < width; i++) {
+                int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+                out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+            }
+        }
+    }
+
+    /**
+     * NV21 数据的字节数
+     */
+    public static int nv21Size(int width, int height) {
+        return width * height + (width / 2) * (height / 2) * 2;
+    }
+
+    /**
+     * YUV_420_888 三个平面转 NV21，写入 out 的开头，平面 buffer 的 position / limit 不会被修改
+     * <p>
+     * 大部分相机输出的其实就是 NV21：UV pixelStride 为 2，V 平面和 U 平面是同一块内存错开一个字节。
+     * 这种布局下 V 平面本身就是交错好的 VU 数据，整块复制即可，不需要逐字节交错；
+     * Y 平面没有行尾 padding 时也整块复制。其他布局走逐行交错的通用路径。
+     *
+     * @param out 长度不小于 {@link #nv21Size(int, int)}
+     */
+    public static void yuv420ToNv21(
+            ByteBuffer yPlane,
+            ByteBuffer uPlane,
+            ByteBuffer vPlane,
+            int width,
+            int height,
+            int yRowStride,
+            int uRowStride,
+            int vRowStride,
+            int uPixelStride,
+            int vPixelStride,
+            byte[] out) {
+        ByteBuffer yBuffer = yPlane.duplicate();
+        ByteBuffer uBuffer = uPlane.duplicate();
+        ByteBuffer vBuffer = vPlane.duplicate();
+        yBuffer.rewind();
+        uBuffer.rewind();
+        vBuffer.rewind();
+
+        int position = copyYPlane(yBuffer, width, height, yRowStride, out);
+
+        int chromaHeight = height / 2;
+        int chromaWidth = width / 2;
+        if (chromaHeight == 0 || chromaWidth == 0) {
+            return;
+        }
+        if (uPixelStride == 2 && vPixelStride == 2 && uRowStride == vRowStride
+                && isInterleavedVU(uPlane, vPlane)) {
+            copyInterleavedVU(uBuffer, vBuffer, chromaWidth, chromaHeight, vRowStride, out, position);
+        } else {
+            interleaveVU(uBuffer, vBuffer, chromaWidth, chromaHeight, uRowStride, vRowStride,
+                    uPixelStride, vPixelStride, out, position);
+        }
+    }
+
+    /**
+     * 复制 Y 平面，返回写入的字节数
+     */
+    private static int copyYPlane(ByteBuffer yBuffer, int width, int height, int yRowStride, byte[] out) {
+        if (yRowStride == width) {
+            //没有行尾 padding，一次复制
+            yBuffer.get(out, 0, width * height);
+            return width * height;
+        }
+        int position = 0;
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * yRowStride);
+            yBuffer.get(out, position, width);
+            position += width;
+        }
+        return position;
+    }
+
+    /**
+     * V 平面是否就是 U 平面往前错开一个字节的同一块内存（也就是 NV21 的 VU 交错）
+     * <p>
+     * Java 里拿不到 direct buffer 的地址，这里改写 V 平面的第 2 个字节，看 U 平面的第 1 个字节是否跟着变化，
+     * 检测完马上恢复。只读 buffer 无法检测，按不重叠处理。
+     */
+    static boolean isInterleavedVU(ByteBuffer uPlane, ByteBuffer vPlane) {
+        if (uPlane.isReadOnly() || vPlane.isReadOnly() || uPlane.capacity() < 1 || vPlane.capacity() < 2) {
+            return false;
+        }
+        byte u0 = uPlane.get(0);
+        byte v1 = vPlane.get(1);
+        if (u0 != v1) {
+            return false;
+        }
+        byte probe = (byte) ~v1;
+        vPlane.put(1, probe);
+        boolean interleaved = uPlane.get(0) == probe;
+        vPlane.put(1, v1);
+        return interleaved;
+    }
+
+    /**
+     * V 平面已经是 VU 交错数据：每行复制 2 * chromaWidth - 1 个字节，每行最后一个 U 在 V 平面的范围之外，从 U 平面读取。
+     * 行之间没有 padding 时整块复制。
+     */
+    private static void copyInterleavedVU(ByteBuffer uBuffer, ByteBuffer vBuffer, int chromaWidth, int chromaHeight,
+                                          int rowStride, byte[] out, int position) {
+        int rowBytes = chromaWidth * 2;
+        if (rowStride == rowBytes) {
+            int size = rowBytes * chromaHeight;
+            vBuffer.get(out, position, size - 1);
+            out[position + size - 1] = uBuffer.get(size - 2);
+            return;
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            int offset = row * rowStride;
+            vBuffer.position(offset);
+            vBuffer.get(out, position, rowBytes - 1);
+            out[position + rowBytes - 1] = uBuffer.get(offset + rowBytes - 2);
+            position += rowBytes;
+        }
+    }
+
+    /**
+     * 通用路径：逐行读取 U、V，逐个像素交错
+     */
+    private static void interleaveVU(ByteBuffer uBuffer, ByteBuffer vBuffer, int chromaWidth, int chromaHeight,
+                                     int uRowStride, int vRowStride, int uPixelStride, int vPixelStride,
+                                     byte[] out, int position) {
+        // Interleave the u and v frames, filling up the rest of the buffer. Use two line buffers to
+        // perform faster bulk gets from the byte buffers.
+        byte[] vLineBuffer = new byte[vRowStride];
+        byte[] uLineBuffer = new byte[uRowStride];
+        for (int row = 0; row < chromaHeight; row++) {
+            vBuffer.get(vLineBuffer, 0, Math.min(vRowStride, vBuffer.remaining()));
+            uBuffer.get(uLineBuffer, 0, Math.min(uRowStride, uBuffer.remaining()));
+            int vLineBufferPosition = 0;
+            int uLineBufferPosition = 0;
+            for (int col = 0; col < chromaWidth; col++) {
+                out[position++] = vLineBuffer[vLineBufferPosition];
+                out[position++] = uLineBuffer[uLineBufferPosition];
+                vLineBufferPosition += vPixelStride;
+                uLineBufferPosition += uPixelStride;
+            }
+        }
+    }
+
+    /**
+     * 把 ARGB 像素按 RGB 顺序写入 out（从当前 position 开始），不做任何分配
+     * UINT8 每个通道写 1 个字节，FLOAT32 归一化到【0,1】
+     */
+    public static void argbToTensor(int[] pixels, int pixelCount, TensorType type, ByteBuffer out) {
+        argbToTensor(pixels, pixelCount, type, Quantization.NONE, out);
+    }
+
+    /**
+     * 同 {@link #argbToTensor(int[], int, TensorType, ByteBuffer)}，UINT8 按 quantization 把【0,1】的值量化成字节
+     */
+    public static void argbToTensor(int[] pixels, int pixelCount, TensorType type, Quantization quantization,
+                                    ByteBuffer out) {
+        if (type == TensorType.UINT8) {
+            for (int i = 0; i < pixelCount; i++) {
+                int pixel = pixels[i];
+                out.put(quantization.quantizeChannel(pixel >> 16 & 0xFF));
+                out.put(quantization.quantizeChannel(pixel >> 8 & 0xFF));
+                out.put(quantization.quantizeChannel(pixel & 0xFF));
+            }
+        } else {
+            for (int i = 0; i < pixelCount; i++) {
+                int pixel = pixels[i];
+                out.putFloat((pixel >> 16 & 0xFF) / 255.0f);
+                out.putFloat((pixel >> 8 & 0xFF) / 255.0f);
+                out.putFloat((pixel & 0xFF) / 255.0f);
+            }
+        }
+    }
+
+    /**
+     * RGB tensor 转 ARGB 像素，从 tensor 的绝对位置 0 开始读取
+     * UINT8 每个通道 1 个字节，FLOAT32 按【0,1】还原到【0,255】并截断，
+     * 并行版本见 {@link TensorToPixelsConverter}
+     */
+    public static void tensorToArgb(ByteBuffer tensor, TensorType type, int pixelCount, int[] out) {
+        tensorToArgb(tensor, type, Quantization.NONE, pixelCount, out);
+    }
+
+    /**
+     * 同 {@link #tensorToArgb(ByteBuffer, TensorType, int, int[])}，UINT8 按 quantization 反量化到【0,1】再还原到【0,255】
+     */
+    public static void tensorToArgb(ByteBuffer tensor, TensorType type, Quantization quantization, int pixelCount,
+                                    int[] out) {
+        if (type == TensorType.UINT8) {
+            for (int i = 0, index = 0; i < pixelCount; i++, index += 3) {
+                int r = quantization.dequantizeChannel(tensor.get(index));
+                int g = quantization.dequantizeChannel(tensor.get(index + 1));
+                int b = quantization.dequantizeChannel(tensor.get(index + 2));
+                out[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        } else {
+            for (int i = 0, index = 0; i < pixelCount; i++, index += 12) {
+                float r = tensor.getFloat(index);
+                float g = tensor.getFloat(index + 4);
+                float b = tensor.getFloat(index + 8);
+                out[i] = rgb(r, g, b);
+            }
+        }
+    }
+
+    /**
+     * YUV420 三个平面单次遍历写入模型输入 buffer，替代 NV21 -> JPEG -> Bitmap -> 裁剪/缩放/旋转 -> tensor
+     * <p>
+     * 在裁剪区域中心取最大正方形，顺时针旋转 rotationDegrees（和 Rot90Op(-rotationDegrees / 90) 一致），
+     * 最近邻缩放到 outWidth x outHeight，按 RGB 顺序写入 out 的当前 position。
+     * UINT8 每个通道写 1 个字节，FLOAT32 归一化到【0,1】。只使用绝对位置读取平面数据，不修改平面 buffer 的状态，也不做任何分配。
+     */
+    public static void yuv420ToTensor(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int width,
+            int height,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int rotationDegrees,
+            int outWidth,
+            int outHeight,
+            TensorType type,
+            ByteBuffer out) {
+        yuv420ToTensor(yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride, width, height,
+                cropLeft, cropTop, cropWidth, cropHeight, rotationDegrees, outWidth, outHeight, type,
+                Quantization.NONE, out);
+    }
+
+    /**
+     * 同上，UINT8 按 quantization 把【0,1】的值量化成字节
+     */
+    public static void yuv420ToTensor(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int width,
+            int height,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            int rotationDegrees,
+            int outWidth,
+            int outHeight,
+            TensorType type,
+            Quantization quantization,
+            ByteBuffer out) {
+        if (rotationDegrees % 90 != 0) {
+            throw new IllegalArgumentException("rotationDegrees must be a multiple of 90: " + rotationDegrees);
+        }
+        if (cropLeft < 0 || cropTop < 0 || cropLeft + cropWidth > width || cropTop + cropHeight > height) {
+            throw new IllegalArgumentException("crop rect out of image bounds");
+        }
+        boolean isFloat = type == TensorType.FLOAT32;
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        int size = Math.min(cropWidth, cropHeight);
+        int squareLeft = cropLeft + (cropWidth - size) / 2;
+        int squareTop = cropTop + (cropHeight - size) / 2;
+        int last = size - 1;
+
+        for (int oy = 0; oy < outHeight; oy++) {
+            //输出像素中心对应的旋转后正方形坐标
+            int ry = (int) ((2L * oy + 1) * size / (2L * outHeight));
+            for (int ox = 0; ox < outWidth; ox++) {
+                int rx = (int) ((2L * ox + 1) * size / (2L * outWidth));
+                int sx;
+                int sy;
+                switch (rotation) {
+                    case 90:
+                        sx = ry;
+                        sy = last - rx;
+                        break;
+                    case 180:
+                        sx = last - rx;
+                        sy = last - ry;
+                        break;
+                    case 270:
+                        sx = last - ry;
+                        sy = rx;
+                        break;
+                    default:
+                        sx = rx;
+                        sy = ry;
+                        break;
+                }
+                int px = squareLeft + sx;
+                int py = squareTop + sy;
+                int uvOffset = uvRowStride * (py >> 1) + (px >> 1) * uvPixelStride;
+                int pixel = YUV2RGB(
+                        0xff & yBuffer.get(yRowStride * py + px),
+                        0xff & uBuffer.get(uvOffset),
+                        0xff & vBuffer.get(uvOffset));
+                if (isFloat) {
+                    out.putFloat((pixel >> 16 & 0xFF) / 255.0f);
+                    out.putFloat((pixel >> 8 & 0xFF) / 255.0f);
+                    out.putFloat((pixel & 0xFF) / 255.0f);
+                } else {
+                    out.put(quantization.quantizeChannel(pixel >> 16 & 0xFF));
+                    out.put(quantization.quantizeChannel(pixel >> 8 & 0xFF));
+                    out.put(quantization.quantizeChannel(pixel & 0xFF));
+                }
+            }
+        }
+    }
+
+    /**
+     * 针对于float类型颜色值转换，每个通道截断到【0,255】，超出范围的值不会溢出到相邻通道
+     */
+    static int rgb(float red, float green, float blue) {
+        return 0xff000000 |
+                (TensorToPixelsConverter.clamp(red) << 16) |
+                (TensorToPixelsConverter.clamp(green) << 8) |
+                TensorToPixelsConverter.clamp(blue);
+    }
+}
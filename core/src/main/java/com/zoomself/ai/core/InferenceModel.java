@@ -0,0 +1,44 @@
+package com.zoomself.ai.core;
+
+import java.util.Map;
+
+/**
+ * 和具体推理运行时无关的模型接口
+ * <p>
+ * Android 上由 TFLite Interpreter 实现，JVM 上可以接入桌面端的运行时或测试用的假模型，
+ * 池、批处理、流水线这些编排逻辑只依赖这个接口。shape 都是 batch 为 1 时的 shape。
+ * 实现不要求线程安全，并发使用时每个线程持有自己的实例（见 {@link ModelPool}）。
+ */
+public interface InferenceModel {
+
+    int getInputTensorCount();
+
+    int getOutputTensorCount();
+
+    int[] getInputTensorShape(int inputIndex);
+
+    int[] getOutputTensorShape(int outputIndex);
+
+    /**
+     * @throws IllegalArgumentException 不是 UINT8 / FLOAT32 时
+     */
+    TensorType getInputTensorType(int inputIndex);
+
+    /**
+     * @throws IllegalArgumentException 不是 UINT8 / FLOAT32 时
+     */
+    TensorType getOutputTensorType(int outputIndex);
+
+    /**
+     * @param inputs  按输入序号排列，direct、native order 的 ByteBuffer 或多维数组
+     * @param outputs 输出序号 -> 输出 buffer
+     */
+    void run(Object[] inputs, Map<Integer, Object> outputs);
+
+    /**
+     * 模型内容的 hash，见 {@link ModelFile#hash(java.nio.ByteBuffer)}
+     */
+    String getModelHash();
+
+    void close();
+}
@@ -0,0 +1,225 @@
+package com.zoomself.ai.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 自适应批处理
+ * <p>
+ * 收集 {@link #submit(Object)} 提交的单条请求，凑满 maxBatchSize 或者第一条请求等待超过 maxWaitMillis 后，
+ * 交给 {@link BatchRunner} 一次性推理。适合风格化图库、批量生成风格预览这类请求密集的场景。
+ * {@link #close()} 之前提交的每个请求最终都会完成、失败或被取消。线程安全。
+ *
+ * @param <I> 单条请求的输入
+ * @param <O> 单条请求的输出
+ */
+public class ModelBatcher<I, O> {
+
+    public interface BatchRunner<I, O> {
+        /**
+         * 在批处理线程上调用
+         *
+         * @return 和 items 一一对应的输出
+         */
+        List<O> run(List<I> items) throws Exception;
+    }
+
+    private final BatchRunner<I, O> runner;
+    private final int maxBatchSize;
+    private final long maxWaitMillis;
+    private final LinkedBlockingQueue<Request<I, O>> queue = new LinkedBlockingQueue<>();
+    //close 时放入，批处理线程取到后退出
+    private final Request<I, O> end = new Request<>(null);
+    private boolean closed;
+
+    public ModelBatcher(BatchRunner<I, O> runner, int maxBatchSize, long maxWaitMillis, String threadName) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must > 0");
+        }
+        this.runner = runner;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMillis = maxWaitMillis;
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param item 完成之前不能修改
+     * @throws IllegalStateException 已经 close
+     */
+    public Future<O> submit(I item) {
+        Request<I, O> request = new Request<>(item);
+        //和 close 在同一个锁里检查和入队，close 之后不会再有请求进入队列
+        synchronized (queue) {
+            if (closed) {
+                throw new IllegalStateException("batcher is closed");
+            }
+            queue.add(request);
+        }
+        return request;
+    }
+
+    /**
+     * 停止接收请求，还在队列里的请求被取消，已经开始凑批的请求照常完成；不等待批处理线程退出
+     */
+    public void close() {
+        List<Request<I, O>> pending = new ArrayList<>();
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.drainTo(pending);
+            queue.add(end);
+        }
+        for (Request<I, O> request : pending) {
+            request.cancel(false);
+        }
+    }
+
+    private void loop() {
+        List<Request<I, O>> batch = new ArrayList<>(maxBatchSize);
+        List<I> items = new ArrayList<>(maxBatchSize);
+        boolean running = true;
+        while (running) {
+            try {
+                Request<I, O> first = queue.take();
+                if (first == end) {
+                    return;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (batch.size() < maxBatchSize) {
+                    long waitNanos = deadline - System.nanoTime();
+                    Request<I, O> next = waitNanos > 0 ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == end) {
+                        running = false;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                for (Request<I, O> request : batch) {
+                    request.cancel(false);
+                }
+                return;
+            }
+
+            //等待期间被调用方取消的请求不再推理
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                if (batch.get(i).isDone()) {
+                    batch.remove(i);
+                }
+            }
+            for (Request<I, O> request : batch) {
+                items.add(request.item);
+            }
+            if (!batch.isEmpty()) {
+                runBatch(batch, items);
+            }
+            batch.clear();
+            items.clear();
+        }
+    }
+
+    private void runBatch(List<Request<I, O>> batch, List<I> items) {
+        try {
+            List<O> outputs = runner.run(items);
+            if (outputs == null || outputs.size() != batch.size()) {
+                throw new IllegalStateException("expected " + batch.size() + " outputs, got "
+                        + (outputs == null ? null : outputs.size()));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(outputs.get(i), null, false);
+            }
+        } catch (Throwable e) {
+            for (Request<I, O> request : batch) {
+                request.complete(null, e, false);
+            }
+        }
+    }
+
+    /**
+     * 只能由批处理线程（结果、异常）或调用方（取消）完成一次的 Future
+     */
+    private static final class Request<I, O> implements Future<O> {
+        final I item;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private O result;
+        private Throwable error;
+        private boolean cancelled;
+
+        Request(I item) {
+            this.item = item;
+        }
+
+        synchronized boolean complete(O result, Throwable error, boolean cancelled) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancelled;
+            done.countDown();
+            return true;
+        }
+
+        /**
+         * 只取消还没有完成的请求，正在推理的请求取消后结果被丢弃
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return complete(null, null, true);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public O get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public O get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private synchronized O report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+}
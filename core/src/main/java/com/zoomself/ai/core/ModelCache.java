@@ -0,0 +1,353 @@
+package com.zoomself.ai.core;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 按 key 共享的模型实例缓存，引用计数 + 内存预算 + 空闲超时
+ * <p>
+ * {@link #acquire(String, Loader)} 返回 {@link Handle}，同一个 key 的所有 handle 共享一个模型实例，
+ * 最后一个 handle {@link Handle#close()} 后实例不会马上关闭，重复进入页面时直接复用已经预热的实例。
+ * 没有 handle 的实例在空闲超过 idleTimeoutMillis 后关闭；所有实例的估计大小超过 maxBytes 时，
+ * 按最久没用的顺序关闭没有 handle 的实例。正在使用的实例永远不会被关闭，所以预算可能被暂时超出。
+ * 同一个 key 并发 acquire 时只加载一次。线程安全。
+ */
+public class ModelCache<M extends InferenceModel> {
+
+    public interface Loader<M> {
+        /**
+         * 加载实例，在锁外调用
+         */
+        M load() throws Exception;
+    }
+
+    public interface Sizer<M> {
+        /**
+         * 实例占用的 native 内存估计值，加载后调用一次
+         */
+        long sizeOf(M model);
+    }
+
+    public interface OnUnloadListener<M> {
+        /**
+         * 实例关闭前回调，用于清理以实例为 key 的缓存，在锁外调用
+         */
+        void onUnload(String key, M model);
+    }
+
+    /**
+     * 对缓存实例的一次引用，用完必须 {@link #close()}，重复 close 没有影响
+     */
+    public static final class Handle<M extends InferenceModel> implements Closeable {
+        private final ModelCache<M> cache;
+        private final Entry<M> entry;
+        private boolean closed;
+
+        private Handle(ModelCache<M> cache, Entry<M> entry) {
+            this.cache = cache;
+            this.entry = entry;
+        }
+
+        public String getKey() {
+            return entry.key;
+        }
+
+        /**
+         * @throws IllegalStateException handle 已经 close
+         */
+        public M get() {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("handle closed: " + entry.key);
+                }
+            }
+            return entry.model;
+        }
+
+        /**
+         * 再取得一个引用同一实例的 handle，比如交给异步任务，任务结束时各自 close
+         *
+         * @throws IllegalStateException handle 已经 close
+         */
+        public Handle<M> retain() {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("handle closed: " + entry.key);
+                }
+            }
+            return cache.retain(entry);
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            cache.release(entry);
+        }
+    }
+
+    private static final class Entry<M> {
+        final String key;
+        M model;
+        long sizeBytes;
+        int refCount;
+        long idleSince;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long maxBytes;
+    private final long idleTimeoutMillis;
+    private final Sizer<M> sizer;
+    private final List<OnUnloadListener<M>> onUnloadListeners = new CopyOnWriteArrayList<>();
+
+    //按访问顺序排列，队头是最久没用的
+    private final LinkedHashMap<String, Entry<M>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+    private int hitCount;
+    private int missCount;
+    private int unloadCount;
+    private boolean closed;
+
+    /**
+     * @param maxBytes          所有实例估计大小的上限
+     * @param idleTimeoutMillis 没有 handle 的实例空闲超过该时间后关闭，<=0 表示只按预算淘汰
+     */
+    public ModelCache(long maxBytes, long idleTimeoutMillis, Sizer<M> sizer) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must > 0");
+        }
+        this.maxBytes = maxBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.sizer = sizer;
+    }
+
+    /**
+     * 取得 key 对应实例的 handle，没有时用 loader 加载（耗时较长，不要在主线程调用）；
+     * 其他线程正在加载同一个 key 时等待它完成
+     */
+    public Handle<M> acquire(String key, Loader<M> loader) throws Exception {
+        Entry<M> entry;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("cache is closed");
+                }
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry<>(key);
+                    entry.refCount = 1;
+                    entries.put(key, entry);
+                    missCount++;
+                    break;
+                }
+                if (entry.model != null) {
+                    entry.refCount++;
+                    hitCount++;
+                    return new Handle<>(this, entry);
+                }
+                //正在加载
+                wait();
+            }
+        }
+        M model;
+        try {
+            model = loader.load();
+        } catch (Exception | Error e) {
+            synchronized (this) {
+                entries.remove(key);
+                notifyAll();
+            }
+            throw e;
+        }
+        long size = Math.max(0, sizer.sizeOf(model));
+        List<Entry<M>> evicted;
+        synchronized (this) {
+            if (closed) {
+                entries.remove(key);
+                notifyAll();
+                model.close();
+                throw new IllegalStateException("cache is closed");
+            }
+            entry.model = model;
+            entry.sizeBytes = size;
+            sizeBytes += size;
+            evicted = evictLocked(maxBytes, false);
+            notifyAll();
+        }
+        unload(evicted);
+        return new Handle<>(this, entry);
+    }
+
+    private synchronized Handle<M> retain(Entry<M> entry) {
+        //调用方持有 handle，实例不会在这之前被关闭
+        entry.refCount++;
+        return new Handle<>(this, entry);
+    }
+
+    private void release(Entry<M> entry) {
+        List<Entry<M>> evicted;
+        boolean idle;
+        synchronized (this) {
+            if (--entry.refCount > 0) {
+                return;
+            }
+            entry.idleSince = now();
+            if (closed) {
+                entries.remove(entry.key);
+                sizeBytes -= entry.sizeBytes;
+                unloadCount++;
+                evicted = new ArrayList<>();
+                evicted.add(entry);
+            } else {
+                evicted = evictLocked(maxBytes, false);
+            }
+            idle = !closed && idleTimeoutMillis > 0 && !evicted.contains(entry);
+        }
+        unload(evicted);
+        if (idle) {
+            onIdle(entry.key, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * 实例的最后一个 handle 关闭后在锁外回调，子类可以在 delayMillis 后调用 {@link #evictIdle()}
+     */
+    protected void onIdle(String key, long delayMillis) {
+    }
+
+    public void addOnUnloadListener(OnUnloadListener<M> listener) {
+        onUnloadListeners.add(listener);
+    }
+
+    public void removeOnUnloadListener(OnUnloadListener<M> listener) {
+        onUnloadListeners.remove(listener);
+    }
+
+    /**
+     * 关闭空闲超时的实例
+     *
+     * @return 关闭的数量
+     */
+    public int evictIdle() {
+        List<Entry<M>> evicted;
+        synchronized (this) {
+            evicted = evictLocked(maxBytes, false);
+        }
+        unload(evicted);
+        return evicted.size();
+    }
+
+    /**
+     * 关闭没有 handle 的实例直到估计大小不超过 bytes，比如系统内存紧张时传 0 关闭所有空闲实例
+     *
+     * @return 关闭的数量
+     */
+    public int trimToSize(long bytes) {
+        List<Entry<M>> evicted;
+        synchronized (this) {
+            evicted = evictLocked(bytes, true);
+        }
+        unload(evicted);
+        return evicted.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 已经加载完成的实例数
+     */
+    public synchronized int getLoadedCount() {
+        int count = 0;
+        for (Entry<M> entry : entries.values()) {
+            if (entry.model != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized boolean isLoaded(String key) {
+        Entry<M> entry = entries.get(key);
+        return entry != null && entry.model != null;
+    }
+
+    /**
+     * 关闭所有没有 handle 的实例，之后不能再 acquire，有 handle 的实例在最后一个 handle 关闭时关闭
+     */
+    public void close() {
+        List<Entry<M>> evicted;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            evicted = evictLocked(0, true);
+            notifyAll();
+        }
+        unload(evicted);
+    }
+
+    /**
+     * 单调时钟，毫秒
+     */
+    protected long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * 从最久没用的开始，关闭空闲超时的实例，以及超出 bytes 部分的实例；force 时不看空闲时间只看大小
+     */
+    private List<Entry<M>> evictLocked(long bytes, boolean force) {
+        List<Entry<M>> evicted = new ArrayList<>();
+        long now = now();
+        Iterator<Map.Entry<String, Entry<M>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<M> entry = iterator.next().getValue();
+            if (entry.refCount > 0 || entry.model == null) {
+                continue;
+            }
+            boolean overBudget = sizeBytes > bytes;
+            boolean idleTimeout = !force && idleTimeoutMillis > 0 && now - entry.idleSince >= idleTimeoutMillis;
+            if (overBudget || idleTimeout) {
+                iterator.remove();
+                sizeBytes -= entry.sizeBytes;
+                unloadCount++;
+                evicted.add(entry);
+            }
+        }
+        return evicted;
+    }
+
+    private void unload(List<Entry<M>> evicted) {
+        for (Entry<M> entry : evicted) {
+            for (OnUnloadListener<M> listener : onUnloadListeners) {
+                listener.onUnload(entry.key, entry.model);
+            }
+            entry.model.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ModelCache{loaded=" + entries.keySet() + ", size=" + sizeBytes / 1024 + "KB/" + maxBytes / 1024
+                + "KB, hit=" + hitCount + ", miss=" + missCount + ", unload=" + unloadCount + "}";
+    }
+}
@@ -0,0 +1,67 @@
+package com.zoomself.ai.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 模型文件只读映射到内存，和 Android 的 AssetManager / Context 无关
+ * <p>
+ * 映射后的 {@link MappedByteBuffer} 可以直接交给 Interpreter，多个 Interpreter 共享同一份映射，
+ * 页面由系统按需加载，不占用 Java 堆。
+ */
+public final class ModelFile {
+
+    private ModelFile() {
+    }
+
+    /**
+     * JVM 上按路径加载；Android 上 {@link Path} 需要 API 26，低版本用 {@link #map(File)}
+     */
+    public static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel, 0, channel.size());
+        }
+    }
+
+    public static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            return map(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * 映射文件中的一段，比如 apk 里未压缩的 asset（AssetFileDescriptor 的 startOffset / declaredLength）
+     * <p>
+     * 映射建立后关闭 channel 不影响映射
+     */
+    public static MappedByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (offset < 0 || length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid range: offset=" + offset + ", length=" + length);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    /**
+     * 模型内容的 CRC32，用于缓存 key，模型文件变化后缓存自动失效；不修改 model 的 position
+     */
+    public static String hash(ByteBuffer model) {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = model.duplicate();
+        buffer.rewind();
+        byte[] chunk = new byte[64 * 1024];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc32.update(chunk, 0, length);
+        }
+        return Long.toHexString(crc32.getValue());
+    }
+}
@@ -0,0 +1,525 @@
+package com.zoomself.ai.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * 声明式的多模型流水线：节点是 {@link InferenceModel} 或自定义的前后处理 {@link Op}，边是按名字引用的 tensor
+ * <p>
+ * build 时按依赖分层，同一层的节点互不依赖，run 时并发执行（比如内容图预处理和 style predict 同时进行）。
+ * 所有 tensor 的 buffer 在 build 时一次分配，之后每次 run 复用；生命周期不重叠、大小相同的中间 tensor 共用同一块 buffer。
+ * 标记为 memoize 的节点在输入 tensor 都没有变化时跳过，直接使用上一次的输出，
+ * 输入是否变化按版本号判断：{@link #setInput(String, ByteBuffer)} 或上游节点重新执行都会让版本号加 1。
+ * 节点的输出也可以用 {@link #provide(String, ByteBuffer)} 从外部给出（比如缓存命中），这时节点被跳过。
+ * <p>
+ * 不是线程安全的，同一时刻只能有一个 run；每个模型只能属于一个正在运行的图。
+ */
+public final class ModelGraph {
+
+    /**
+     * 自定义节点，inputs / outputs 都是 position 为 0 的 native order 视图，outputs 需要写满
+     */
+    public interface Op {
+        void run(ByteBuffer[] inputs, ByteBuffer[] outputs) throws Exception;
+    }
+
+    /**
+     * 运行中途取消，在每一层开始之前检查；正在执行的节点（比如一次推理）不会被打断
+     */
+    public interface CancellationSignal {
+        boolean isCancelled();
+    }
+
+    private final Map<String, Tensor> tensors;
+    private final List<List<Node>> levels;
+    private final Map<String, Node> nodes;
+    private final int bufferCount;
+    private long runCount;
+
+    private ModelGraph(Builder builder) {
+        this.tensors = builder.tensors;
+        this.nodes = builder.nodes;
+        this.levels = schedule(builder);
+        this.bufferCount = allocate(builder);
+    }
+
+    /**
+     * 设置图的输入，只保存引用不复制，run 之前调用方不能修改 buffer 内容；每次调用都视为输入发生变化
+     */
+    public void setInput(String name, ByteBuffer buffer) {
+        Tensor tensor = tensors.get(name);
+        if (tensor == null || tensor.producer != null) {
+            throw new IllegalArgumentException("not a graph input: " + name);
+        }
+        if (buffer.capacity() < tensor.byteSize) {
+            throw new IllegalArgumentException(name + " needs " + tensor.byteSize + " bytes, but was " + buffer.capacity());
+        }
+        tensor.buffer = buffer;
+        tensor.version++;
+    }
+
+    /**
+     * 从外部给出一个节点输出的值，比如缓存里已有的结果，只保存引用不复制；一个节点的所有输出都给出时跳过该节点，
+     * 它的输入也不需要设置。buffer 为 null 时恢复由节点计算。每次调用都视为该 tensor 发生变化
+     */
+    public void provide(String name, ByteBuffer buffer) {
+        Tensor tensor = tensors.get(name);
+        if (tensor == null || tensor.producer == null) {
+            throw new IllegalArgumentException("not a node output: " + name);
+        }
+        if (buffer != null && buffer.capacity() < tensor.byteSize) {
+            throw new IllegalArgumentException(name + " needs " + tensor.byteSize + " bytes, but was " + buffer.capacity());
+        }
+        tensor.provided = buffer;
+        tensor.version++;
+    }
+
+    /**
+     * 按层执行所有节点，同一层有多个节点时提交到 executor 并发执行，当前线程也执行其中一个
+     *
+     * @throws IllegalStateException 输入没有设置或节点执行失败
+     */
+    public void run(Executor executor) {
+        run(executor, null);
+    }
+
+    /**
+     * 同 {@link #run(Executor)}，每一层开始之前检查 cancellation，已取消时剩下的层不再执行；
+     * 已经执行的 memoize 节点的输出依然有效，下一次 run 可以跳过
+     *
+     * @param cancellation 可以为空
+     * @throws CancellationException 已取消
+     */
+    public void run(Executor executor, CancellationSignal cancellation) {
+        //外部给出输出的节点不会执行，不需要它的输入
+        for (Node node : nodes.values()) {
+            if (node.isProvided()) {
+                continue;
+            }
+            for (Tensor input : node.inputs) {
+                if (input.producer == null && input.buffer == null) {
+                    throw new IllegalStateException("input not set: " + input.name);
+                }
+            }
+        }
+        for (List<Node> level : levels) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                throw new CancellationException("cancelled before " + level.get(0).name);
+            }
+            List<Node> runnable = new ArrayList<>(level.size());
+            for (Node node : level) {
+                if (node.isProvided() || node.canSkip()) {
+                    node.skipCount++;
+                } else {
+                    runnable.add(node);
+                }
+            }
+            runLevel(runnable, executor);
+        }
+        runCount++;
+    }
+
+    /**
+     * tensor 的只读视图，position 为 0；中间 tensor 可能和其他 tensor 共用 buffer，只有图的输出在 run 之后一定有效
+     */
+    public ByteBuffer getOutput(String name) {
+        Tensor tensor = tensors.get(name);
+        if (tensor == null) {
+            throw new IllegalArgumentException("unknown tensor: " + name);
+        }
+        if (!tensor.output) {
+            throw new IllegalArgumentException("not a graph output: " + name);
+        }
+        return tensor.view().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * 节点最近一次执行的耗时，跳过的节点保留上一次的值
+     */
+    public long getNodeNanos(String node) {
+        return node(node).lastNanos;
+    }
+
+    public long getNodeRunCount(String node) {
+        return node(node).runCount;
+    }
+
+    public long getNodeSkipCount(String node) {
+        return node(node).skipCount;
+    }
+
+    /**
+     * 分层结果，每层的节点名
+     */
+    public List<List<String>> getLevels() {
+        List<List<String>> result = new ArrayList<>(levels.size());
+        for (List<Node> level : levels) {
+            List<String> names = new ArrayList<>(level.size());
+            for (Node node : level) {
+                names.add(node.name);
+            }
+            result.add(names);
+        }
+        return result;
+    }
+
+    /**
+     * 实际分配的 buffer 数量，小于非输入 tensor 数量说明有 buffer 被共用
+     */
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ModelGraph{runs=").append(runCount)
+                .append(", buffers=").append(bufferCount);
+        for (Node node : nodes.values()) {
+            builder.append(String.format(Locale.US, "\n%s: run=%d skip=%d last=%.2fms",
+                    node.name, node.runCount, node.skipCount, node.lastNanos / 1e6));
+        }
+        return builder.append('}').toString();
+    }
+
+    private Node node(String name) {
+        Node node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("unknown node: " + name);
+        }
+        return node;
+    }
+
+    private void runLevel(List<Node> runnable, Executor executor) {
+        if (runnable.isEmpty()) {
+            return;
+        }
+        final Throwable[] errors = new Throwable[runnable.size()];
+        final CountDownLatch latch = new CountDownLatch(runnable.size() - 1);
+        for (int i = 1; i < runnable.size(); i++) {
+            final Node node = runnable.get(i);
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        node.execute();
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            runnable.get(0).execute();
+        } catch (Throwable e) {
+            errors[0] = e;
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) {
+                throw new IllegalStateException("node " + runnable.get(i).name + " failed", errors[i]);
+            }
+        }
+    }
+
+    /**
+     * 节点的层号是所有输入的生产者层号的最大值加 1，图的输入在第 -1 层
+     */
+    private static List<List<Node>> schedule(Builder builder) {
+        List<List<Node>> levels = new ArrayList<>();
+        for (Node node : builder.nodes.values()) {
+            int level = 0;
+            for (Tensor input : node.inputs) {
+                if (input.producer != null) {
+                    if (input.producer.level < 0) {
+                        //声明顺序保证生产者先声明，这里不会出现
+                        throw new IllegalStateException("cycle at " + node.name);
+                    }
+                    level = Math.max(level, input.producer.level + 1);
+                }
+            }
+            for (Tensor input : node.inputs) {
+                input.lastUse = Math.max(input.lastUse, level);
+            }
+            node.level = level;
+            while (levels.size() <= level) {
+                levels.add(new ArrayList<Node>());
+            }
+            levels.get(level).add(node);
+        }
+        return levels;
+    }
+
+    /**
+     * 给节点输出分配 buffer：memoize 节点的输出和图的输出独占，其余按层号区间贪心共用
+     */
+    private static int allocate(Builder builder) {
+        List<Slot> slots = new ArrayList<>();
+        int count = 0;
+        for (Node node : builder.nodes.values()) {
+            for (Tensor tensor : node.outputs) {
+                int lastUse = Math.max(tensor.lastUse, tensor.producer.level);
+                boolean shareable = !node.memoize && !tensor.output;
+                Slot slot = null;
+                if (shareable) {
+                    for (Slot candidate : slots) {
+                        if (candidate.byteSize == tensor.byteSize && candidate.freeAfter < tensor.producer.level) {
+                            slot = candidate;
+                            break;
+                        }
+                    }
+                }
+                if (slot == null) {
+                    slot = new Slot(tensor.byteSize);
+                    count++;
+                    if (shareable) {
+                        slots.add(slot);
+                    }
+                }
+                slot.freeAfter = lastUse;
+                tensor.buffer = slot.buffer;
+            }
+        }
+        return count;
+    }
+
+    private static final class Slot {
+        final int byteSize;
+        final ByteBuffer buffer;
+        int freeAfter = -1;
+
+        Slot(int byteSize) {
+            this.byteSize = byteSize;
+            this.buffer = ByteBuffer.allocateDirect(byteSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static final class Tensor {
+        final String name;
+        final int byteSize;
+        final Node producer;
+        ByteBuffer buffer;
+        //外部给出的值，不为 null 时代替节点的输出
+        ByteBuffer provided;
+        long version;
+        boolean output;
+        int lastUse = -1;
+
+        Tensor(String name, int byteSize, Node producer) {
+            this.name = name;
+            this.byteSize = byteSize;
+            this.producer = producer;
+        }
+
+        ByteBuffer view() {
+            ByteBuffer view = (provided != null ? provided : buffer).duplicate().order(ByteOrder.nativeOrder());
+            view.clear();
+            view.limit(byteSize);
+            return view;
+        }
+    }
+
+    private static final class Node {
+        final String name;
+        final InferenceModel model;
+        final Op op;
+        final boolean memoize;
+        Tensor[] inputs;
+        Tensor[] outputs;
+        int level = -1;
+        //上一次执行时各输入的版本号，没有执行过为 null
+        long[] inputVersions;
+        long runCount;
+        long skipCount;
+        long lastNanos;
+
+        Node(String name, InferenceModel model, Op op, boolean memoize) {
+            this.name = name;
+            this.model = model;
+            this.op = op;
+            this.memoize = memoize;
+        }
+
+        boolean isProvided() {
+            for (Tensor output : outputs) {
+                if (output.provided == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean canSkip() {
+            if (!memoize || inputVersions == null) {
+                return false;
+            }
+            for (int i = 0; i < inputs.length; i++) {
+                if (inputs[i].version != inputVersions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void execute() throws Exception {
+            long start = System.nanoTime();
+            ByteBuffer[] in = new ByteBuffer[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                in[i] = inputs[i].view();
+            }
+            ByteBuffer[] out = new ByteBuffer[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                out[i] = outputs[i].view();
+            }
+            if (model != null) {
+                Map<Integer, Object> outputMap = new HashMap<>();
+                for (int i = 0; i < out.length; i++) {
+                    outputMap.put(i, out[i]);
+                }
+                model.run(in, outputMap);
+            } else {
+                op.run(in, out);
+            }
+            long[] versions = new long[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                versions[i] = inputs[i].version;
+            }
+            inputVersions = versions;
+            for (Tensor output : outputs) {
+                output.version++;
+            }
+            runCount++;
+            lastNanos = System.nanoTime() - start;
+        }
+    }
+
+    public static class Builder {
+        private final Map<String, Tensor> tensors = new LinkedHashMap<>();
+        private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+        /**
+         * 图的输入，run 之前用 {@link ModelGraph#setInput(String, ByteBuffer)} 设置
+         */
+        public Builder input(String name, int byteSize) {
+            addTensor(new Tensor(name, byteSize, null));
+            return this;
+        }
+
+        /**
+         * 模型节点，inputs / outputs 按模型的输入输出序号排列，输出大小由模型的 shape 和类型决定
+         *
+         * @param memoize 输入没有变化时跳过
+         */
+        public Builder model(String name, InferenceModel model, String[] inputs, String[] outputs, boolean memoize) {
+            if (inputs.length != model.getInputTensorCount() || outputs.length != model.getOutputTensorCount()) {
+                throw new IllegalArgumentException(name + " expects " + model.getInputTensorCount() + " inputs and "
+                        + model.getOutputTensorCount() + " outputs");
+            }
+            int[] outputByteSizes = new int[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                outputByteSizes[i] = byteSize(model.getOutputTensorShape(i), model.getOutputTensorType(i));
+            }
+            Node node = new Node(name, model, null, memoize);
+            addNode(node, inputs, outputs, outputByteSizes);
+            for (int i = 0; i < inputs.length; i++) {
+                int expected = byteSize(model.getInputTensorShape(i), model.getInputTensorType(i));
+                if (node.inputs[i].byteSize != expected) {
+                    throw new IllegalArgumentException(name + " input " + i + " needs " + expected + " bytes, but "
+                            + inputs[i] + " has " + node.inputs[i].byteSize);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * 自定义节点，只依赖输入的纯函数才能 memoize
+         */
+        public Builder op(String name, Op op, String[] inputs, String[] outputs, int[] outputByteSizes,
+                          boolean memoize) {
+            if (outputs.length != outputByteSizes.length) {
+                throw new IllegalArgumentException("outputs and outputByteSizes length mismatch");
+            }
+            addNode(new Node(name, null, op, memoize), inputs, outputs, outputByteSizes);
+            return this;
+        }
+
+        /**
+         * 标记为图的输出，run 之后可以用 {@link ModelGraph#getOutput(String)} 读取
+         */
+        public Builder output(String tensor) {
+            Tensor t = tensors.get(tensor);
+            if (t == null) {
+                throw new IllegalArgumentException("unknown tensor: " + tensor);
+            }
+            t.output = true;
+            return this;
+        }
+
+        public ModelGraph build() {
+            if (nodes.isEmpty()) {
+                throw new IllegalStateException("graph has no node");
+            }
+            return new ModelGraph(this);
+        }
+
+        /**
+         * 节点的输入必须已经声明，所以声明顺序就是一个拓扑序，不会有环
+         */
+        private void addNode(Node node, String[] inputs, String[] outputs, int[] outputByteSizes) {
+            if (nodes.containsKey(node.name)) {
+                throw new IllegalArgumentException("duplicate node: " + node.name);
+            }
+            node.inputs = new Tensor[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                Tensor tensor = tensors.get(inputs[i]);
+                if (tensor == null) {
+                    throw new IllegalArgumentException(node.name + " uses undeclared tensor: " + inputs[i]);
+                }
+                node.inputs[i] = tensor;
+            }
+            node.outputs = new Tensor[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                if (outputByteSizes[i] <= 0) {
+                    throw new IllegalArgumentException("invalid byte size of " + outputs[i]);
+                }
+                node.outputs[i] = addTensor(new Tensor(outputs[i], outputByteSizes[i], node));
+            }
+            nodes.put(node.name, node);
+        }
+
+        private Tensor addTensor(Tensor tensor) {
+            if (tensors.containsKey(tensor.name)) {
+                throw new IllegalArgumentException("duplicate tensor: " + tensor.name);
+            }
+            tensors.put(tensor.name, tensor);
+            return tensor;
+        }
+    }
+
+    /**
+     * batch 为 1 时的字节数
+     */
+    public static int byteSize(int[] shape, TensorType type) {
+        int size = type.byteSize();
+        for (int i = 1; i < shape.length; i++) {
+            size *= shape[i];
+        }
+        return size;
+    }
+}
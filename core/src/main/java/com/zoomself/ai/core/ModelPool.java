@@ -0,0 +1,193 @@
+package com.zoomself.ai.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InferenceModel} 池
+ * <p>
+ * 单个模型实例的 run 不是线程安全的，池里的每个实例各自持有运行时状态，
+ * 但可以共享同一份映射的模型文件，所以多个线程并发推理时不需要各自加载一份模型文件。
+ * 借出用 {@link #borrow()}，用完必须 {@link #release(InferenceModel)}；超过 idleTimeoutMillis 没被使用的空闲实例会被关闭。
+ */
+public class ModelPool<M extends InferenceModel> {
+
+    public interface Factory<M> {
+        /**
+         * 创建实例，在锁外调用
+         */
+        M create();
+    }
+
+    public interface ModelTask<M, T> {
+        T run(M model) throws Exception;
+    }
+
+    private final Factory<M> factory;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+
+    //空闲实例，队头是最近归还的
+    private final ArrayDeque<IdleModel<M>> idleModels = new ArrayDeque<>();
+    private int createdCount;
+    private boolean closed;
+
+    public ModelPool(Factory<M> factory, int maxSize, long idleTimeoutMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must > 0");
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 借出一个实例，池满时一直等到有实例归还
+     */
+    public M borrow() throws InterruptedException {
+        M model = borrow(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (model == null) {
+            throw new IllegalStateException("borrow timeout");
+        }
+        return model;
+    }
+
+    /**
+     * 借出一个实例，超时返回 null
+     */
+    public M borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : now() + unit.toMillis(timeout);
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("pool is closed");
+                }
+                evictIdleLocked();
+                IdleModel<M> idleModel = idleModels.pollFirst();
+                if (idleModel != null) {
+                    return idleModel.model;
+                }
+                if (createdCount < maxSize) {
+                    createdCount++;
+                    break;
+                }
+                long waitMillis = deadline == Long.MAX_VALUE ? 0 : deadline - now();
+                if (deadline != Long.MAX_VALUE && waitMillis <= 0) {
+                    return null;
+                }
+                wait(waitMillis);
+            }
+        }
+        //创建实例比较耗时，放在锁外面
+        try {
+            return factory.create();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                createdCount--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 归还 {@link #borrow()} 借出的实例
+     */
+    public void release(M model) {
+        synchronized (this) {
+            if (closed) {
+                createdCount--;
+                model.close();
+                return;
+            }
+            idleModels.addFirst(new IdleModel<>(model, now()));
+            evictIdleLocked();
+            notifyAll();
+        }
+    }
+
+    /**
+     * 借出、执行、归还
+     */
+    public <T> T execute(ModelTask<M, T> task) throws Exception {
+        M model = borrow();
+        try {
+            return task.run(model);
+        } finally {
+            release(model);
+        }
+    }
+
+    /**
+     * 关闭空闲超时的实例
+     *
+     * @return 关闭的数量
+     */
+    public synchronized int evictIdle() {
+        return evictIdleLocked();
+    }
+
+    public synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+    public synchronized int getIdleCount() {
+        return idleModels.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 关闭所有空闲实例，借出中的实例在归还时关闭
+     */
+    public synchronized void close() {
+        closed = true;
+        for (IdleModel<M> idleModel : idleModels) {
+            idleModel.model.close();
+            createdCount--;
+        }
+        idleModels.clear();
+        notifyAll();
+    }
+
+    /**
+     * 单调时钟，毫秒
+     */
+    protected long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private int evictIdleLocked() {
+        if (idleTimeoutMillis <= 0) {
+            return 0;
+        }
+        long now = now();
+        int evicted = 0;
+        //队尾是最久没用的
+        Iterator<IdleModel<M>> iterator = idleModels.descendingIterator();
+        while (iterator.hasNext()) {
+            IdleModel<M> idleModel = iterator.next();
+            if (now - idleModel.idleSince < idleTimeoutMillis) {
+                break;
+            }
+            iterator.remove();
+            idleModel.model.close();
+            createdCount--;
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private static class IdleModel<M> {
+        final M model;
+        final long idleSince;
+
+        IdleModel(M model, long idleSince) {
+            this.model = model;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.zoomself.ai.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 推理配置自动调优：第一次使用某个模型时在每个候选配置（设备、线程数、XNNPACK）上测一次延迟，
+ * 把最快的配置按 key（模型 + 设备指纹）持久化，之后直接使用，不再重复测试
+ * <p>
+ * 候选配置里不支持的设备（比如没有 GPU 或 NNAPI）在测试时抛异常，会被跳过。
+ * 记录保存在一个 properties 文件里，先写临时文件再重命名，进程被杀掉时不会留下不完整的文件。
+ * 使用 java.io.File，Android API 26 以下也能用。线程安全。
+ */
+public final class ModelTuner {
+
+    /**
+     * 一组推理配置，device 是设备名（比如 TFModel.Device 的 name()），和平台无关
+     */
+    public static final class Config {
+        private final String device;
+        private final int numThreads;
+        private final boolean useXnnpack;
+
+        public Config(String device, int numThreads, boolean useXnnpack) {
+            if (device == null || device.isEmpty() || device.indexOf(',') >= 0) {
+                throw new IllegalArgumentException("invalid device: " + device);
+            }
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("numThreads must >= 1: " + numThreads);
+            }
+            this.device = device;
+            this.numThreads = numThreads;
+            this.useXnnpack = useXnnpack;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        public boolean isUseXnnpack() {
+            return useXnnpack;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            Config other = (Config) o;
+            return device.equals(other.device) && numThreads == other.numThreads && useXnnpack == other.useXnnpack;
+        }
+
+        @Override
+        public int hashCode() {
+            return (device.hashCode() * 31 + numThreads) * 31 + (useXnnpack ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return device + " threads:" + numThreads + (useXnnpack ? " xnnpack" : "");
+        }
+    }
+
+    /**
+     * 在一个配置上测延迟
+     */
+    public interface Benchmark {
+        /**
+         * @return 单次推理的延迟（纳秒），建议取多次的中位数；配置不可用时抛异常
+         */
+        long measure(Config config) throws Exception;
+    }
+
+    /**
+     * 一次调优的结果，从记录文件读取的结果没有各个候选的测量值
+     */
+    public static final class Result {
+        private final Config config;
+        private final long nanos;
+        private final boolean fromStore;
+        private final Map<Config, Long> measurements;
+
+        Result(Config config, long nanos, boolean fromStore, Map<Config, Long> measurements) {
+            this.config = config;
+            this.nanos = nanos;
+            this.fromStore = fromStore;
+            this.measurements = Collections.unmodifiableMap(measurements);
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        /**
+         * 最快配置的延迟
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * 是否直接使用了之前的调优记录
+         */
+        public boolean isFromStore() {
+            return fromStore;
+        }
+
+        /**
+         * 本次测量的候选配置 -> 延迟，失败的不包含在内
+         */
+        public Map<Config, Long> getMeasurements() {
+            return measurements;
+        }
+
+        @Override
+        public String toString() {
+            return config + " " + nanos / 1000 + "us" + (fromStore ? " (stored)" : " of " + measurements);
+        }
+    }
+
+    private final File file;
+    private Properties records;
+
+    /**
+     * @param file 调优记录文件，不存在时会创建
+     */
+    public ModelTuner(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 记录的 key，模型文件或设备变化后需要重新调优
+     *
+     * @param modelPath   模型路径，便于阅读记录文件
+     * @param modelHash   模型文件内容的 hash，见 {@link ModelFile#hash(java.nio.ByteBuffer)}
+     * @param fingerprint 设备指纹（机型、系统版本、CPU 核数等）
+     */
+    public static String key(String modelPath, String modelHash, String fingerprint) {
+        return modelPath + "@" + modelHash + "@" + fingerprint;
+    }
+
+    /**
+     * CPU 上 1..maxThreads 个线程，分别开关 XNNPACK
+     */
+    public static List<Config> cpuCandidates(String cpuDevice, int maxThreads) {
+        List<Config> candidates = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            candidates.add(new Config(cpuDevice, threads, false));
+            candidates.add(new Config(cpuDevice, threads, true));
+        }
+        return candidates;
+    }
+
+    /**
+     * 之前的调优结果，没有时返回 null
+     */
+    public synchronized Result getTuned(String key) throws IOException {
+        String value = load().getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 4) {
+                Config config = new Config(parts[0], Integer.parseInt(parts[1]), Boolean.parseBoolean(parts[2]));
+                return new Result(config, Long.parseLong(parts[3]), true, new LinkedHashMap<Config, Long>());
+            }
+        } catch (IllegalArgumentException ignored) {
+            //格式不对的记录当作没有，重新调优后覆盖
+        }
+        return null;
+    }
+
+    /**
+     * 有记录时直接返回，否则 {@link #measure} 所有候选配置，{@link #record} 并返回最快的
+     *
+     * @throws IllegalStateException 所有候选配置都不可用
+     */
+    public synchronized Result tune(String key, List<Config> candidates, Benchmark benchmark) throws IOException {
+        Result stored = getTuned(key);
+        if (stored != null) {
+            return stored;
+        }
+        Result result = measure(key, candidates, benchmark);
+        record(key, result);
+        return result;
+    }
+
+    /**
+     * 依次测量所有候选配置，返回最快的，不读写记录；记录文件不可用时调用方可以只测量、之后再尝试 {@link #record}
+     *
+     * @param key 只用于错误信息
+     * @throws IllegalStateException 所有候选配置都不可用
+     */
+    public static Result measure(String key, List<Config> candidates, Benchmark benchmark) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("candidates can not be empty");
+        }
+        Map<Config, Long> measurements = new LinkedHashMap<>();
+        Config best = null;
+        long bestNanos = Long.MAX_VALUE;
+        Exception lastError = null;
+        for (Config config : candidates) {
+            long nanos;
+            try {
+                nanos = benchmark.measure(config);
+            } catch (Exception e) {
+                lastError = e;
+                continue;
+            }
+            measurements.put(config, nanos);
+            //延迟相同时取排在前面的，候选按线程数从少到多排列时优先少线程
+            if (nanos < bestNanos) {
+                best = config;
+                bestNanos = nanos;
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("no candidate available for " + key, lastError);
+        }
+        return new Result(best, bestNanos, false, measurements);
+    }
+
+    /**
+     * 保存 {@link #measure} 的结果，之后 {@link #getTuned} / {@link #tune} 直接使用
+     */
+    public synchronized void record(String key, Result result) throws IOException {
+        Config config = result.getConfig();
+        Properties properties = load();
+        properties.setProperty(key, config.getDevice() + "," + config.getNumThreads() + "," + config.isUseXnnpack()
+                + "," + result.getNanos());
+        save(properties);
+    }
+
+    /**
+     * 删除某个 key 的记录，下次 {@link #tune} 会重新测量
+     */
+    public synchronized void forget(String key) throws IOException {
+        Properties properties = load();
+        if (properties.remove(key) != null) {
+            save(properties);
+        }
+    }
+
+    private Properties load() throws IOException {
+        if (records == null) {
+            Properties properties = new Properties();
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                }
+            }
+            records = properties;
+        }
+        return records;
+    }
+
+    private void save(Properties properties) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "model tuning records");
+        }
+        if (!temp.renameTo(file)) {
+            //部分平台 rename 不能覆盖已有文件
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("rename failed: " + temp + " -> " + file);
+            }
+        }
+    }
+}
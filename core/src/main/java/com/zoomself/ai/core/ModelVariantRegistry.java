@@ -0,0 +1,280 @@
+package com.zoomself.ai.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * 同一个模型的多个变体（比如 float16 和量化版本）以及它们在本机上的测量结果：延迟、内存占用、输出质量
+ * <p>
+ * 输出质量是和参考变体（通常是 float 版本）在同一组输入上的输出比较得到的 PSNR，参考变体自身是正无穷。
+ * 测量结果按模型路径、模型 hash 和设备指纹记录在 properties 文件里，模型或设备变化后需要重新测量。
+ * {@link #select(long)} 在延迟预算内选质量最高的变体。线程安全。
+ */
+public final class ModelVariantRegistry {
+
+    /**
+     * 一个变体在本机上的测量结果
+     */
+    public static final class Profile {
+        private final long latencyNanos;
+        private final long memoryBytes;
+        private final double psnr;
+
+        /**
+         * @param psnr 和参考变体输出比较的 PSNR（dB），完全一致时是正无穷
+         */
+        public Profile(long latencyNanos, long memoryBytes, double psnr) {
+            if (latencyNanos < 0 || memoryBytes < 0 || Double.isNaN(psnr)) {
+                throw new IllegalArgumentException("invalid profile: " + latencyNanos + ", " + memoryBytes + ", " + psnr);
+            }
+            this.latencyNanos = latencyNanos;
+            this.memoryBytes = memoryBytes;
+            this.psnr = psnr;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+
+        public double getPsnr() {
+            return psnr;
+        }
+
+        @Override
+        public String toString() {
+            return latencyNanos / 1000 + "us " + memoryBytes / 1024 + "KB psnr:"
+                    + (Double.isInfinite(psnr) ? "inf" : String.format(Locale.US, "%.2f", psnr));
+        }
+    }
+
+    public static final class Variant {
+        private final String name;
+        private final String path;
+        private final String modelHash;
+        private volatile Profile profile;
+
+        Variant(String name, String path, String modelHash) {
+            this.name = name;
+            this.path = path;
+            this.modelHash = modelHash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getModelHash() {
+            return modelHash;
+        }
+
+        /**
+         * 还没有测量时为 null
+         */
+        public Profile getProfile() {
+            return profile;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{" + (profile != null ? profile : "not profiled") + "}";
+        }
+    }
+
+    private final File file;
+    private final String fingerprint;
+    private final List<Variant> variants = new ArrayList<>();
+    private Properties records;
+
+    /**
+     * @param file        测量结果记录文件，不存在时会创建
+     * @param fingerprint 设备指纹
+     */
+    public ModelVariantRegistry(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * 第一个注册的变体是参考变体；有记录时直接读取测量结果
+     */
+    public synchronized Variant register(String name, String path, String modelHash) throws IOException {
+        for (Variant variant : variants) {
+            if (variant.name.equals(name)) {
+                throw new IllegalArgumentException("duplicate variant: " + name);
+            }
+        }
+        Variant variant = new Variant(name, path, modelHash);
+        variant.profile = parse(load().getProperty(key(variant)));
+        variants.add(variant);
+        return variant;
+    }
+
+    public synchronized List<Variant> getVariants() {
+        return Collections.unmodifiableList(new ArrayList<>(variants));
+    }
+
+    public synchronized Variant getReference() {
+        if (variants.isEmpty()) {
+            throw new IllegalStateException("no variant registered");
+        }
+        return variants.get(0);
+    }
+
+    public synchronized Variant getVariant(String name) {
+        for (Variant variant : variants) {
+            if (variant.name.equals(name)) {
+                return variant;
+            }
+        }
+        throw new IllegalArgumentException("unknown variant: " + name);
+    }
+
+    /**
+     * 记录测量结果并持久化
+     */
+    public synchronized void setProfile(Variant variant, Profile profile) throws IOException {
+        if (!variants.contains(variant)) {
+            throw new IllegalArgumentException("unknown variant: " + variant.name);
+        }
+        variant.profile = profile;
+        Properties properties = load();
+        properties.setProperty(key(variant), profile.latencyNanos + "," + profile.memoryBytes + "," + profile.psnr);
+        save(properties);
+    }
+
+    /**
+     * 延迟不超过预算的变体中 PSNR 最高的，PSNR 相同时取延迟低的；没有变体满足预算时取最快的
+     *
+     * @throws IllegalStateException 有变体还没有测量
+     */
+    public synchronized Variant select(long latencyBudgetNanos) {
+        Variant best = null;
+        Variant fastest = null;
+        for (Variant variant : variants) {
+            Profile profile = variant.profile;
+            if (profile == null) {
+                throw new IllegalStateException("variant not profiled: " + variant.name);
+            }
+            if (fastest == null || profile.latencyNanos < fastest.profile.latencyNanos) {
+                fastest = variant;
+            }
+            if (profile.latencyNanos > latencyBudgetNanos) {
+                continue;
+            }
+            if (best == null || profile.psnr > best.profile.psnr
+                    || (profile.psnr == best.profile.psnr && profile.latencyNanos < best.profile.latencyNanos)) {
+                best = variant;
+            }
+        }
+        if (fastest == null) {
+            throw new IllegalStateException("no variant registered");
+        }
+        return best != null ? best : fastest;
+    }
+
+    /**
+     * 两个 RGB 输出 tensor 在【0,1】值域上的均方误差，UINT8 按各自的量化参数反量化，超出【0,1】的值先截断
+     *
+     * @param valueCount 比较的元素个数，从绝对位置 0 开始读取
+     */
+    public static double meanSquaredError(ByteBuffer reference, TensorType referenceType, Quantization referenceQuantization,
+                                          ByteBuffer test, TensorType testType, Quantization testQuantization,
+                                          int valueCount) {
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount must > 0");
+        }
+        //float 按 native order 读取，和模型输出一致
+        reference = reference.duplicate().order(ByteOrder.nativeOrder());
+        test = test.duplicate().order(ByteOrder.nativeOrder());
+        double sum = 0;
+        for (int i = 0; i < valueCount; i++) {
+            double diff = realValue(reference, referenceType, referenceQuantization, i)
+                    - realValue(test, testType, testQuantization, i);
+            sum += diff * diff;
+        }
+        return sum / valueCount;
+    }
+
+    /**
+     * 峰值为 1 的 PSNR，mse 为 0 时是正无穷
+     */
+    public static double psnr(double mse) {
+        return mse <= 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(1 / mse);
+    }
+
+    private static float realValue(ByteBuffer tensor, TensorType type, Quantization quantization, int index) {
+        float value = type == TensorType.FLOAT32
+                ? tensor.getFloat(index * 4)
+                : quantization.dequantize(tensor.get(index) & 0xFF);
+        //NaN 按 0 处理
+        return value > 0 ? (value < 1 ? value : 1) : 0;
+    }
+
+    private String key(Variant variant) {
+        return variant.path + "@" + variant.modelHash + "@" + fingerprint;
+    }
+
+    private static Profile parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 3) {
+                return new Profile(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Double.parseDouble(parts[2]));
+            }
+        } catch (IllegalArgumentException ignored) {
+            //格式不对的记录当作没有，重新测量后覆盖
+        }
+        return null;
+    }
+
+    private Properties load() throws IOException {
+        if (records == null) {
+            Properties properties = new Properties();
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                }
+            }
+            records = properties;
+        }
+        return records;
+    }
+
+    private void save(Properties properties) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "model variant profiles");
+        }
+        if (!temp.renameTo(file)) {
+            //部分平台 rename 不能覆盖已有文件
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("rename failed: " + temp + " -> " + file);
+            }
+        }
+    }
+}
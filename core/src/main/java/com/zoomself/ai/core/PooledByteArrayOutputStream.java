@@ -0,0 +1,104 @@
+package com.zoomself.ai.core;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 从 {@link ByteArrayPool} 借数组的 OutputStream，可以直接读取内部数组，不像 ByteArrayOutputStream.toByteArray() 那样再复制一次
+ * <p>
+ * 容量不够时换一个更大的数组，旧数组归还到池中。{@link #reset()} 后可以复用，
+ * 用完调用 {@link #close()} 把数组还给池。不是线程安全的。
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+    private final ByteArrayPool pool;
+    private byte[] buffer;
+    private int count;
+
+    public PooledByteArrayOutputStream(ByteArrayPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.buffer = pool.acquire(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * 写入 src 剩余的全部字节，src 的 position 移动到 limit
+     */
+    public void write(ByteBuffer src) {
+        int len = src.remaining();
+        ensureCapacity(count + len);
+        src.get(buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * 内部数组，有效数据是 [0, {@link #size()})，下一次写入或 close 之后可能失效
+     */
+    public byte[] getBuffer() {
+        if (buffer == null) {
+            throw new IllegalStateException("stream closed");
+        }
+        return buffer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 清空数据，保留内部数组
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * 复制出有效数据，只在必须交出独立数组的时候使用
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(getBuffer(), count);
+    }
+
+    /**
+     * 把内部数组还给池，之后不能再使用
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (buffer == null) {
+            throw new IllegalStateException("stream closed");
+        }
+        if (minCapacity <= buffer.length) {
+            return;
+        }
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("stream too large");
+        }
+        byte[] larger = pool.acquire(Math.max(minCapacity, buffer.length * 2));
+        System.arraycopy(buffer, 0, larger, 0, count);
+        pool.release(buffer);
+        buffer = larger;
+    }
+}
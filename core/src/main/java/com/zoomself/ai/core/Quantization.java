@@ -0,0 +1,103 @@
+package com.zoomself.ai.core;
+
+/**
+ * UINT8 tensor 的仿射量化参数：real = (q - zeroPoint) * scale
+ * <p>
+ * 和 TFLite 一样，scale 为 0 表示 tensor 没有量化参数，UINT8 按原始通道值读写。
+ * 图片模型的 real 值域是【0,1】，和 FLOAT32 模型的归一化一致。
+ * 通道值只有 256 种，量化 / 反量化都预先算成查找表，转换时每个通道只是一次数组访问。
+ */
+public final class Quantization {
+    /**
+     * 没有量化参数
+     */
+    public static final Quantization NONE = new Quantization(0f, 0);
+
+    private final float scale;
+    private final int zeroPoint;
+    //通道值【0,255】-> 量化后的字节
+    private final byte[] quantizeTable = new byte[256];
+    //量化字节 -> 通道值【0,255】
+    private final int[] dequantizeTable = new int[256];
+
+    public Quantization(float scale, int zeroPoint) {
+        if (scale < 0f || Float.isNaN(scale) || Float.isInfinite(scale)) {
+            throw new IllegalArgumentException("invalid scale: " + scale);
+        }
+        if (zeroPoint < 0 || zeroPoint > 255) {
+            throw new IllegalArgumentException("zeroPoint out of UINT8 range: " + zeroPoint);
+        }
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+        for (int i = 0; i < 256; i++) {
+            quantizeTable[i] = (byte) (scale == 0f ? i : quantize(i / 255.0f));
+            dequantizeTable[i] = scale == 0f ? i : TensorToPixelsConverter.clamp(dequantize(i));
+        }
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getZeroPoint() {
+        return zeroPoint;
+    }
+
+    public boolean isQuantized() {
+        return scale != 0f;
+    }
+
+    /**
+     * real 四舍五入到最近的量化值并截断到【0,255】，没有量化参数时 real 按【0,1】映射到【0,255】
+     */
+    public int quantize(float real) {
+        float step = scale == 0f ? 1 / 255.0f : scale;
+        int offset = scale == 0f ? 0 : zeroPoint;
+        //NaN 转成 int 是 0
+        int q = Math.round(real / step) + offset;
+        return q < 0 ? 0 : (q > 255 ? 255 : q);
+    }
+
+    /**
+     * @param q 无符号的量化值【0,255】
+     */
+    public float dequantize(int q) {
+        return scale == 0f ? q / 255.0f : (q - zeroPoint) * scale;
+    }
+
+    /**
+     * 通道值【0,255】量化后的字节
+     */
+    public byte quantizeChannel(int channel) {
+        return quantizeTable[channel];
+    }
+
+    /**
+     * 量化字节反量化后截断到【0,255】的通道值
+     */
+    public int dequantizeChannel(byte q) {
+        return dequantizeTable[q & 0xFF];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Quantization)) {
+            return false;
+        }
+        Quantization other = (Quantization) o;
+        return Float.compare(scale, other.scale) == 0 && zeroPoint == other.zeroPoint;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Float.floatToIntBits(scale) + zeroPoint;
+    }
+
+    @Override
+    public String toString() {
+        return isQuantized() ? "Quantization{scale=" + scale + ", zeroPoint=" + zeroPoint + "}" : "Quantization{NONE}";
+    }
+}
@@ -0,0 +1,334 @@
+package com.zoomself.ai.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 融合的预处理算子：居中裁剪 + 90 度旋转 + 缩放 + 逐通道归一化，一次遍历写入模型输入
+ * <p>
+ * 替代 ResizeWithCropOrPadOp -> ResizeOp -> Rot90Op 这种每一步都生成完整中间图的链式处理。
+ * 每个输出坐标直接映射回源图像素：先在源图中心取和输出（旋转后）宽高比一致的最大区域，
+ * 顺时针旋转 rotationDegrees（和 Rot90Op(-rotationDegrees / 90) 一致），再按最近邻或双线性采样缩放到输出尺寸。
+ * <p>
+ * 坐标映射表按源图尺寸和旋转角度缓存，尺寸不变时每帧不做任何分配。不是线程安全的，每个线程使用自己的实例。
+ */
+public final class TensorPreprocessor {
+
+    public enum Sampling {
+        NEAREST,
+        BILINEAR
+    }
+
+    private final int outWidth;
+    private final int outHeight;
+    private final TensorType type;
+    private final Sampling sampling;
+    private final float[] mean;
+    private final float[] std;
+    //UINT8 且有量化参数时，归一化后的值按它量化成字节
+    private final Quantization quantization;
+
+    //输出的列 / 行对应的源图坐标，swapAxes 时列对应源图的 y、行对应源图的 x
+    private final int[] col0;
+    private final int[] col1;
+    private final float[] colWeight;
+    private final int[] row0;
+    private final int[] row1;
+    private final float[] rowWeight;
+    private boolean swapAxes;
+    private int cachedWidth = -1;
+    private int cachedHeight = -1;
+    private int cachedRotation = -1;
+
+    private TensorPreprocessor(Builder builder) {
+        this.outWidth = builder.outWidth;
+        this.outHeight = builder.outHeight;
+        this.type = builder.type;
+        this.sampling = builder.sampling;
+        this.quantization = builder.quantization;
+        this.mean = builder.mean.clone();
+        this.std = builder.std != null ? builder.std.clone() : builder.defaultStd();
+        this.col0 = new int[outWidth];
+        this.col1 = new int[outWidth];
+        this.colWeight = new float[outWidth];
+        this.row0 = new int[outHeight];
+        this.row1 = new int[outHeight];
+        this.rowWeight = new float[outHeight];
+    }
+
+    /**
+     * 把 argb（行宽 width）处理后按 RGB 顺序写入 out 的当前 position，写完后 position 在数据末尾
+     *
+     * @param rotationDegrees 90 的倍数
+     */
+    public void process(int[] argb, int width, int height, int rotationDegrees, ByteBuffer out) {
+        if (rotationDegrees % 90 != 0) {
+            throw new IllegalArgumentException("rotationDegrees must be a multiple of 90: " + rotationDegrees);
+        }
+        if (width <= 0 || height <= 0 || argb.length < width * height) {
+            throw new IllegalArgumentException("invalid source: " + width + "x" + height);
+        }
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        if (width != cachedWidth || height != cachedHeight || rotation != cachedRotation) {
+            computeMapping(width, height, rotation);
+            cachedWidth = width;
+            cachedHeight = height;
+            cachedRotation = rotation;
+        }
+        if (sampling == Sampling.NEAREST) {
+            processNearest(argb, width, out);
+        } else {
+            processBilinear(argb, width, out);
+        }
+    }
+
+    public int getOutWidth() {
+        return outWidth;
+    }
+
+    public int getOutHeight() {
+        return outHeight;
+    }
+
+    public TensorType getType() {
+        return type;
+    }
+
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    private void computeMapping(int width, int height, int rotation) {
+        swapAxes = rotation == 90 || rotation == 270;
+        //旋转前的源图上需要的宽高比
+        long targetWidth = swapAxes ? outHeight : outWidth;
+        long targetHeight = swapAxes ? outWidth : outHeight;
+        int cropWidth;
+        int cropHeight;
+        if (width * targetHeight > height * targetWidth) {
+            cropHeight = height;
+            cropWidth = (int) Math.max(1, (height * targetWidth + targetHeight / 2) / targetHeight);
+        } else {
+            cropWidth = width;
+            cropHeight = (int) Math.max(1, (width * targetHeight + targetWidth / 2) / targetWidth);
+        }
+        int cropLeft = (width - cropWidth) / 2;
+        int cropTop = (height - cropHeight) / 2;
+
+        //旋转后的裁剪区域尺寸
+        int rotatedWidth = swapAxes ? cropHeight : cropWidth;
+        int rotatedHeight = swapAxes ? cropWidth : cropHeight;
+
+        //输出的 x 轴在源图上对应的轴、是否反向、偏移
+        boolean colReversed;
+        int colOffset;
+        boolean rowReversed;
+        int rowOffset;
+        switch (rotation) {
+            case 90:
+                //sx = ry, sy = cropHeight - 1 - rx
+                colReversed = true;
+                colOffset = cropTop;
+                rowReversed = false;
+                rowOffset = cropLeft;
+                break;
+            case 180:
+                colReversed = true;
+                colOffset = cropLeft;
+                rowReversed = true;
+                rowOffset = cropTop;
+                break;
+            case 270:
+                //sx = cropWidth - 1 - ry, sy = rx
+                colReversed = false;
+                colOffset = cropTop;
+                rowReversed = true;
+                rowOffset = cropLeft;
+                break;
+            default:
+                colReversed = false;
+                colOffset = cropLeft;
+                rowReversed = false;
+                rowOffset = cropTop;
+                break;
+        }
+        fillAxis(col0, col1, colWeight, outWidth, rotatedWidth, colReversed, colOffset);
+        fillAxis(row0, row1, rowWeight, outHeight, rotatedHeight, rowReversed, rowOffset);
+    }
+
+    private void fillAxis(int[] index0, int[] index1, float[] weight, int outSize, int srcSize,
+                          boolean reversed, int offset) {
+        int last = srcSize - 1;
+        for (int o = 0; o < outSize; o++) {
+            int i0;
+            int i1;
+            float w;
+            if (sampling == Sampling.NEAREST) {
+                //输出像素中心落在哪个源像素里
+                i0 = (int) ((2L * o + 1) * srcSize / (2L * outSize));
+                i1 = i0;
+                w = 0f;
+            } else {
+                float f = (o + 0.5f) * srcSize / outSize - 0.5f;
+                f = f < 0 ? 0 : (f > last ? last : f);
+                i0 = (int) f;
+                i1 = Math.min(i0 + 1, last);
+                w = f - i0;
+            }
+            if (reversed) {
+                i0 = last - i0;
+                i1 = last - i1;
+            }
+            index0[o] = offset + i0;
+            index1[o] = offset + i1;
+            weight[o] = w;
+        }
+    }
+
+    private void processNearest(int[] argb, int stride, ByteBuffer out) {
+        for (int oy = 0; oy < outHeight; oy++) {
+            int row = row0[oy];
+            for (int ox = 0; ox < outWidth; ox++) {
+                int col = col0[ox];
+                int pixel = swapAxes ? argb[col * stride + row] : argb[row * stride + col];
+                put(out, pixel >> 16 & 0xFF, pixel >> 8 & 0xFF, pixel & 0xFF);
+            }
+        }
+    }
+
+    private void processBilinear(int[] argb, int stride, ByteBuffer out) {
+        for (int oy = 0; oy < outHeight; oy++) {
+            int a0 = row0[oy];
+            int a1 = row1[oy];
+            float aw = rowWeight[oy];
+            for (int ox = 0; ox < outWidth; ox++) {
+                int b0 = col0[ox];
+                int b1 = col1[ox];
+                float bw = colWeight[ox];
+                int x0;
+                int x1;
+                int y0;
+                int y1;
+                float wx;
+                float wy;
+                if (swapAxes) {
+                    x0 = a0;
+                    x1 = a1;
+                    wx = aw;
+                    y0 = b0;
+                    y1 = b1;
+                    wy = bw;
+                } else {
+                    x0 = b0;
+                    x1 = b1;
+                    wx = bw;
+                    y0 = a0;
+                    y1 = a1;
+                    wy = aw;
+                }
+                int p00 = argb[y0 * stride + x0];
+                int p01 = argb[y0 * stride + x1];
+                int p10 = argb[y1 * stride + x0];
+                int p11 = argb[y1 * stride + x1];
+                put(out, lerp(p00 >> 16 & 0xFF, p01 >> 16 & 0xFF, p10 >> 16 & 0xFF, p11 >> 16 & 0xFF, wx, wy),
+                        lerp(p00 >> 8 & 0xFF, p01 >> 8 & 0xFF, p10 >> 8 & 0xFF, p11 >> 8 & 0xFF, wx, wy),
+                        lerp(p00 & 0xFF, p01 & 0xFF, p10 & 0xFF, p11 & 0xFF, wx, wy));
+            }
+        }
+    }
+
+    private static float lerp(int c00, int c01, int c10, int c11, float wx, float wy) {
+        float top = c00 + (c01 - c00) * wx;
+        float bottom = c10 + (c11 - c10) * wx;
+        return top + (bottom - top) * wy;
+    }
+
+    private void put(ByteBuffer out, float r, float g, float b) {
+        if (type == TensorType.FLOAT32) {
+            out.putFloat((r - mean[0]) / std[0]);
+            out.putFloat((g - mean[1]) / std[1]);
+            out.putFloat((b - mean[2]) / std[2]);
+        } else if (quantization.isQuantized()) {
+            out.put((byte) quantization.quantize((r - mean[0]) / std[0]));
+            out.put((byte) quantization.quantize((g - mean[1]) / std[1]));
+            out.put((byte) quantization.quantize((b - mean[2]) / std[2]));
+        } else {
+            out.put(toByte((r - mean[0]) / std[0]));
+            out.put(toByte((g - mean[1]) / std[1]));
+            out.put(toByte((b - mean[2]) / std[2]));
+        }
+    }
+
+    private static byte toByte(float value) {
+        int v = (int) (value + 0.5f);
+        return (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+    }
+
+    public static class Builder {
+        private final int outWidth;
+        private final int outHeight;
+        private final TensorType type;
+        private Sampling sampling = Sampling.NEAREST;
+        private float[] mean = {0f, 0f, 0f};
+        private float[] std;
+        private Quantization quantization = Quantization.NONE;
+
+        /**
+         * 默认最近邻采样（和 ResizeOp 的 NEAREST_NEIGHBOR 一致），需要更平滑的缩放时 setSampling(BILINEAR)；
+         * FLOAT32 和有量化参数的 UINT8 默认归一化到【0,1】，没有量化参数的 UINT8 默认写原始通道值
+         */
+        public Builder(int outWidth, int outHeight, TensorType type) {
+            if (outWidth <= 0 || outHeight <= 0) {
+                throw new IllegalArgumentException("invalid output size: " + outWidth + "x" + outHeight);
+            }
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.type = type;
+        }
+
+        private float[] defaultStd() {
+            float defaultStd = type == TensorType.FLOAT32 || quantization.isQuantized() ? 255.0f : 1.0f;
+            return new float[]{defaultStd, defaultStd, defaultStd};
+        }
+
+        public Builder setSampling(Sampling sampling) {
+            this.sampling = sampling;
+            return this;
+        }
+
+        /**
+         * 输出 (value - mean[c]) / std[c]，value 是【0,255】的通道值，UINT8 结果四舍五入并截断到【0,255】
+         */
+        public Builder setNormalization(float[] mean, float[] std) {
+            if (mean.length != 3 || std.length != 3) {
+                throw new IllegalArgumentException("mean and std must have 3 channels");
+            }
+            for (float s : std) {
+                if (s == 0f) {
+                    throw new IllegalArgumentException("std can not be 0");
+                }
+            }
+            this.mean = mean.clone();
+            this.std = std.clone();
+            return this;
+        }
+
+        /**
+         * UINT8 输入 tensor 的量化参数，归一化后的 real 值按 q = round(real / scale) + zeroPoint 写入，FLOAT32 忽略
+         */
+        public Builder setQuantization(Quantization quantization) {
+            if (quantization == null) {
+                throw new IllegalArgumentException("quantization can not be null, use Quantization.NONE");
+            }
+            this.quantization = quantization;
+            return this;
+        }
+
+        public TensorPreprocessor build() {
+            return new TensorPreprocessor(this);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.zoomself.ai.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 模型输出的 RGB tensor 转像素，按行带在 {@link ForkJoinPool} 中并行
+ * <p>
+ * FLOAT32 通过 tensor 自身 {@link ByteBuffer} 的 {@link FloatBuffer} 视图读取，不复制整个 tensor；
+ * 每个通道 round(value * 255) 后截断到【0,255】，超出范围的值不会溢出到相邻通道。
+ * UINT8 按 {@link Quantization} 反量化，没有量化参数时按原始通道值。
+ * 结果写入调用方复用的 int[] 或 {@link IntBuffer}，转换过程不分配像素内存。
+ */
+public final class TensorToPixelsConverter {
+    //每个行带至少包含的行数
+    private static final int MIN_BAND_ROWS = 16;
+
+    public enum PixelFormat {
+        /**
+         * 0xAARRGGBB，对应 Bitmap.setPixels / getPixels
+         */
+        ARGB,
+        /**
+         * 内存中依次是 R、G、B、A 字节，对应 ARGB_8888 Bitmap 的 copyPixelsFromBuffer；
+         * 按 IntBuffer 的字节序打包
+         */
+        RGBA
+    }
+
+    private final ForkJoinPool pool;
+
+    public TensorToPixelsConverter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 从 tensor 的绝对位置 0 开始读取 width * height 个 RGB 像素，写入 out 的开头，ARGB 格式
+     */
+    public void convert(ByteBuffer tensor, TensorType type, int width, int height, int[] out) {
+        convert(tensor, type, Quantization.NONE, width, height, out);
+    }
+
+    public void convert(ByteBuffer tensor, TensorType type, Quantization quantization, int width, int height,
+                        int[] out) {
+        if (out.length < width * height) {
+            throw new IllegalArgumentException("out too small: " + out.length + " < " + width * height);
+        }
+        invoke(new Frame(tensor, type, quantization, width, height, PixelFormat.ARGB, false, out, 0, null));
+    }
+
+    /**
+     * 写入 out 的当前 position 开始的 width * height 个像素，out 的 position 不变
+     */
+    public void convert(ByteBuffer tensor, TensorType type, int width, int height, IntBuffer out,
+                        PixelFormat format) {
+        convert(tensor, type, Quantization.NONE, width, height, out, format);
+    }
+
+    public void convert(ByteBuffer tensor, TensorType type, Quantization quantization, int width, int height,
+                        IntBuffer out, PixelFormat format) {
+        if (out.remaining() < width * height) {
+            throw new IllegalArgumentException("out too small: " + out.remaining() + " < " + width * height);
+        }
+        boolean littleEndian = out.order() == ByteOrder.LITTLE_ENDIAN;
+        Frame frame = out.hasArray()
+                ? new Frame(tensor, type, quantization, width, height, format, littleEndian, out.array(),
+                out.arrayOffset() + out.position(), null)
+                : new Frame(tensor, type, quantization, width, height, format, littleEndian, null, out.position(), out);
+        invoke(frame);
+    }
+
+    private void invoke(Frame frame) {
+        if (frame.tensor.capacity() < frame.width * frame.height * 3 * frame.type.byteSize()) {
+            throw new IllegalArgumentException("tensor too small for " + frame.width + "x" + frame.height);
+        }
+        int bandRows = Math.max(MIN_BAND_ROWS, frame.height / (pool.getParallelism() * 4));
+        pool.invoke(new BandTask(frame, 0, frame.height, bandRows));
+    }
+
+    /**
+     * 通道值截断到【0,255】并打包
+     */
+    static int pack(float r, float g, float b, PixelFormat format, boolean littleEndian) {
+        return pack(clamp(r), clamp(g), clamp(b), format, littleEndian);
+    }
+
+    static int clamp(float value) {
+        //NaN 转成 int 是 0
+        int v = (int) (value * 255.0f + 0.5f);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static int pack(int r, int g, int b, PixelFormat format, boolean littleEndian) {
+        if (format == PixelFormat.ARGB) {
+            return 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        return littleEndian ? 0xff000000 | (b << 16) | (g << 8) | r : (r << 24) | (g << 16) | (b << 8) | 0xff;
+    }
+
+    private static final class Frame {
+        final ByteBuffer tensor;
+        final TensorType type;
+        final Quantization quantization;
+        final int width;
+        final int height;
+        final PixelFormat format;
+        final boolean littleEndian;
+        final int[] out;
+        final int outOffset;
+        final IntBuffer outBuffer;
+
+        Frame(ByteBuffer tensor, TensorType type, Quantization quantization, int width, int height, PixelFormat format,
+              boolean littleEndian, int[] out, int outOffset, IntBuffer outBuffer) {
+            this.tensor = tensor;
+            this.type = type;
+            this.quantization = quantization;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.littleEndian = littleEndian;
+            this.out = out;
+            this.outOffset = outOffset;
+            this.outBuffer = outBuffer;
+        }
+    }
+
+    //只在 ForkJoinPool 里执行，不会被序列化
+    @SuppressWarnings("serial")
+    private static final class BandTask extends RecursiveAction {
+        private final Frame frame;
+        private final int fromRow;
+        private final int toRow;
+        private final int bandRows;
+
+        BandTask(Frame frame, int fromRow, int toRow, int bandRows) {
+            this.frame = frame;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > bandRows) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new BandTask(frame, fromRow, middle, bandRows),
+                        new BandTask(frame, middle, toRow, bandRows));
+                return;
+            }
+            Frame f = frame;
+            //duplicate 会把字节序重置为 BIG_ENDIAN，要恢复成 tensor 的字节序
+            ByteBuffer tensor = f.tensor.duplicate().order(f.tensor.order());
+            tensor.clear();
+            FloatBuffer floats = f.type == TensorType.FLOAT32 ? tensor.asFloatBuffer() : null;
+            for (int row = fromRow; row < toRow; row++) {
+                convertRow(f, floats, tensor, row);
+            }
+        }
+    }
+
+    /**
+     * 有数组时直接写数组，direct IntBuffer 用绝对位置写入，不需要中间数组
+     */
+    private static void convertRow(Frame f, FloatBuffer floats, ByteBuffer bytes, int row) {
+        int width = f.width;
+        int index = row * width * 3;
+        int outIndex = f.outOffset + row * width;
+        int[] out = f.out;
+        IntBuffer outBuffer = f.outBuffer;
+        PixelFormat format = f.format;
+        boolean littleEndian = f.littleEndian;
+        Quantization quantization = f.quantization;
+        for (int x = 0; x < width; x++, index += 3) {
+            int pixel = floats != null
+                    ? pack(floats.get(index), floats.get(index + 1), floats.get(index + 2), format, littleEndian)
+                    : pack(quantization.dequantizeChannel(bytes.get(index)),
+                    quantization.dequantizeChannel(bytes.get(index + 1)),
+                    quantization.dequantizeChannel(bytes.get(index + 2)), format, littleEndian);
+            if (out != null) {
+                out[outIndex + x] = pixel;
+            } else {
+                outBuffer.put(outIndex + x, pixel);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.zoomself.ai.core;
+
+/**
+ * 和 Android 无关的 tensor 元素类型，对应 org.tensorflow.lite.DataType 中图片模型用到的两种
+ */
+public enum TensorType {
+    UINT8(1),
+    FLOAT32(4);
+
+    private final int byteSize;
+
+    TensorType(int byteSize) {
+        this.byteSize = byteSize;
+    }
+
+    public int byteSize() {
+        return byteSize;
+    }
+}
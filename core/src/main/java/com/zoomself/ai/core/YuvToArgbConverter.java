@@ -0,0 +1,217 @@
+package com.zoomself.ai.core;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行的 YUV420 -> ARGB8888 转换，输出和 {@link ImageKernels#convertYUV420ToARGB8888} 逐位一致
+ * <p>
+ * YUV2RGB 里的乘法只和单个 Y / U / V 分量有关，预先算成 256 项的查找表；
+ * 两行 Y 共用一行 UV，每个 UV 样本只查一次表，作用于 2x2 的四个像素。
+ * 整帧按 UV 行切成行带，在 {@link ForkJoinPool} 中并行转换。
+ */
+public final class YuvToArgbConverter {
+    //每个行带至少包含的 UV 行数，太小的话调度开销会超过计算量
+    private static final int MIN_BAND_CHROMA_ROWS = 8;
+
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = 1192 * (i - 16 < 0 ? 0 : i - 16);
+            RV_TABLE[i] = 1634 * (i - 128);
+            GV_TABLE[i] = -833 * (i - 128);
+            GU_TABLE[i] = -400 * (i - 128);
+            BU_TABLE[i] = 2066 * (i - 128);
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public YuvToArgbConverter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 使用 {@link ForkJoinPool#commonPool()}，Android 上需要 API 24，app 里要自己传入线程池
+     */
+    public YuvToArgbConverter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public void convert(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int[] out) {
+        if (out.length < width * height) {
+            throw new IllegalArgumentException("out too small: " + out.length + " < " + width * height);
+        }
+        Frame frame = new Frame(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride,
+                out, 0, null);
+        pool.invoke(new BandTask(frame, 0, (height + 1) / 2, bandRows(height)));
+    }
+
+    /**
+     * 写入 out 的当前 position 开始的 width * height 个像素，out 的 position 不变
+     * <p>
+     * 有数组的 IntBuffer 直接写数组；direct buffer 每个行带先写入两行的临时数组再批量 put
+     */
+    public void convert(
+            byte[] yData,
+            byte[] uData,
+            byte[] vData,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            IntBuffer out) {
+        if (out.remaining() < width * height) {
+            throw new IllegalArgumentException("out too small: " + out.remaining() + " < " + width * height);
+        }
+        Frame frame;
+        if (out.hasArray()) {
+            frame = new Frame(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride,
+                    out.array(), out.arrayOffset() + out.position(), null);
+        } else {
+            frame = new Frame(yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride,
+                    null, out.position(), out);
+        }
+        pool.invoke(new BandTask(frame, 0, (height + 1) / 2, bandRows(height)));
+    }
+
+    private int bandRows(int height) {
+        int chromaRows = (height + 1) / 2;
+        //每个线程大约分到 4 个行带，负载不均时可以互相窃取
+        return Math.max(MIN_BAND_CHROMA_ROWS, chromaRows / (pool.getParallelism() * 4));
+    }
+
+    private static final class Frame {
+        final byte[] yData;
+        final byte[] uData;
+        final byte[] vData;
+        final int width;
+        final int height;
+        final int yRowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final int[] out;
+        final int outOffset;
+        final IntBuffer outBuffer;
+
+        Frame(byte[] yData, byte[] uData, byte[] vData, int width, int height, int yRowStride,
+              int uvRowStride, int uvPixelStride, int[] out, int outOffset, IntBuffer outBuffer) {
+            this.yData = yData;
+            this.uData = uData;
+            this.vData = vData;
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.out = out;
+            this.outOffset = outOffset;
+            this.outBuffer = outBuffer;
+        }
+    }
+
+    //只在 ForkJoinPool 里执行，不会被序列化
+    @SuppressWarnings("serial")
+    private static final class BandTask extends RecursiveAction {
+        private final Frame frame;
+        private final int fromChromaRow;
+        private final int toChromaRow;
+        private final int bandRows;
+
+        BandTask(Frame frame, int fromChromaRow, int toChromaRow, int bandRows) {
+            this.frame = frame;
+            this.fromChromaRow = fromChromaRow;
+            this.toChromaRow = toChromaRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChromaRow - fromChromaRow > bandRows) {
+                int middle = (fromChromaRow + toChromaRow) >>> 1;
+                invokeAll(new BandTask(frame, fromChromaRow, middle, bandRows),
+                        new BandTask(frame, middle, toChromaRow, bandRows));
+                return;
+            }
+            Frame f = frame;
+            if (f.outBuffer == null) {
+                for (int row = fromChromaRow; row < toChromaRow; row++) {
+                    convertChromaRow(f, row, f.out, f.outOffset + 2 * row * f.width);
+                }
+            } else {
+                int[] rows = new int[2 * f.width];
+                IntBuffer target = f.outBuffer.duplicate();
+                for (int row = fromChromaRow; row < toChromaRow; row++) {
+                    int lines = Math.min(2, f.height - 2 * row);
+                    convertChromaRow(f, row, rows, 0);
+                    target.position(f.outOffset + 2 * row * f.width);
+                    target.put(rows, 0, lines * f.width);
+                }
+            }
+        }
+    }
+
+    /**
+     * 转换共用第 chromaRow 行 UV 的两行像素（最后一行可能只有一行）
+     */
+    private static void convertChromaRow(Frame f, int chromaRow, int[] out, int outIndex) {
+        int width = f.width;
+        byte[] yData = f.yData;
+        int y0 = f.yRowStride * 2 * chromaRow;
+        boolean twoLines = 2 * chromaRow + 1 < f.height;
+        int y1 = y0 + f.yRowStride;
+        int out0 = outIndex;
+        int out1 = outIndex + width;
+        int uv = f.uvRowStride * chromaRow;
+        int uvPixelStride = f.uvPixelStride;
+        byte[] uData = f.uData;
+        byte[] vData = f.vData;
+
+        for (int i = 0; i < width; i += 2, uv += uvPixelStride) {
+            int u = uData[uv] & 0xff;
+            int v = vData[uv] & 0xff;
+            int rv = RV_TABLE[v];
+            int guv = GV_TABLE[v] + GU_TABLE[u];
+            int bu = BU_TABLE[u];
+            boolean pair = i + 1 < width;
+
+            out[out0 + i] = pack(Y_TABLE[yData[y0 + i] & 0xff], rv, guv, bu);
+            if (pair) {
+                out[out0 + i + 1] = pack(Y_TABLE[yData[y0 + i + 1] & 0xff], rv, guv, bu);
+            }
+            if (twoLines) {
+                out[out1 + i] = pack(Y_TABLE[yData[y1 + i] & 0xff], rv, guv, bu);
+                if (pair) {
+                    out[out1 + i + 1] = pack(Y_TABLE[yData[y1 + i + 1] & 0xff], rv, guv, bu);
+                }
+            }
+        }
+    }
+
+    private static int pack(int y1192, int rv, int guv, int bu) {
+        int r = y1192 + rv;
+        int g = y1192 + guv;
+        int b = y1192 + bu;
+        int max = ImageKernels.kMaxChannelValue;
+        r = r > max ? max : (r < 0 ? 0 : r);
+        g = g > max ? max : (g < 0 ? 0 : g);
+        b = b > max ? max : (b < 0 ? 0 : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
@@ -0,0 +1,256 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchPipelineTest {
+
+    private static List<Integer> jobs(int count) {
+        List<Integer> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            jobs.add(i);
+        }
+        return jobs;
+    }
+
+    /**
+     * 记录同时存在的中间结果数量，检查流水线是有界的
+     */
+    private static class CountingStages implements BatchPipeline.Stages<Integer, int[], int[]> {
+        final Set<Integer> encoded = Collections.synchronizedSet(new HashSet<Integer>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        int failJob = -1;
+
+        @Override
+        public String key(Integer job) {
+            return "image-" + job;
+        }
+
+        @Override
+        public int[] decode(Integer job) throws Exception {
+            if (job == failJob) {
+                throw new IOException("broken " + job);
+            }
+            int current = inFlight.incrementAndGet();
+            int max;
+            while (current > (max = maxInFlight.get())) {
+                maxInFlight.compareAndSet(max, current);
+            }
+            return new int[]{job};
+        }
+
+        @Override
+        public int[] infer(Integer job, int[] decoded) throws Exception {
+            //推理比解码慢，解码线程会被队列挡住
+            Thread.sleep(1);
+            return new int[]{decoded[0] * 2};
+        }
+
+        @Override
+        public void encode(Integer job, int[] result) {
+            assertEquals(job * 2, result[0]);
+            encoded.add(job);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void processesEveryJobWithBoundedInFlight() throws Exception {
+        CountingStages stages = new CountingStages();
+        BatchPipeline<Integer, int[], int[]> pipeline = new BatchPipeline.Builder<>(stages)
+                .setWorkers(3, 2, 2)
+                .setQueueCapacity(2)
+                .build();
+        BatchPipeline.Stats stats = pipeline.run(jobs(200).iterator());
+        assertEquals(200, stats.getCompleted());
+        assertEquals(0, stats.getFailed());
+        assertEquals(200, stages.encoded.size());
+        //两个队列 + 各级线程手里的
+        assertTrue("maxInFlight " + stages.maxInFlight.get(), stages.maxInFlight.get() <= 2 + 2 + 3 + 2 + 2);
+        assertTrue(stats.getThroughput() > 0);
+    }
+
+    @Test
+    public void failedJobsAreCountedAndRetriedOnResume() throws Exception {
+        File file = File.createTempFile("batch", ".journal");
+        assertTrue(file.delete());
+        try {
+            CountingStages stages = new CountingStages();
+            stages.failJob = 7;
+            BatchJournal journal = new BatchJournal(file);
+            final List<Integer> failed = new ArrayList<>();
+            BatchPipeline.Stats stats = new BatchPipeline.Builder<>(stages)
+                    .setJournal(journal)
+                    .setListener(new BatchPipeline.Listener<Integer>() {
+                        @Override
+                        public void onCompleted(Integer job, BatchPipeline.Stats stats) {
+                        }
+
+                        @Override
+                        public void onFailed(Integer job, Exception e) {
+                            synchronized (failed) {
+                                failed.add(job);
+                            }
+                        }
+                    })
+                    .build()
+                    .run(jobs(20).iterator());
+            journal.close();
+            assertEquals(19, stats.getCompleted());
+            assertEquals(1, stats.getFailed());
+            assertEquals(Collections.singletonList(7), failed);
+
+            CountingStages resumed = new CountingStages();
+            journal = new BatchJournal(file);
+            assertEquals(19, journal.getCompletedCount());
+            stats = new BatchPipeline.Builder<>(resumed).setJournal(journal).build().run(jobs(20).iterator());
+            journal.close();
+            assertEquals(1, stats.getCompleted());
+            assertEquals(19, stats.getSkipped());
+            assertEquals(Collections.singleton(7), resumed.encoded);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void journalIgnoresTruncatedLastLine() throws Exception {
+        File file = File.createTempFile("batch", ".journal");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write("a.jpg\nb.jpg\nc.j".getBytes("UTF-8"));
+            }
+            BatchJournal journal = new BatchJournal(file);
+            assertTrue(journal.isCompleted("a.jpg"));
+            assertTrue(journal.isCompleted("b.jpg"));
+            assertFalse(journal.isCompleted("c.j"));
+            journal.markCompleted("c.jpg");
+            journal.close();
+
+            journal = new BatchJournal(file);
+            assertEquals(3, journal.getCompletedCount());
+            assertTrue(journal.isCompleted("c.jpg"));
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void cancelStopsTakingNewJobs() throws Exception {
+        final CountingStages stages = new CountingStages();
+        final AtomicReference<BatchPipeline<Integer, int[], int[]>> holder = new AtomicReference<>();
+        holder.set(new BatchPipeline.Builder<>(stages)
+                .setWorkers(1, 1, 1)
+                .setQueueCapacity(1)
+                .setListener(new BatchPipeline.Listener<Integer>() {
+                    @Override
+                    public void onCompleted(Integer job, BatchPipeline.Stats stats) {
+                        if (stats.getCompleted() == 5) {
+                            holder.get().cancel();
+                        }
+                    }
+
+                    @Override
+                    public void onFailed(Integer job, Exception e) {
+                    }
+                })
+                .build());
+        BatchPipeline.Stats stats = holder.get().run(jobs(1000).iterator());
+        assertTrue(stats.getCompleted() >= 5);
+        assertTrue("completed " + stats.getCompleted(), stats.getCompleted() < 20);
+        assertEquals(stats.getCompleted(), stages.encoded.size());
+    }
+
+    @Test(timeout = 10000)
+    public void errorsInAnyStageDoNotHang() throws Exception {
+        CountingStages stages = new CountingStages() {
+            @Override
+            public String key(Integer job) {
+                if (job == 3) {
+                    throw new AssertionError("key " + job);
+                }
+                return super.key(job);
+            }
+
+            @Override
+            public int[] decode(Integer job) throws Exception {
+                if (job == 5) {
+                    throw new OutOfMemoryError("decode " + job);
+                }
+                return super.decode(job);
+            }
+
+            @Override
+            public void encode(Integer job, int[] result) {
+                if (job == 8) {
+                    throw new AssertionError("encode " + job);
+                }
+                super.encode(job, result);
+            }
+        };
+        final List<Exception> errors = new ArrayList<>();
+        File file = File.createTempFile("batch", ".journal");
+        BatchJournal journal = new BatchJournal(file);
+        try {
+            BatchPipeline.Stats stats = new BatchPipeline.Builder<>(stages)
+                    .setJournal(journal)
+                    .setListener(new BatchPipeline.Listener<Integer>() {
+                        @Override
+                        public void onCompleted(Integer job, BatchPipeline.Stats stats) {
+                        }
+
+                        @Override
+                        public void onFailed(Integer job, Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    })
+                    .build()
+                    .run(jobs(20).iterator());
+            assertEquals(17, stats.getCompleted());
+            assertEquals(3, stats.getFailed());
+            assertEquals(3, errors.size());
+        } finally {
+            journal.close();
+            file.delete();
+        }
+
+        //回调抛出的异常在 run 结束时抛出
+        try {
+            new BatchPipeline.Builder<>(new CountingStages())
+                    .setListener(new BatchPipeline.Listener<Integer>() {
+                        @Override
+                        public void onCompleted(Integer job, BatchPipeline.Stats stats) {
+                            throw new IllegalStateException("listener");
+                        }
+
+                        @Override
+                        public void onFailed(Integer job, Exception e) {
+                        }
+                    })
+                    .build()
+                    .run(jobs(20).iterator());
+            fail("listener error should be rethrown");
+        } catch (IllegalStateException expected) {
+            assertEquals("listener", expected.getMessage());
+        }
+    }
+}
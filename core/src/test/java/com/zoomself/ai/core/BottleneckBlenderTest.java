@@ -0,0 +1,64 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BottleneckBlenderTest {
+
+    @Test
+    public void normalizesWeights() {
+        float[][] bottlenecks = {{1f, 0f, 2f}, {3f, 4f, -2f}};
+        float[] out = new float[3];
+        BottleneckBlender.blend(bottlenecks, new float[]{1f, 3f}, out);
+        assertArrayEquals(new float[]{2.5f, 3f, -1f}, out, 1e-6f);
+    }
+
+    @Test
+    public void singleWeightReturnsSameVector() {
+        float[][] bottlenecks = {{0.1f, 0.2f}, {5f, 6f}};
+        float[] out = {9f, 9f};
+        BottleneckBlender.blend(bottlenecks, new float[]{0f, 2f}, out);
+        assertArrayEquals(new float[]{5f, 6f}, out, 0f);
+    }
+
+    @Test
+    public void interpolateStrength() {
+        float[] content = {0f, 10f};
+        float[] style = {4f, 2f};
+        float[] out = new float[2];
+        BottleneckBlender.interpolate(content, style, 0.25f, out);
+        assertArrayEquals(new float[]{1f, 8f}, out, 1e-6f);
+        BottleneckBlender.interpolate(content, style, 0f, out);
+        assertArrayEquals(content, out, 0f);
+    }
+
+    @Test
+    public void writesByteBufferWithoutMovingPosition() {
+        ByteBuffer out = BottleneckBlender.allocate(2);
+        out.position(4);
+        float[] scratch = new float[2];
+        BottleneckBlender.blend(new float[][]{{1f, 2f}, {3f, 4f}}, new float[]{1f, 1f}, scratch, out);
+        assertEquals(4, out.position());
+        assertEquals(2f, out.getFloat(0), 0f);
+        assertEquals(3f, out.getFloat(4), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroWeights() {
+        BottleneckBlender.blend(new float[][]{{1f}}, new float[]{0f}, new float[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeWeights() {
+        BottleneckBlender.blend(new float[][]{{1f}, {2f}}, new float[]{2f, -1f}, new float[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLengthMismatch() {
+        BottleneckBlender.blend(new float[][]{{1f, 2f}, {2f}}, new float[]{1f, 1f}, new float[2]);
+    }
+}
@@ -0,0 +1,79 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteArrayPoolTest {
+
+    @Test
+    public void reusesArraysOfSameBucket() {
+        ByteArrayPool pool = new ByteArrayPool(1 << 20);
+        byte[] first = pool.acquire(1000 * 1000);
+        assertEquals(1 << 20, first.length);
+        pool.release(first);
+        //请求的那一级没有空闲数组时，不到 2 倍的更大数组也能复用
+        byte[] second = pool.acquire(600 * 1000);
+        assertSame(first, second);
+        assertEquals(2, pool.getAcquireCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0.5f, pool.getHitRate(), 0f);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void sizeClassesWasteAtMostAQuarter() {
+        //4000x3000 的 NV21
+        assertEquals(20 * 1024 * 1024, new ByteArrayPool(0).acquire(18_000_000).length);
+        assertEquals(1024, new ByteArrayPool(0).acquire(1).length);
+        assertEquals(1 << 30, ByteArrayPool.classSize(ByteArrayPool.sizeClass(1 << 30)));
+        for (int size = 1025; size < 1 << 22; size += 997) {
+            int length = ByteArrayPool.classSize(ByteArrayPool.sizeClass(size));
+            assertTrue(size + " -> " + length, length >= size && length <= size * 1.25);
+            //每一级的大小落在自己这一级
+            assertEquals(length, ByteArrayPool.classSize(ByteArrayPool.sizeClass(length)));
+        }
+    }
+
+    @Test
+    public void discardsBeyondMaxPooledBytes() {
+        ByteArrayPool pool = new ByteArrayPool(4096);
+        byte[] a = pool.acquire(4096);
+        byte[] b = pool.acquire(4096);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(4096, pool.getPooledBytes());
+        assertEquals(1, pool.getDiscardCount());
+        //不是池分配的数组不会入池
+        pool.release(new byte[3000]);
+        assertEquals(4096, pool.getPooledBytes());
+    }
+
+    @Test
+    public void outputStreamGrowsAndExposesBuffer() {
+        ByteArrayPool pool = new ByteArrayPool(1 << 20);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool, 16);
+        byte[] expected = new byte[5000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+        out.write(expected, 0, 3000);
+        out.write(ByteBuffer.wrap(expected, 3000, 2000));
+        assertEquals(5000, out.size());
+        //3000 -> 3072，再按 2 倍扩容到 6144
+        assertEquals(6144, out.getBuffer().length);
+        assertArrayEquals(expected, out.toByteArray());
+        byte[] buffer = out.getBuffer();
+        out.close();
+
+        //归还的大数组被下一个流复用，稳定之后不再分配
+        PooledByteArrayOutputStream next = new PooledByteArrayOutputStream(pool, 5000);
+        assertSame(buffer, next.getBuffer());
+        next.close();
+    }
+}
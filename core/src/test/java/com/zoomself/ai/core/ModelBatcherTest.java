@@ -0,0 +1,119 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelBatcherTest {
+
+    /**
+     * 每条输出是输入的两倍，记录每一批的大小
+     */
+    private static class DoublingRunner implements ModelBatcher.BatchRunner<Integer, Integer> {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public List<Integer> run(List<Integer> items) throws Exception {
+            batchSizes.add(items.size());
+            List<Integer> outputs = new ArrayList<>();
+            for (int item : items) {
+                outputs.add(item * 2);
+            }
+            return outputs;
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void batchesUntilFullOrWaitExpires() throws Exception {
+        DoublingRunner runner = new DoublingRunner();
+        //等待时间足够长，只有凑满才会运行
+        ModelBatcher<Integer, Integer> full = new ModelBatcher<>(runner, 4, 60_000, "batcher-full");
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(full.submit(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i * 2, (int) futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Collections.singletonList(4), runner.batchSizes);
+        full.close();
+
+        //凑不满时第一条请求等待超时后单独运行
+        DoublingRunner single = new DoublingRunner();
+        ModelBatcher<Integer, Integer> timed = new ModelBatcher<>(single, 4, 20, "batcher-timed");
+        assertEquals(14, (int) timed.submit(7).get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(1), single.batchSizes);
+        timed.close();
+    }
+
+    @Test(timeout = 10000)
+    public void runnerFailureFailsEveryRequestInBatch() throws Exception {
+        ModelBatcher<Integer, Integer> batcher = new ModelBatcher<>(new ModelBatcher.BatchRunner<Integer, Integer>() {
+            @Override
+            public List<Integer> run(List<Integer> items) {
+                throw new IllegalStateException("broken");
+            }
+        }, 2, 60_000, "batcher-fail");
+        Future<Integer> first = batcher.submit(1);
+        Future<Integer> second = batcher.submit(2);
+        for (Future<Integer> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("runner failure should be reported");
+            } catch (ExecutionException e) {
+                assertEquals("broken", e.getCause().getMessage());
+            }
+        }
+        batcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closeCancelsQueuedAndFinishesRunning() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        ModelBatcher<Integer, Integer> batcher = new ModelBatcher<>(new DoublingRunner() {
+            @Override
+            public List<Integer> run(List<Integer> items) throws Exception {
+                started.countDown();
+                proceed.await();
+                return super.run(items);
+            }
+        }, 1, 0, "batcher-close");
+        Future<Integer> running = batcher.submit(1);
+        started.await();
+        Future<Integer> queued1 = batcher.submit(2);
+        Future<Integer> queued2 = batcher.submit(3);
+        batcher.close();
+        //重复 close 没有影响
+        batcher.close();
+
+        for (Future<Integer> future : Arrays.asList(queued1, queued2)) {
+            assertTrue(future.isCancelled());
+            try {
+                future.get();
+                fail("queued request should be cancelled");
+            } catch (CancellationException expected) {
+            }
+        }
+        try {
+            batcher.submit(4);
+            fail("submit after close should throw");
+        } catch (IllegalStateException expected) {
+        }
+
+        proceed.countDown();
+        assertEquals(2, (int) running.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,214 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelCacheTest {
+
+    /**
+     * 每个实例估计 10 字节
+     */
+    private static ModelCache<ModelPoolTest.FakeModel> cache(long maxBytes, long idleTimeoutMillis,
+                                                             final long[] clock) {
+        return new ModelCache<ModelPoolTest.FakeModel>(maxBytes, idleTimeoutMillis,
+                new ModelCache.Sizer<ModelPoolTest.FakeModel>() {
+                    @Override
+                    public long sizeOf(ModelPoolTest.FakeModel model) {
+                        return 10;
+                    }
+                }) {
+            @Override
+            protected long now() {
+                return clock[0];
+            }
+        };
+    }
+
+    private static ModelCache.Loader<ModelPoolTest.FakeModel> loader(final AtomicInteger loaded) {
+        return new ModelCache.Loader<ModelPoolTest.FakeModel>() {
+            @Override
+            public ModelPoolTest.FakeModel load() {
+                loaded.incrementAndGet();
+                return new ModelPoolTest.FakeModel();
+            }
+        };
+    }
+
+    @Test
+    public void sharesAndReusesReleasedModel() throws Exception {
+        AtomicInteger loaded = new AtomicInteger();
+        long[] clock = {0};
+        ModelCache<ModelPoolTest.FakeModel> cache = cache(100, 1000, clock);
+        ModelCache.Handle<ModelPoolTest.FakeModel> first = cache.acquire("style", loader(loaded));
+        ModelCache.Handle<ModelPoolTest.FakeModel> second = cache.acquire("style", loader(loaded));
+        ModelPoolTest.FakeModel model = first.get();
+        assertSame(model, second.get());
+        first.close();
+        //重复 close 不会多减引用
+        first.close();
+        assertTrue(cache.isLoaded("style"));
+        second.close();
+        assertFalse(model.closed);
+
+        //空闲未超时，重新进入时复用
+        clock[0] = 500;
+        ModelCache.Handle<ModelPoolTest.FakeModel> again = cache.acquire("style", loader(loaded));
+        assertEquals(1, loaded.get());
+        assertSame(model, again.get());
+        again.close();
+
+        clock[0] = 1600;
+        assertEquals(1, cache.evictIdle());
+        assertTrue(model.closed);
+        assertEquals(0, cache.getSizeBytes());
+        try {
+            again.get();
+            fail("closed handle should throw");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void retainedHandleOutlivesOriginal() throws Exception {
+        AtomicInteger loaded = new AtomicInteger();
+        long[] clock = {0};
+        ModelCache<ModelPoolTest.FakeModel> cache = cache(100, 1000, clock);
+        ModelCache.Handle<ModelPoolTest.FakeModel> handle = cache.acquire("style", loader(loaded));
+        ModelPoolTest.FakeModel model = handle.get();
+        //交给异步任务的 handle 在原 handle 关闭后依然有效
+        ModelCache.Handle<ModelPoolTest.FakeModel> retained = handle.retain();
+        handle.close();
+
+        clock[0] = 1600;
+        assertEquals(0, cache.evictIdle());
+        assertSame(model, retained.get());
+        assertFalse(model.closed);
+        retained.close();
+        //重复 close 不会多减引用
+        retained.close();
+
+        clock[0] = 2600;
+        assertEquals(1, cache.evictIdle());
+        assertTrue(model.closed);
+        try {
+            handle.retain();
+            fail("closed handle can not be retained");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudgetButNeverInUse() throws Exception {
+        AtomicInteger loaded = new AtomicInteger();
+        long[] clock = {0};
+        ModelCache<ModelPoolTest.FakeModel> cache = cache(20, 0, clock);
+        final List<String> unloaded = new ArrayList<>();
+        cache.addOnUnloadListener(new ModelCache.OnUnloadListener<ModelPoolTest.FakeModel>() {
+            @Override
+            public void onUnload(String key, ModelPoolTest.FakeModel model) {
+                assertFalse(model.closed);
+                unloaded.add(key);
+            }
+        });
+        ModelCache.Handle<ModelPoolTest.FakeModel> a = cache.acquire("a", loader(loaded));
+        ModelCache.Handle<ModelPoolTest.FakeModel> b = cache.acquire("b", loader(loaded));
+        ModelPoolTest.FakeModel modelA = a.get();
+        a.close();
+        b.close();
+        //a 最久没用
+        ModelCache.Handle<ModelPoolTest.FakeModel> c = cache.acquire("c", loader(loaded));
+        assertEquals(1, unloaded.size());
+        assertEquals("a", unloaded.get(0));
+        assertTrue(modelA.closed);
+        assertTrue(cache.isLoaded("b"));
+        assertEquals(20, cache.getSizeBytes());
+
+        //b 和 c 都在使用，超出预算也不关闭，归还时再淘汰
+        b = cache.acquire("b", loader(loaded));
+        ModelCache.Handle<ModelPoolTest.FakeModel> d = cache.acquire("d", loader(loaded));
+        assertEquals(30, cache.getSizeBytes());
+        assertEquals(1, unloaded.size());
+        c.close();
+        assertEquals("c", unloaded.get(1));
+        assertEquals(20, cache.getSizeBytes());
+
+        b.close();
+        d.close();
+        assertEquals(2, cache.trimToSize(0));
+        assertEquals(0, cache.getLoadedCount());
+        assertEquals(4, loaded.get());
+    }
+
+    @Test
+    public void concurrentAcquireLoadsOnce() throws Exception {
+        final AtomicInteger loaded = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final ModelCache<ModelPoolTest.FakeModel> cache = cache(100, 0, new long[1]);
+        final ModelCache.Loader<ModelPoolTest.FakeModel> slowLoader = new ModelCache.Loader<ModelPoolTest.FakeModel>() {
+            @Override
+            public ModelPoolTest.FakeModel load() throws Exception {
+                loaded.incrementAndGet();
+                loading.countDown();
+                proceed.await();
+                return new ModelPoolTest.FakeModel();
+            }
+        };
+        final List<ModelCache.Handle<ModelPoolTest.FakeModel>> handles = new ArrayList<>();
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ModelCache.Handle<ModelPoolTest.FakeModel> handle = cache.acquire("m", slowLoader);
+                    synchronized (handles) {
+                        handles.add(handle);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        first.start();
+        loading.await();
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ModelCache.Handle<ModelPoolTest.FakeModel> handle = cache.acquire("m", slowLoader);
+                    synchronized (handles) {
+                        handles.add(handle);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        second.start();
+        proceed.countDown();
+        first.join();
+        second.join();
+
+        assertEquals(1, loaded.get());
+        assertEquals(2, handles.size());
+        assertSame(handles.get(0).get(), handles.get(1).get());
+
+        //关闭后有 handle 的实例在最后一个 handle 归还时关闭
+        ModelPoolTest.FakeModel model = handles.get(0).get();
+        cache.close();
+        assertFalse(model.closed);
+        handles.get(0).close();
+        assertFalse(model.closed);
+        handles.get(1).close();
+        assertTrue(model.closed);
+    }
+}
@@ -0,0 +1,50 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class ModelFileTest {
+
+    @Test
+    public void mapsWholeFileAndRange() throws Exception {
+        byte[] content = new byte[200 * 1024];
+        new Random(5).nextBytes(content);
+        File file = File.createTempFile("model", ".tflite");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(content);
+            }
+            MappedByteBuffer byPath = ModelFile.map(file.toPath());
+            MappedByteBuffer byFile = ModelFile.map(file);
+            assertEquals(content.length, byPath.capacity());
+            assertEquals(content.length, byFile.capacity());
+            assertEquals(content[12345], byPath.get(12345));
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            byPath.position(100);
+            assertEquals(Long.toHexString(crc32.getValue()), ModelFile.hash(byPath));
+            //hash 不修改 position
+            assertEquals(100, byPath.position());
+            assertEquals(ModelFile.hash(byPath), ModelFile.hash(byFile));
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                MappedByteBuffer range = ModelFile.map(randomAccessFile.getChannel(), 1000, 64);
+                assertEquals(64, range.capacity());
+                assertEquals(content[1000], range.get(0));
+                assertEquals(content[1063], range.get(63));
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.zoomself.ai.core;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelGraphTest {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+
+    @AfterClass
+    public static void tearDown() {
+        EXECUTOR.shutdown();
+    }
+
+    private static ByteBuffer floats(float... values) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder());
+        buffer.asFloatBuffer().put(values);
+        return buffer;
+    }
+
+    /**
+     * 输出 = 所有输入逐元素相加后乘以 scale
+     */
+    static class SumModel implements InferenceModel {
+        final int inputCount;
+        final int length;
+        final float scale;
+        final AtomicInteger runs = new AtomicInteger();
+
+        SumModel(int inputCount, int length, float scale) {
+            this.inputCount = inputCount;
+            this.length = length;
+            this.scale = scale;
+        }
+
+        @Override
+        public int getInputTensorCount() {
+            return inputCount;
+        }
+
+        @Override
+        public int getOutputTensorCount() {
+            return 1;
+        }
+
+        @Override
+        public int[] getInputTensorShape(int inputIndex) {
+            return new int[]{1, length};
+        }
+
+        @Override
+        public int[] getOutputTensorShape(int outputIndex) {
+            return new int[]{1, length};
+        }
+
+        @Override
+        public TensorType getInputTensorType(int inputIndex) {
+            return TensorType.FLOAT32;
+        }
+
+        @Override
+        public TensorType getOutputTensorType(int outputIndex) {
+            return TensorType.FLOAT32;
+        }
+
+        @Override
+        public void run(Object[] inputs, Map<Integer, Object> outputs) {
+            runs.incrementAndGet();
+            ByteBuffer out = (ByteBuffer) outputs.get(0);
+            for (int i = 0; i < length; i++) {
+                float sum = 0;
+                for (Object input : inputs) {
+                    sum += ((ByteBuffer) input).getFloat(i * 4);
+                }
+                out.putFloat(i * 4, sum * scale);
+            }
+        }
+
+        @Override
+        public String getModelHash() {
+            return "sum";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ModelGraph.Op addOne(final AtomicInteger runs) {
+        return new ModelGraph.Op() {
+            @Override
+            public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+                runs.incrementAndGet();
+                for (int i = 0; i < outputs[0].capacity() / 4; i++) {
+                    outputs[0].putFloat(i * 4, inputs[0].getFloat(i * 4) + 1);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void runsChainAndMemoizesUnchangedBranch() {
+        SumModel predict = new SumModel(1, 2, 10f);
+        SumModel transfer = new SumModel(2, 2, 1f);
+        AtomicInteger preprocessRuns = new AtomicInteger();
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("style", 8)
+                .input("content", 8)
+                .model("predict", predict, new String[]{"style"}, new String[]{"bottleneck"}, true)
+                .op("preprocess", addOne(preprocessRuns), new String[]{"content"}, new String[]{"content_input"},
+                        new int[]{8}, false)
+                .model("transfer", transfer, new String[]{"content_input", "bottleneck"}, new String[]{"result"}, false)
+                .output("result")
+                .build();
+        assertEquals(Arrays.asList(Arrays.asList("predict", "preprocess"), Arrays.asList("transfer")),
+                graph.getLevels());
+
+        graph.setInput("style", floats(1f, 2f));
+        graph.setInput("content", floats(5f, 6f));
+        graph.run(EXECUTOR);
+        ByteBuffer result = graph.getOutput("result");
+        assertEquals(16f, result.getFloat(0), 0f);
+        assertEquals(27f, result.getFloat(4), 0f);
+
+        //只换内容图，style predict 被跳过
+        graph.setInput("content", floats(0f, 0f));
+        graph.run(EXECUTOR);
+        assertEquals(1, predict.runs.get());
+        assertEquals(2, preprocessRuns.get());
+        assertEquals(2, transfer.runs.get());
+        assertEquals(1, graph.getNodeSkipCount("predict"));
+        assertEquals(11f, graph.getOutput("result").getFloat(0), 0f);
+
+        graph.setInput("style", floats(0f, 0f));
+        graph.run(EXECUTOR);
+        assertEquals(2, predict.runs.get());
+        assertEquals(1f, graph.getOutput("result").getFloat(0), 0f);
+    }
+
+    @Test
+    public void providedOutputSkipsProducer() {
+        SumModel predict = new SumModel(1, 2, 10f);
+        SumModel transfer = new SumModel(2, 2, 1f);
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("style", 8)
+                .input("content", 8)
+                .model("predict", predict, new String[]{"style"}, new String[]{"bottleneck"}, true)
+                .model("transfer", transfer, new String[]{"content", "bottleneck"}, new String[]{"result"}, false)
+                .output("result")
+                .build();
+        //缓存命中时不需要设置 style，也不运行 predict
+        graph.setInput("content", floats(5f, 6f));
+        graph.provide("bottleneck", floats(1f, 1f));
+        graph.run(EXECUTOR);
+        assertEquals(0, predict.runs.get());
+        assertEquals(1, graph.getNodeSkipCount("predict"));
+        assertEquals(6f, graph.getOutput("result").getFloat(0), 0f);
+
+        //缓存未命中时恢复计算
+        graph.provide("bottleneck", null);
+        graph.setInput("style", floats(1f, 2f));
+        graph.run(EXECUTOR);
+        assertEquals(1, predict.runs.get());
+        assertEquals(15f, graph.getOutput("result").getFloat(0), 0f);
+
+        //再次给出的值代替 predict 上一次的结果
+        graph.provide("bottleneck", floats(0f, 0f));
+        graph.run(EXECUTOR);
+        assertEquals(1, predict.runs.get());
+        assertEquals(5f, graph.getOutput("result").getFloat(0), 0f);
+
+        //取消给出后 predict 的输入没变，直接用它上一次的结果
+        graph.provide("bottleneck", null);
+        graph.run(EXECUTOR);
+        assertEquals(1, predict.runs.get());
+        assertEquals(15f, graph.getOutput("result").getFloat(0), 0f);
+    }
+
+    @Test
+    public void cancellationStopsBeforeNextLevel() {
+        SumModel predict = new SumModel(1, 2, 10f);
+        SumModel transfer = new SumModel(2, 2, 1f);
+        final boolean[] cancelled = {false};
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("style", 8)
+                .input("content", 8)
+                .model("predict", predict, new String[]{"style"}, new String[]{"bottleneck"}, true)
+                .op("preprocess", new ModelGraph.Op() {
+                    @Override
+                    public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+                        //预处理过程中收到取消
+                        cancelled[0] = true;
+                        outputs[0].putFloat(0, inputs[0].getFloat(0));
+                        outputs[0].putFloat(4, inputs[0].getFloat(4));
+                    }
+                }, new String[]{"content"}, new String[]{"content_input"}, new int[]{8}, false)
+                .model("transfer", transfer, new String[]{"content_input", "bottleneck"}, new String[]{"result"}, false)
+                .output("result")
+                .build();
+        ModelGraph.CancellationSignal signal = new ModelGraph.CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                return cancelled[0];
+            }
+        };
+        graph.setInput("style", floats(1f, 2f));
+        graph.setInput("content", floats(5f, 6f));
+        try {
+            graph.run(EXECUTOR, signal);
+            fail("should be cancelled");
+        } catch (CancellationException expected) {
+        }
+        assertEquals(1, predict.runs.get());
+        assertEquals(0, transfer.runs.get());
+
+        //style predict 的结果依然有效，下一次被跳过
+        graph.run(EXECUTOR);
+        assertEquals(1, predict.runs.get());
+        assertEquals(1, transfer.runs.get());
+        assertEquals(15f, graph.getOutput("result").getFloat(0), 0f);
+    }
+
+    @Test
+    public void sharesBuffersOfDeadIntermediates() {
+        AtomicInteger runs = new AtomicInteger();
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("x", 16)
+                .op("a", addOne(runs), new String[]{"x"}, new String[]{"t1"}, new int[]{16}, false)
+                .op("b", addOne(runs), new String[]{"t1"}, new String[]{"t2"}, new int[]{16}, false)
+                .op("c", addOne(runs), new String[]{"t2"}, new String[]{"t3"}, new int[]{16}, false)
+                .op("d", addOne(runs), new String[]{"t3"}, new String[]{"y"}, new int[]{16}, false)
+                .output("y")
+                .build();
+        //t1 / t3 共用，t2 单独，y 是输出
+        assertEquals(3, graph.getBufferCount());
+        graph.setInput("x", floats(1f, 2f, 3f, 4f));
+        graph.run(EXECUTOR);
+        ByteBuffer y = graph.getOutput("y");
+        assertEquals(5f, y.getFloat(0), 0f);
+        assertEquals(8f, y.getFloat(12), 0f);
+    }
+
+    @Test
+    public void runsSameLevelConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        ModelGraph.Op waitForOther = new ModelGraph.Op() {
+            @Override
+            public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) throws Exception {
+                //两个节点不在不同线程同时执行的话会超时
+                barrier.await(5, TimeUnit.SECONDS);
+            }
+        };
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("x", 4)
+                .op("left", waitForOther, new String[]{"x"}, new String[]{"l"}, new int[]{4}, false)
+                .op("right", waitForOther, new String[]{"x"}, new String[]{"r"}, new int[]{4}, false)
+                .output("l")
+                .output("r")
+                .build();
+        graph.setInput("x", floats(0f));
+        graph.run(EXECUTOR);
+        assertEquals(1, graph.getNodeRunCount("left"));
+        assertEquals(1, graph.getNodeRunCount("right"));
+    }
+
+    @Test
+    public void failedNodeIsReportedAndRetried() {
+        final boolean[] broken = {true};
+        ModelGraph graph = new ModelGraph.Builder()
+                .input("x", 4)
+                .op("flaky", new ModelGraph.Op() {
+                    @Override
+                    public void run(ByteBuffer[] inputs, ByteBuffer[] outputs) {
+                        if (broken[0]) {
+                            throw new IllegalArgumentException("broken");
+                        }
+                    }
+                }, new String[]{"x"}, new String[]{"y"}, new int[]{4}, true)
+                .output("y")
+                .build();
+        graph.setInput("x", floats(0f));
+        try {
+            graph.run(EXECUTOR);
+            fail("flaky should fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("flaky"));
+        }
+        //失败的 memoize 节点下次不会被跳过
+        broken[0] = false;
+        graph.run(EXECUTOR);
+        assertEquals(1, graph.getNodeRunCount("flaky"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUndeclaredTensor() {
+        new ModelGraph.Builder()
+                .op("a", addOne(new AtomicInteger()), new String[]{"missing"}, new String[]{"y"}, new int[]{4}, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsModelInputSizeMismatch() {
+        new ModelGraph.Builder()
+                .input("x", 4)
+                .model("m", new SumModel(1, 2, 1f), new String[]{"x"}, new String[]{"y"}, false);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsRunWithoutInput() {
+        new ModelGraph.Builder()
+                .input("x", 4)
+                .op("a", addOne(new AtomicInteger()), new String[]{"x"}, new String[]{"y"}, new int[]{4}, false)
+                .build()
+                .run(EXECUTOR);
+    }
+}
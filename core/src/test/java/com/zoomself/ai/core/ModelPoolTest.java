@@ -0,0 +1,125 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ModelPoolTest {
+
+    /**
+     * 只记录是否关闭的假模型
+     */
+    static class FakeModel implements InferenceModel {
+        boolean closed;
+
+        @Override
+        public int getInputTensorCount() {
+            return 1;
+        }
+
+        @Override
+        public int getOutputTensorCount() {
+            return 1;
+        }
+
+        @Override
+        public int[] getInputTensorShape(int inputIndex) {
+            return new int[]{1, 2, 2, 3};
+        }
+
+        @Override
+        public int[] getOutputTensorShape(int outputIndex) {
+            return new int[]{1, 2, 2, 3};
+        }
+
+        @Override
+        public TensorType getInputTensorType(int inputIndex) {
+            return TensorType.FLOAT32;
+        }
+
+        @Override
+        public TensorType getOutputTensorType(int outputIndex) {
+            return TensorType.FLOAT32;
+        }
+
+        @Override
+        public void run(Object[] inputs, Map<Integer, Object> outputs) {
+        }
+
+        @Override
+        public String getModelHash() {
+            return "fake";
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static ModelPool<FakeModel> pool(final AtomicInteger created, int maxSize, long idleTimeoutMillis,
+                                             final long[] clock) {
+        return new ModelPool<FakeModel>(new ModelPool.Factory<FakeModel>() {
+            @Override
+            public FakeModel create() {
+                created.incrementAndGet();
+                return new FakeModel();
+            }
+        }, maxSize, idleTimeoutMillis) {
+            @Override
+            protected long now() {
+                //null 时用真实时钟
+                return clock != null ? clock[0] : super.now();
+            }
+        };
+    }
+
+    @Test
+    public void reusesReleasedModelAndBlocksWhenFull() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        ModelPool<FakeModel> pool = pool(created, 1, 0, null);
+        FakeModel model = pool.borrow();
+        assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+        pool.release(model);
+        assertSame(model, pool.borrow());
+        assertEquals(1, created.get());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void evictsIdleModels() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        long[] clock = {0};
+        ModelPool<FakeModel> pool = pool(created, 2, 1000, clock);
+        FakeModel first = pool.borrow();
+        FakeModel second = pool.borrow();
+        pool.release(first);
+        clock[0] = 600;
+        pool.release(second);
+        clock[0] = 1200;
+        assertEquals(1, pool.evictIdle());
+        assertTrue(first.closed);
+        assertEquals(1, pool.getIdleCount());
+        assertSame(second, pool.borrow());
+    }
+
+    @Test
+    public void closeClosesIdleAndReturnedModels() throws Exception {
+        ModelPool<FakeModel> pool = pool(new AtomicInteger(), 2, 0, new long[1]);
+        FakeModel idle = pool.borrow();
+        FakeModel borrowed = pool.borrow();
+        pool.release(idle);
+        pool.close();
+        assertTrue(idle.closed);
+        pool.release(borrowed);
+        assertTrue(borrowed.closed);
+        assertEquals(0, pool.getCreatedCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelTunerTest {
+
+    /**
+     * 4 个线程、开 XNNPACK 最快，GPU 不可用
+     */
+    private static class FakeBenchmark implements ModelTuner.Benchmark {
+        final List<ModelTuner.Config> measured = new ArrayList<>();
+
+        @Override
+        public long measure(ModelTuner.Config config) throws Exception {
+            measured.add(config);
+            if (config.getDevice().equals("GPU")) {
+                throw new UnsupportedOperationException("no gpu");
+            }
+            long nanos = 1000 + Math.abs(config.getNumThreads() - 4) * 100;
+            return config.isUseXnnpack() ? nanos - 50 : nanos;
+        }
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("tuning", ".properties");
+        assertTrue(file.delete());
+        return file;
+    }
+
+    @Test
+    public void picksFastestAndPersistsIt() throws Exception {
+        File file = tempFile();
+        try {
+            List<ModelTuner.Config> candidates = new ArrayList<>(ModelTuner.cpuCandidates("CPU", 8));
+            candidates.add(new ModelTuner.Config("GPU", 1, false));
+            String key = ModelTuner.key("style.tflite", "abc", "pixel/30/8");
+            FakeBenchmark benchmark = new FakeBenchmark();
+
+            ModelTuner.Result result = new ModelTuner(file).tune(key, candidates, benchmark);
+            assertEquals(new ModelTuner.Config("CPU", 4, true), result.getConfig());
+            assertEquals(950, result.getNanos());
+            assertFalse(result.isFromStore());
+            //GPU 失败不计入
+            assertEquals(16, result.getMeasurements().size());
+            assertEquals(17, benchmark.measured.size());
+
+            //新实例从文件读取，不再测量
+            FakeBenchmark again = new FakeBenchmark();
+            ModelTuner.Result stored = new ModelTuner(file).tune(key, candidates, again);
+            assertTrue(stored.isFromStore());
+            assertEquals(result.getConfig(), stored.getConfig());
+            assertEquals(950, stored.getNanos());
+            assertTrue(again.measured.isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keysAreIndependentAndCanBeForgotten() throws Exception {
+        File file = tempFile();
+        try {
+            ModelTuner tuner = new ModelTuner(file);
+            String first = ModelTuner.key("a.tflite", "1", "device");
+            String second = ModelTuner.key("a.tflite", "2", "device");
+            tuner.tune(first, ModelTuner.cpuCandidates("CPU", 2), new FakeBenchmark());
+            assertNull(tuner.getTuned(second));
+
+            tuner.forget(first);
+            assertNull(new ModelTuner(file).getTuned(first));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void measureDoesNotPersistUntilRecorded() throws Exception {
+        File file = tempFile();
+        try {
+            String key = ModelTuner.key("style.tflite", "abc", "pixel/30/8");
+            ModelTuner.Result result = ModelTuner.measure(key, ModelTuner.cpuCandidates("CPU", 8),
+                    new FakeBenchmark());
+            assertEquals(new ModelTuner.Config("CPU", 4, true), result.getConfig());
+            assertFalse(file.exists());
+
+            ModelTuner tuner = new ModelTuner(file);
+            tuner.record(key, result);
+            ModelTuner.Result stored = new ModelTuner(file).getTuned(key);
+            assertTrue(stored.isFromStore());
+            assertEquals(result.getConfig(), stored.getConfig());
+            assertEquals(result.getNanos(), stored.getNanos());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void failsWhenNoCandidateWorks() throws Exception {
+        File file = tempFile();
+        try {
+            new ModelTuner(file).tune("k", Arrays.asList(new ModelTuner.Config("GPU", 1, false)),
+                    new FakeBenchmark());
+            fail("gpu only should fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+            assertFalse(file.exists());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ModelVariantRegistryTest {
+    private static final long MS = 1_000_000L;
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("variants", ".properties");
+        assertTrue(file.delete());
+        return file;
+    }
+
+    @Test
+    public void selectsBestQualityWithinBudgetAndPersists() throws Exception {
+        File file = tempFile();
+        try {
+            ModelVariantRegistry registry = new ModelVariantRegistry(file, "device");
+            ModelVariantRegistry.Variant f16 = registry.register("f16", "f16.tflite", "a");
+            ModelVariantRegistry.Variant quantized = registry.register("quantized", "q.tflite", "b");
+            assertEquals(f16, registry.getReference());
+            registry.setProfile(f16, new ModelVariantRegistry.Profile(300 * MS, 40 << 20,
+                    Double.POSITIVE_INFINITY));
+            registry.setProfile(quantized, new ModelVariantRegistry.Profile(120 * MS, 12 << 20, 31.5));
+
+            assertEquals(f16, registry.select(500 * MS));
+            assertEquals(quantized, registry.select(200 * MS));
+            //预算内没有变体时取最快的
+            assertEquals(quantized, registry.select(50 * MS));
+
+            //新实例从文件读取测量结果
+            ModelVariantRegistry reloaded = new ModelVariantRegistry(file, "device");
+            reloaded.register("f16", "f16.tflite", "a");
+            ModelVariantRegistry.Variant reloadedQuantized = reloaded.register("quantized", "q.tflite", "b");
+            assertNotNull(reloadedQuantized.getProfile());
+            assertEquals(31.5, reloadedQuantized.getProfile().getPsnr(), 0);
+            assertTrue(Double.isInfinite(reloaded.getReference().getProfile().getPsnr()));
+            assertEquals(reloadedQuantized, reloaded.select(200 * MS));
+
+            //模型或设备变化后没有记录
+            ModelVariantRegistry otherDevice = new ModelVariantRegistry(file, "other");
+            assertNull(otherDevice.register("f16", "f16.tflite", "a").getProfile());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void selectRequiresProfiles() throws Exception {
+        File file = tempFile();
+        try {
+            ModelVariantRegistry registry = new ModelVariantRegistry(file, "device");
+            registry.register("f16", "f16.tflite", "a");
+            registry.select(Long.MAX_VALUE);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void psnrComparesFloatWithDequantizedOutput() {
+        ByteBuffer reference = ByteBuffer.allocateDirect(4 * 4).order(ByteOrder.nativeOrder());
+        reference.asFloatBuffer().put(new float[]{0f, 0.5f, 1f, 1.2f});
+        ByteBuffer quantized = ByteBuffer.allocateDirect(4);
+        Quantization quantization = new Quantization(1 / 128f, 64);
+        quantized.put(new byte[]{64, (byte) 128, (byte) 192, (byte) 192});
+
+        //1.2 截断到 1，和量化结果完全一致
+        double mse = ModelVariantRegistry.meanSquaredError(reference, TensorType.FLOAT32, Quantization.NONE,
+                quantized, TensorType.UINT8, quantization, 4);
+        assertEquals(0, mse, 1e-12);
+        assertTrue(Double.isInfinite(ModelVariantRegistry.psnr(mse)));
+
+        quantized.put(1, (byte) 116);
+        mse = ModelVariantRegistry.meanSquaredError(reference, TensorType.FLOAT32, Quantization.NONE,
+                quantized, TensorType.UINT8, quantization, 4);
+        //第二个值差 12 / 128
+        double expected = (12 / 128.0) * (12 / 128.0) / 4;
+        assertEquals(expected, mse, 1e-9);
+        assertEquals(10 * Math.log10(1 / expected), ModelVariantRegistry.psnr(mse), 1e-6);
+    }
+}
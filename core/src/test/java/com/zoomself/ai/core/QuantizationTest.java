@@ -0,0 +1,101 @@
+package com.zoomself.ai.core;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizationTest {
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void quantizesAndClampsToUint8() {
+        Quantization quantization = new Quantization(1 / 128f, 64);
+        assertTrue(quantization.isQuantized());
+        assertEquals(64, quantization.quantize(0f));
+        assertEquals(192, quantization.quantize(1f));
+        assertEquals(0, quantization.quantize(-1f));
+        assertEquals(255, quantization.quantize(2f));
+        assertEquals(1f, quantization.dequantize(192), 0f);
+        //通道值 255 是 1.0，量化后是 192
+        assertEquals((byte) 192, quantization.quantizeChannel(255));
+        assertEquals(255, quantization.dequantizeChannel((byte) 192));
+        //低于 zeroPoint 的值反量化是负数，截断到 0
+        assertEquals(0, quantization.dequantizeChannel((byte) 10));
+    }
+
+    @Test
+    public void noneKeepsRawChannelValues() {
+        assertFalse(Quantization.NONE.isQuantized());
+        for (int i = 0; i < 256; i++) {
+            assertEquals((byte) i, Quantization.NONE.quantizeChannel(i));
+            assertEquals(i, Quantization.NONE.dequantizeChannel((byte) i));
+        }
+        //1/255 + 0 和没有量化参数等价
+        Quantization unit = new Quantization(1 / 255f, 0);
+        for (int i = 0; i < 256; i++) {
+            assertEquals((byte) i, unit.quantizeChannel(i));
+            assertEquals(i, unit.dequantizeChannel((byte) i));
+        }
+    }
+
+    @Test
+    public void kernelsAndPreprocessorWriteOneBytePerChannel() {
+        Quantization quantization = new Quantization(1 / 128f, 64);
+        int[] pixels = {0xffff0080, 0xff000000};
+        ByteBuffer kernelOut = ByteBuffer.allocate(6);
+        ImageKernels.argbToTensor(pixels, 2, TensorType.UINT8, quantization, kernelOut);
+        assertEquals(6, kernelOut.position());
+        assertArrayEquals(new byte[]{(byte) 192, 64, (byte) 128, 64, 64, 64}, kernelOut.array());
+
+        //2x1 原图缩放到 2x1，和内核结果一致，不会写出 tensor 的范围
+        TensorPreprocessor preprocessor = new TensorPreprocessor.Builder(2, 1, TensorType.UINT8)
+                .setSampling(TensorPreprocessor.Sampling.NEAREST)
+                .setQuantization(quantization)
+                .build();
+        ByteBuffer preprocessed = ByteBuffer.allocate(6);
+        preprocessor.process(pixels, 2, 1, 0, preprocessed);
+        assertArrayEquals(kernelOut.array(), preprocessed.array());
+
+        int[] argb = new int[2];
+        new TensorToPixelsConverter(POOL).convert(preprocessed, TensorType.UINT8, quantization, 2, 1, argb);
+        assertEquals(0xffff0080, argb[0]);
+        assertEquals(0xff000000, argb[1]);
+        int[] scalar = new int[2];
+        ImageKernels.tensorToArgb(preprocessed, TensorType.UINT8, quantization, 2, scalar);
+        assertArrayEquals(argb, scalar);
+    }
+
+    @Test
+    public void yuvKernelQuantizesOutput() {
+        //2x2 的 Y=235、U=V=128，是接近白色的灰
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{(byte) 235, (byte) 235, (byte) 235, (byte) 235});
+        ByteBuffer uv = ByteBuffer.wrap(new byte[]{(byte) 128, (byte) 128});
+        ByteBuffer raw = ByteBuffer.allocate(3).order(ByteOrder.nativeOrder());
+        ImageKernels.yuv420ToTensor(y, uv, uv, 2, 2, 1, 2, 2, 0, 0, 2, 2, 0, 1, 1, TensorType.UINT8, raw);
+        Quantization quantization = new Quantization(1 / 128f, 64);
+        ByteBuffer quantized = ByteBuffer.allocate(3);
+        ImageKernels.yuv420ToTensor(y, uv, uv, 2, 2, 1, 2, 2, 0, 0, 2, 2, 0, 1, 1, TensorType.UINT8,
+                quantization, quantized);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(quantization.quantizeChannel(raw.get(i) & 0xFF), quantized.get(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPointOutOfRange() {
+        new Quantization(0.1f, 300);
+    }
+}
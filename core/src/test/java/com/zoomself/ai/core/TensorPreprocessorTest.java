@@ -0,0 +1,121 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TensorPreprocessorTest {
+
+    private static ByteBuffer allocate(int width, int height, TensorType type) {
+        return ByteBuffer.allocateDirect(width * height * 3 * type.byteSize()).order(ByteOrder.nativeOrder());
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.rewind();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void nearestMatchesFusedYuvKernelForEveryRotation() {
+        //相同的裁剪、旋转、最近邻几何，和 YUV 融合内核的结果一致
+        int width = 64;
+        int height = 48;
+        Random random = new Random(3);
+        byte[] y = new byte[width * height];
+        byte[] u = new byte[width * height / 4];
+        byte[] v = new byte[width * height / 4];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+        int[] argb = new int[width * height];
+        ImageKernels.convertYUV420ToARGB8888(y, u, v, width, height, width, width / 2, 1, argb);
+
+        for (TensorType type : TensorType.values()) {
+            TensorPreprocessor preprocessor = new TensorPreprocessor.Builder(20, 20, type)
+                    .setSampling(TensorPreprocessor.Sampling.NEAREST)
+                    .build();
+            for (int rotation = -90; rotation <= 360; rotation += 90) {
+                ByteBuffer expected = allocate(20, 20, type);
+                ImageKernels.yuv420ToTensor(ByteBuffer.wrap(y), ByteBuffer.wrap(u), ByteBuffer.wrap(v),
+                        width, width / 2, 1, width, height, 0, 0, width, height, rotation, 20, 20, type, expected);
+                ByteBuffer actual = allocate(20, 20, type);
+                preprocessor.process(argb, width, height, rotation, actual);
+                assertEquals(actual.capacity(), actual.position());
+                assertArrayEquals(type + " " + rotation, bytes(expected), bytes(actual));
+            }
+        }
+    }
+
+    @Test
+    public void nearestWithoutResizeMatchesArgbToTensor() {
+        int[] argb = new int[16 * 16];
+        Random random = new Random(5);
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = random.nextInt();
+        }
+        for (TensorType type : TensorType.values()) {
+            ByteBuffer expected = allocate(16, 16, type);
+            ImageKernels.argbToTensor(argb, argb.length, type, expected);
+            ByteBuffer actual = allocate(16, 16, type);
+            new TensorPreprocessor.Builder(16, 16, type)
+                    .setSampling(TensorPreprocessor.Sampling.NEAREST)
+                    .build()
+                    .process(argb, 16, 16, 0, actual);
+            assertArrayEquals(bytes(expected), bytes(actual));
+        }
+    }
+
+    @Test
+    public void rotationAndCenterCrop() {
+        //3x2 的源图，中心裁剪成 2x2 后顺时针旋转 90 度
+        int[] argb = {
+                0xff000001, 0xff000002, 0xff000003,
+                0xff000004, 0xff000005, 0xff000006,
+        };
+        TensorPreprocessor preprocessor = new TensorPreprocessor.Builder(2, 2, TensorType.UINT8).build();
+        ByteBuffer out = allocate(2, 2, TensorType.UINT8);
+        preprocessor.process(argb, 3, 2, 90, out);
+        //裁剪区域是 [1,2] [4,5]，顺时针旋转后是 [4,1] [5,2]
+        byte[] result = bytes(out);
+        assertEquals(4, result[2]);
+        assertEquals(1, result[5]);
+        assertEquals(5, result[8]);
+        assertEquals(2, result[11]);
+    }
+
+    @Test
+    public void bilinearInterpolatesAndNormalizes() {
+        //水平渐变 0 -> 255，缩小一半后每个输出像素是相邻两个源像素的平均
+        int width = 8;
+        int[] argb = new int[width * 2];
+        for (int x = 0; x < width; x++) {
+            int value = x * 255 / (width - 1);
+            argb[x] = argb[width + x] = 0xff000000 | value << 16 | value << 8 | value;
+        }
+        TensorPreprocessor preprocessor = new TensorPreprocessor.Builder(4, 1, TensorType.FLOAT32)
+                .setSampling(TensorPreprocessor.Sampling.BILINEAR)
+                .setNormalization(new float[]{127.5f, 127.5f, 127.5f}, new float[]{127.5f, 127.5f, 127.5f})
+                .build();
+        ByteBuffer out = allocate(4, 1, TensorType.FLOAT32);
+        preprocessor.process(argb, width, 2, 0, out);
+        for (int ox = 0; ox < 4; ox++) {
+            float expected = ((argb[2 * ox] & 0xFF) + (argb[2 * ox + 1] & 0xFF)) / 2f;
+            for (int c = 0; c < 3; c++) {
+                assertEquals((expected - 127.5f) / 127.5f, out.getFloat((ox * 3 + c) * 4), 1e-5f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRotation() {
+        new TensorPreprocessor.Builder(2, 2, TensorType.UINT8).build()
+                .process(new int[4], 2, 2, 45, allocate(2, 2, TensorType.UINT8));
+    }
+}
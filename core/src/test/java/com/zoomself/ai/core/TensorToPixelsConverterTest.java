@@ -0,0 +1,88 @@
+package com.zoomself.ai.core;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TensorToPixelsConverterTest {
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    private static ByteBuffer floatTensor(float... values) {
+        ByteBuffer tensor = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder());
+        tensor.asFloatBuffer().put(values);
+        return tensor;
+    }
+
+    @Test
+    public void clampsOutOfRangeFloats() {
+        ByteBuffer tensor = floatTensor(1.5f, -0.2f, 0.5f, Float.NaN, 2f, -3f);
+        int[] out = new int[2];
+        new TensorToPixelsConverter(POOL).convert(tensor, TensorType.FLOAT32, 2, 1, out);
+        assertEquals(0xffff0080, out[0]);
+        assertEquals(0xff00ff00, out[1]);
+    }
+
+    @Test
+    public void matchesScalarKernelForInRangeValues() {
+        int width = 97;
+        int height = 61;
+        Random random = new Random(11);
+        float[] values = new float[width * height * 3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextFloat();
+        }
+        ByteBuffer tensor = floatTensor(values);
+        byte[] bytes = new byte[values.length];
+        random.nextBytes(bytes);
+        ByteBuffer uint8Tensor = ByteBuffer.allocateDirect(bytes.length);
+        uint8Tensor.put(bytes);
+        //转换不依赖 tensor 的 position
+        tensor.position(12);
+        uint8Tensor.position(5);
+
+        TensorToPixelsConverter converter = new TensorToPixelsConverter(POOL);
+        for (TensorType type : TensorType.values()) {
+            ByteBuffer input = type == TensorType.FLOAT32 ? tensor : uint8Tensor;
+            int[] expected = new int[width * height];
+            ImageKernels.tensorToArgb(input, type, width * height, expected);
+
+            int[] actual = new int[width * height];
+            converter.convert(input, type, width, height, actual);
+            assertArrayEquals(type.toString(), expected, actual);
+
+            IntBuffer direct = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            converter.convert(input, type, width, height, direct, TensorToPixelsConverter.PixelFormat.ARGB);
+            int[] fromDirect = new int[width * height];
+            direct.get(fromDirect);
+            assertArrayEquals(type + " direct", expected, fromDirect);
+        }
+    }
+
+    @Test
+    public void rgbaWritesBytesInMemoryOrder() {
+        ByteBuffer tensor = floatTensor(1f, 0.5f, 0f);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer pixels = ByteBuffer.allocateDirect(4).order(order);
+            new TensorToPixelsConverter(POOL).convert(tensor, TensorType.FLOAT32, 1, 1, pixels.asIntBuffer(),
+                    TensorToPixelsConverter.PixelFormat.RGBA);
+            assertEquals((byte) 255, pixels.get(0));
+            assertEquals((byte) 128, pixels.get(1));
+            assertEquals((byte) 0, pixels.get(2));
+            assertEquals((byte) 255, pixels.get(3));
+        }
+    }
+}
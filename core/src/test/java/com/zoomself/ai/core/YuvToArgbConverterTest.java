@@ -0,0 +1,94 @@
+package com.zoomself.ai.core;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class YuvToArgbConverterTest {
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void matchesScalarConversion() {
+        //包含奇数宽高、行尾 padding、planar / semi-planar 两种 UV 布局
+        int[][] cases = {
+                {640, 480, 640, 1},
+                {640, 480, 704, 2},
+                {1920, 1080, 1920, 2},
+                {33, 17, 48, 1},
+                {33, 17, 48, 2},
+                {1, 1, 1, 1},
+        };
+        YuvToArgbConverter converter = new YuvToArgbConverter(POOL);
+        Random random = new Random(7);
+        for (int[] c : cases) {
+            int width = c[0];
+            int height = c[1];
+            int yRowStride = c[2];
+            int uvPixelStride = c[3];
+            int uvRowStride = uvPixelStride == 2 ? yRowStride : (yRowStride + 1) / 2;
+            byte[] y = new byte[yRowStride * height];
+            byte[] u = new byte[uvRowStride * ((height + 1) / 2)];
+            byte[] v = new byte[u.length];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+
+            int[] expected = new int[width * height];
+            ImageKernels.convertYUV420ToARGB8888(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride,
+                    expected);
+
+            int[] actual = new int[width * height];
+            converter.convert(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, actual);
+            assertArrayEquals(width + "x" + height, expected, actual);
+
+            //direct IntBuffer，从非 0 的 position 开始写
+            IntBuffer direct = ByteBuffer.allocateDirect((width * height + 3) * 4)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            direct.position(3);
+            converter.convert(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, direct);
+            int[] fromDirect = new int[width * height];
+            direct.get(fromDirect);
+            assertArrayEquals(width + "x" + height + " direct", expected, fromDirect);
+
+            IntBuffer wrapped = IntBuffer.wrap(new int[width * height]);
+            converter.convert(y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, wrapped);
+            assertArrayEquals(width + "x" + height + " wrapped", expected, wrapped.array());
+        }
+    }
+
+    @Test
+    public void coversEveryInputValue() {
+        //所有 (y, u, v) 组合，保证查找表和 YUV2RGB 的截断完全一致
+        int width = 512;
+        int height = 2 * 256;
+        byte[] y = new byte[width * height];
+        byte[] u = new byte[width / 2 * 256];
+        byte[] v = new byte[u.length];
+        int[] expected = new int[width * height];
+        int[] actual = new int[width * height];
+        YuvToArgbConverter converter = new YuvToArgbConverter(POOL);
+        for (int yValue = 0; yValue < 256; yValue++) {
+            Arrays.fill(y, (byte) yValue);
+            for (int i = 0; i < u.length; i++) {
+                u[i] = (byte) (i % 256);
+                v[i] = (byte) (i / 256);
+            }
+            ImageKernels.convertYUV420ToARGB8888(y, u, v, width, height, width, width / 2, 1, expected);
+            converter.convert(y, u, v, width, height, width, width / 2, 1, actual);
+            assertArrayEquals("y=" + yValue, expected, actual);
+        }
+    }
+}
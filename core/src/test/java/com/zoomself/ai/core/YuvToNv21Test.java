@@ -0,0 +1,158 @@
+package com.zoomself.ai.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 各种 stride 组合下快速路径和通用路径的输出都要和逐像素的参考实现一致
+ */
+@RunWith(Parameterized.class)
+public class YuvToNv21Test {
+
+    /**
+     * UV 平面的内存布局
+     */
+    enum ChromaLayout {
+        //I420，U、V 各自一块内存，pixelStride 为 1
+        PLANAR,
+        //U、V 交错但是各自一块内存，pixelStride 为 2
+        SEMI_PLANAR_SEPARATE,
+        //V 平面和 U 平面共用一块内存，V 在前错开一个字节（NV21）
+        SEMI_PLANAR_VU,
+        //U 平面在前错开一个字节（NV12），不能走快速路径
+        SEMI_PLANAR_UV,
+        //NV21 布局但 buffer 只读，无法检测重叠
+        SEMI_PLANAR_VU_READ_ONLY
+    }
+
+    @Parameterized.Parameters(name = "{0}x{1} yPad={2} uvPad={3} {4}")
+    public static Collection<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        int[][] sizes = {{640, 480}, {64, 2}, {2, 2}, {33, 17}};
+        for (int[] size : sizes) {
+            for (int yPadding : new int[]{0, 64}) {
+                for (int uvPadding : new int[]{0, 32}) {
+                    for (ChromaLayout layout : ChromaLayout.values()) {
+                        parameters.add(new Object[]{size[0], size[1], yPadding, uvPadding, layout});
+                    }
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private final int width;
+    private final int height;
+    private final int yPadding;
+    private final int uvPadding;
+    private final ChromaLayout layout;
+
+    public YuvToNv21Test(int width, int height, int yPadding, int uvPadding, ChromaLayout layout) {
+        this.width = width;
+        this.height = height;
+        this.yPadding = yPadding;
+        this.uvPadding = uvPadding;
+        this.layout = layout;
+    }
+
+    @Test
+    public void matchesReference() {
+        Random random = new Random(width * 31 + height);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int yRowStride = width + yPadding;
+        int pixelStride = layout == ChromaLayout.PLANAR ? 1 : 2;
+        int uvRowStride = chromaWidth * pixelStride + uvPadding;
+
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(yRowStride * (height - 1) + width);
+        fill(yPlane, random);
+
+        //平面 buffer 只到最后一个像素为止，和相机给出的 buffer 一样
+        int planeSize = uvRowStride * (chromaHeight - 1) + (chromaWidth - 1) * pixelStride + 1;
+        ByteBuffer uPlane;
+        ByteBuffer vPlane;
+        switch (layout) {
+            case SEMI_PLANAR_VU:
+            case SEMI_PLANAR_VU_READ_ONLY:
+            case SEMI_PLANAR_UV: {
+                ByteBuffer shared = ByteBuffer.allocateDirect(planeSize + 1);
+                fill(shared, random);
+                ByteBuffer first = slice(shared, 0, planeSize);
+                ByteBuffer second = slice(shared, 1, planeSize);
+                boolean vFirst = layout != ChromaLayout.SEMI_PLANAR_UV;
+                vPlane = vFirst ? first : second;
+                uPlane = vFirst ? second : first;
+                if (layout == ChromaLayout.SEMI_PLANAR_VU_READ_ONLY) {
+                    uPlane = uPlane.asReadOnlyBuffer();
+                    vPlane = vPlane.asReadOnlyBuffer();
+                }
+                break;
+            }
+            default:
+                uPlane = ByteBuffer.allocateDirect(planeSize);
+                vPlane = ByteBuffer.allocateDirect(planeSize);
+                fill(uPlane, random);
+                fill(vPlane, random);
+                break;
+        }
+        //平面 buffer 的 position 不为 0 也不影响结果
+        yPlane.position(yPlane.limit() / 2);
+
+        //只有一个 UV 样本时 V 平面只有 1 个字节，无法检测，走通用路径
+        assertEquals(layout == ChromaLayout.SEMI_PLANAR_VU && planeSize > 1,
+                ImageKernels.isInterleavedVU(uPlane, vPlane));
+
+        byte[] expected = reference(yPlane, uPlane, vPlane, yRowStride, uvRowStride, pixelStride);
+        byte[] actual = new byte[ImageKernels.nv21Size(width, height) + 7];
+        ImageKernels.yuv420ToNv21(yPlane, uPlane, vPlane, width, height,
+                yRowStride, uvRowStride, uvRowStride, pixelStride, pixelStride, actual);
+
+        assertArrayEquals(expected, Arrays.copyOf(actual, expected.length));
+        assertEquals(yPlane.limit() / 2, yPlane.position());
+        //检测重叠时临时改写的字节要恢复
+        assertArrayEquals(expected, reference(yPlane, uPlane, vPlane, yRowStride, uvRowStride, pixelStride));
+    }
+
+    private byte[] reference(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride, int uvRowStride,
+                             int pixelStride) {
+        byte[] nv21 = new byte[ImageKernels.nv21Size(width, height)];
+        int position = 0;
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                nv21[position++] = y.get(row * yRowStride + col);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                nv21[position++] = v.get(row * uvRowStride + col * pixelStride);
+                nv21[position++] = u.get(row * uvRowStride + col * pixelStride);
+            }
+        }
+        return nv21;
+    }
+
+    private static void fill(ByteBuffer buffer, Random random) {
+        byte[] bytes = new byte[buffer.capacity()];
+        random.nextBytes(bytes);
+        buffer.put(bytes);
+        buffer.rewind();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+}